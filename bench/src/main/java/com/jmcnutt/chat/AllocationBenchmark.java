@@ -0,0 +1,159 @@
+/**
+ * Allocation on the server's relay path once it has warmed
+ * up. A bare connection sends one MESSAGE frame into a
+ * room and each operation lasts until every other client
+ * has read it, so it covers the server reading the frame,
+ * decoding it, encoding it again and queueing and writing
+ * it to every client.
+ *
+ * After each iteration it prints the bytes the server's
+ * I/O threads allocated for each message relayed. With
+ * buffers from the BufferPool that stays the same as the
+ * room grows, what is left is the decoded text of the
+ * message, made once however many clients it reaches.
+ * Run with "-prof gc" as well for the whole JVM, but that
+ * counts the room's reader too, and on JDK 17 the selector
+ * itself boxes the descriptor of every socket it finds
+ * ready, so it grows with the room whatever the server does.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AllocationBenchmark {
+	@Param({"10", "1000"})
+	public int clients;
+
+	@Param({"1", "4"})
+	public int threads;
+
+	@Param({"The quick brown fox jumps over the lazy dog"})
+	public String message;
+
+	private LoopbackRoom _room;
+	private SocketChannel _sender;
+	//the encoded frame, rewound for every send
+	private ByteBuffer _frame;
+
+	//MESSAGE frames the room has read once the last operation finished
+	private long _delivered;
+	//messages sent so far
+	private long _sent;
+
+	private com.sun.management.ThreadMXBean _threadBean;
+	//ids of the server's I/O threads
+	private long[] _ioThreads;
+	//allocated by the I/O threads and messages sent when the iteration started
+	private long _allocatedBefore;
+	private long _sentBefore;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		this._room = new LoopbackRoom(this.clients, ChatServerConfig.IoMode.SELECTOR, this.threads);
+
+		this._sender = SocketChannel.open(new InetSocketAddress("127.0.0.1", this._room.getPort()));
+
+		ByteBuffer hello = ByteBuffer.allocate(ChatProtocol.PREAMBLE_SIZE + ChatProtocol.HEADER_SIZE + 16);
+		hello.put(ChatProtocol.preamble(ChatProtocol.VERSION));
+		hello.put(ChatProtocol.frameBytes(ChatProtocol.HELLO, ChatProtocol.SERVER_ID, "sender"));
+		hello.flip();
+
+		while(hello.hasRemaining())
+			this._sender.write(hello);
+
+		byte[] frame = ChatProtocol.frameBytes(ChatProtocol.MESSAGE, ChatProtocol.SERVER_ID, this.message);
+		this._frame = ByteBuffer.allocateDirect(frame.length);
+		this._frame.put(frame);
+
+		this._delivered = this._room.getMessages();
+
+		ArrayList<Long> ids = new ArrayList<Long>();
+		for(Thread thread : Thread.getAllStackTraces().keySet()) {
+			if(thread.getName().startsWith("ChatServer-IO"))
+				ids.add(thread.getId());
+		}
+
+		this._ioThreads = new long[ids.size()];
+		for(int i = 0; i < this._ioThreads.length; i++)
+			this._ioThreads[i] = ids.get(i);
+
+		this._threadBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+	}
+
+	@Setup(Level.Iteration)
+	public void startCounting() {
+		this._allocatedBefore = this.ioAllocated();
+		this._sentBefore = this._sent;
+	}
+
+	@TearDown(Level.Iteration)
+	public void reportAllocation() {
+		long allocated = this.ioAllocated() - this._allocatedBefore;
+		long sent = this._sent - this._sentBefore;
+
+		if(sent > 0)
+			System.out.println("server I/O threads: " + (allocated / sent) + " bytes allocated per message, " + this._ioThreads.length + " threads");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		this._sender.close();
+		this._room.close();
+	}
+
+	/**
+	 * one message sent and read by every other client in the room
+	 */
+	@Benchmark
+	public long relay() throws Exception {
+		this._frame.rewind();
+
+		while(this._frame.hasRemaining())
+			this._sender.write(this._frame);
+
+		this._sent++;
+		this._delivered += this.clients;
+		this._room.awaitMessages(this._delivered);
+
+		return this._delivered;
+	}
+
+	/**
+	 * @return bytes allocated so far by the server's I/O threads
+	 */
+	private long ioAllocated() {
+		long total = 0;
+
+		for(long allocated : this._threadBean.getThreadAllocatedBytes(this._ioThreads))
+			total += Math.max(0, allocated);
+
+		return total;
+	}
+}//end AllocationBenchmark class
@@ -0,0 +1,118 @@
+/**
+ * End to end delivery over loopback. A ChatClientConnection
+ * sends a message into a room of the given size and each
+ * operation lasts until every other client in the room has
+ * read it, so the time covers the client's write, the
+ * server's read, relay and fan-out and the last client's
+ * read.
+ *
+ * Reported as a sampled distribution, the p0.50, p0.99
+ * and p0.999 rows are delivery latency percentiles for
+ * the slowest client. Messages per second is the number
+ * of clients divided by the mean.
+ *
+ * threads sets how many I/O threads the server spreads
+ * the room over, comparing a single loop with several.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EndToEndBenchmark {
+	@Param({"10", "1000", "10000"})
+	public int clients;
+
+	@Param({"SELECTOR"})
+	public ChatServerConfig.IoMode mode;
+
+	@Param({"1", "4"})
+	public int threads;
+
+	@Param({"The quick brown fox jumps over the lazy dog"})
+	public String message;
+
+	private LoopbackRoom _room;
+	private ChatClientConnection _sender;
+
+	//MESSAGE frames the room has read once the last operation finished
+	private long _delivered;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		this._room = new LoopbackRoom(this.clients, this.mode, this.threads);
+
+		final CountDownLatch answered = new CountDownLatch(1);
+
+		this._sender = new ChatClientConnection("127.0.0.1", this._room.getPort(), "sender");
+		//every message flushed as sent, so the time is the server's and not the window's
+		this._sender.setFlushWindow(0);
+		this._sender.addListener(new ChatClientListener(){
+			public void joined(int id){
+				answered.countDown();
+			}
+
+			public void joinFailed(String reason){
+				answered.countDown();
+			}
+
+			public void chatMessage(String line){
+			}
+
+			public void disconnected(){
+			}
+
+			public void reconnecting(int attempt, long delay){
+			}
+		});
+
+		this._sender.connect();
+		answered.await();
+
+		if(this._sender.getState() != ChatClientConnection.State.JOINED)
+			throw new IllegalStateException("Sender could not join");
+
+		this._delivered = this._room.getMessages();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		this._sender.leave();
+		this._room.close();
+	}
+
+	/**
+	 * one message sent and read by every client in the room
+	 */
+	@Benchmark
+	public long deliver() throws Exception {
+		this._sender.send(this.message);
+
+		this._delivered += this.clients;
+		this._room.awaitMessages(this._delivered);
+
+		return this._delivered;
+	}
+}//end EndToEndBenchmark class
@@ -0,0 +1,96 @@
+/**
+ * Join latency over loopback. Each operation is one
+ * ChatClientConnection connecting to a room that already
+ * holds the given number of clients, waiting for ACCEPT
+ * and leaving again, so the time includes the connect,
+ * the handshake and relaying the join to the whole room.
+ *
+ * Reported as a sampled distribution, the p0.50, p0.99
+ * and p0.999 rows are the join latency percentiles.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JoinBenchmark {
+	@Param({"10", "1000", "10000"})
+	public int clients;
+
+	@Param({"SELECTOR"})
+	public ChatServerConfig.IoMode mode;
+
+	private LoopbackRoom _room;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		this._room = new LoopbackRoom(this.clients, this.mode);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		this._room.close();
+	}
+
+	/**
+	 * one client connecting, joining and leaving
+	 */
+	@Benchmark
+	public int join() throws Exception {
+		final CountDownLatch answered = new CountDownLatch(1);
+		final int[] sessionId = new int[1];
+
+		ChatClientConnection connection = new ChatClientConnection("127.0.0.1", this._room.getPort(), "joiner");
+		connection.addListener(new ChatClientListener(){
+			public void joined(int id){
+				sessionId[0] = id;
+				answered.countDown();
+			}
+
+			public void joinFailed(String reason){
+				answered.countDown();
+			}
+
+			public void chatMessage(String line){
+			}
+
+			public void disconnected(){
+			}
+
+			public void reconnecting(int attempt, long delay){
+			}
+		});
+
+		connection.connect();
+		answered.await();
+
+		if(sessionId[0] == 0)
+			throw new IllegalStateException("Join failed");
+
+		connection.leave();
+
+		return sessionId[0];
+	}
+}//end JoinBenchmark class
@@ -0,0 +1,295 @@
+/**
+ * A running server on loopback with a room full of
+ * joined clients, for benchmarks to measure against.
+ * The clients are bare binary protocol connections
+ * read by one Selector thread, which only counts the
+ * frames it sees, so tens of thousands of them cost the
+ * benchmark little more than their sockets. The reader is
+ * handed ready keys one at a time rather than through the
+ * selected key set, so it adds little to the allocation a
+ * benchmark measures beyond what the selector itself makes.
+ *
+ * Each client takes two file descriptors in this process,
+ * one for each end, so large rooms need "ulimit -n" raised.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.function.Consumer;
+
+final class LoopbackRoom implements Runnable {
+	//bytes read per client before frames are counted
+	private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+	private final ChatServerCore _core;
+	private final int _port;
+
+	private final Selector _selector;
+	//held by register across wakeup and register, the selector locks itself while selecting
+	private final Object _registerLock = new Object();
+	private final SocketChannel[] _clients;
+	private final Thread _reader;
+	private volatile boolean _running = true;
+
+	//written by the reader only, waited on under this
+	private volatile long _accepted;
+	private volatile long _messages;
+
+	//counted during a select and published after it, reader only
+	private long _countedAccepted;
+	private long _countedMessages;
+	//set by the reader once a client breaks
+	private boolean _broken;
+
+	//handed each readable client by the selector
+	private final Consumer<SelectionKey> _clientReader = new Consumer<SelectionKey>(){
+		public void accept(SelectionKey key){
+			readClient(key);
+		}
+	};
+
+	/**
+	 * per client read state, attached to its key
+	 */
+	private static final class Client {
+		final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		//bytes of the server's preamble still to skip
+		int preamble = ChatProtocol.PREAMBLE_SIZE;
+	}
+
+	/**
+	 * starts a server with an I/O thread for each core and
+	 * joins clients to it, returning once every client has
+	 * been accepted.
+	 *
+	 * @param clients - clients to join
+	 * @param ioMode - how the server serves its sockets
+	 */
+	LoopbackRoom(int clients, ChatServerConfig.IoMode ioMode) throws IOException, InterruptedException {
+		this(clients, ioMode, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * starts a server and joins clients to it, returning once
+	 * every client has been accepted.
+	 *
+	 * @param clients - clients to join
+	 * @param ioMode - how the server serves its sockets
+	 * @param ioThreads - I/O threads the server spreads clients over in selector mode
+	 */
+	LoopbackRoom(int clients, ChatServerConfig.IoMode ioMode, int ioThreads) throws IOException, InterruptedException {
+		ChatServerConfig config = new ChatServerConfig();
+		config.setPort(freePort());
+		config.setIoMode(ioMode);
+		config.setIoThreads(ioThreads);
+		//the bench clients never answer a ping, measured runs must not reap them
+		config.setHeartbeatInterval(0);
+		config.setIdleTimeout(0);
+
+		this._port = config.getPort();
+		this._core = new ChatServerCore(config);
+		this._core.start();
+
+		this._selector = Selector.open();
+		this._clients = new SocketChannel[clients];
+
+		this._reader = new Thread(this, "LoopbackRoom-Reader");
+		this._reader.setDaemon(true);
+		this._reader.start();
+
+		for(int i = 0; i < clients; i++) {
+			SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", this._port));
+
+			ByteBuffer hello = ByteBuffer.allocate(ChatProtocol.PREAMBLE_SIZE + ChatProtocol.HEADER_SIZE + 16);
+			hello.put(ChatProtocol.preamble(ChatProtocol.VERSION));
+			hello.put(ChatProtocol.frameBytes(ChatProtocol.HELLO, ChatProtocol.SERVER_ID, "bench" + i));
+			hello.flip();
+
+			while(hello.hasRemaining())
+				channel.write(hello);
+
+			channel.configureBlocking(false);
+			this._clients[i] = channel;
+
+			this.register(channel);
+		}
+
+		this.awaitAccepted(clients);
+	}
+
+	/**
+	 * @return an unused port, free when this returns
+	 */
+	static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+
+		try {
+			return socket.getLocalPort();
+		}
+		finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * @return port the server accepts clients on
+	 */
+	int getPort() {
+		return this._port;
+	}
+
+	/**
+	 * @return MESSAGE frames read by all clients so far
+	 */
+	long getMessages() {
+		return this._messages;
+	}
+
+	/**
+	 * waits until the clients have read at least the given
+	 * number of MESSAGE frames in total.
+	 *
+	 * @param messages - total to wait for
+	 */
+	synchronized void awaitMessages(long messages) throws InterruptedException {
+		while(this._messages < messages && this._running)
+			this.wait();
+	}
+
+	/**
+	 * waits until the given number of clients have been accepted.
+	 */
+	private synchronized void awaitAccepted(long accepted) throws InterruptedException {
+		while(this._accepted < accepted && this._running)
+			this.wait();
+	}
+
+	/**
+	 * registers a client with the reader's selector.
+	 */
+	private void register(final SocketChannel channel) throws IOException {
+		//registering blocks while the reader is in select, so wake it first
+		synchronized(this._registerLock) {
+			this._selector.wakeup();
+			channel.register(this._selector, SelectionKey.OP_READ, new Client());
+		}
+	}
+
+	/**
+	 * the reader. Counts the frames every client receives.
+	 */
+	public void run() {
+		try {
+			while(this._running) {
+				//lets register take the selector between selects
+				synchronized(this._registerLock) {
+				}
+
+				this._selector.select(this._clientReader);
+
+				if(this._broken)
+					break;
+
+				if(this._countedAccepted != this._accepted || this._countedMessages != this._messages) {
+					synchronized(this) {
+						this._accepted = this._countedAccepted;
+						this._messages = this._countedMessages;
+
+						this.notifyAll();
+					}
+				}
+			}
+		}
+		catch(IOException ex) {
+			//the selector broke, nothing left to count
+		}
+		catch(ClosedSelectorException ex) {
+			//selector closed by close
+		}
+		finally {
+			synchronized(this) {
+				this._running = false;
+				this.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * reads what a client was sent and counts the frames in it.
+	 *
+	 * @param key - the readable client's key
+	 */
+	private void readClient(SelectionKey key) {
+		Client client = (Client)key.attachment();
+		SocketChannel channel = (SocketChannel)key.channel();
+		ByteBuffer buffer = client.buffer;
+
+		try {
+			if(channel.read(buffer) == -1) {
+				key.cancel();
+				return;
+			}
+		}
+		catch(IOException ex) {
+			//a client broke, nothing left to count
+			this._broken = true;
+			return;
+		}
+
+		buffer.flip();
+
+		int skip = Math.min(client.preamble, buffer.remaining());
+		buffer.position(buffer.position() + skip);
+		client.preamble -= skip;
+
+		//header only, payloads are skipped without decoding
+		while(buffer.remaining() >= ChatProtocol.HEADER_SIZE) {
+			int length = buffer.getInt(buffer.position() + 6);
+
+			if(buffer.remaining() < ChatProtocol.HEADER_SIZE + length)
+				break;
+
+			byte type = buffer.get(buffer.position());
+
+			if(type == ChatProtocol.MESSAGE)
+				this._countedMessages++;
+			else if(type == ChatProtocol.ACCEPT)
+				this._countedAccepted++;
+
+			buffer.position(buffer.position() + ChatProtocol.HEADER_SIZE + length);
+		}
+
+		buffer.compact();
+	}
+
+	/**
+	 * closes every client and shuts the server down.
+	 */
+	void close() throws InterruptedException {
+		this._running = false;
+
+		try {
+			this._selector.close();
+
+			for(SocketChannel channel : this._clients) {
+				if(channel != null)
+					channel.close();
+			}
+		}
+		catch(IOException e) {
+			//closing a socket requires IOException throw or handle
+		}
+
+		this._core.shutdown("Benchmark over");
+		this._core.awaitStop(5000);
+	}
+}//end LoopbackRoom class
@@ -0,0 +1,130 @@
+/**
+ * Throughput of the server's relay path on its own. A
+ * room of clients is joined straight into a ChatServerCore
+ * with sessions that discard what they are sent, and each
+ * operation hands the core one encoded MESSAGE frame from
+ * one of them, which is decoded and relayed to everyone
+ * else. No sockets are involved, so the result is the cost
+ * of decoding, encoding and queueing alone.
+ *
+ * The "messages" counter is deliveries per second, one
+ * per client per relayed frame. Run with "-prof gc" to see
+ * allocation; gc.alloc.rate.norm divided by the number of
+ * clients is the allocation per delivered message.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RelayBenchmark {
+	@Param({"10", "1000", "10000"})
+	public int clients;
+
+	//text relayed by every operation
+	@Param({"The quick brown fox jumps over the lazy dog"})
+	public String message;
+
+	private ChatServerCore _core;
+	private DiscardSession _sender;
+	private byte[] _frame;
+
+	/**
+	 * session whose bytes are thrown away as soon as they are queued
+	 */
+	static final class DiscardSession extends Session {
+		DiscardSession(int id) {
+			super(id);
+		}
+
+		/**
+		 * hands bytes to the session as if read from its socket
+		 */
+		void receive(ChatServerCore core, byte[] bytes) throws java.io.IOException {
+			this.readBuffer().put(bytes);
+			this.processInbound(core);
+		}
+
+		@Override
+		void outboundReady() {
+			//called with the queue lock held, the buffers go back to the pool at once
+			this.outboundWritten(this.getOutboundBytes());
+		}
+
+		@Override
+		void closeConnection() {
+		}
+	}
+
+	/**
+	 * deliveries made, reported as a rate next to the operations
+	 */
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Deliveries {
+		public long messages;
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		ChatServerConfig config = new ChatServerConfig();
+		config.setPort(LoopbackRoom.freePort());
+		//the sessions belong to no selector loop, so the core queues for them on the calling thread
+		config.setIoMode(ChatServerConfig.IoMode.VIRTUAL_THREADS);
+
+		this._core = new ChatServerCore(config);
+		this._core.start();
+
+		for(int i = 0; i < this.clients; i++) {
+			DiscardSession session = new DiscardSession(this._core.nextSessionId());
+
+			this._core.sessionOpened(session);
+
+			session.receive(this._core, ChatProtocol.preamble(ChatProtocol.VERSION));
+			session.receive(this._core, ChatProtocol.frameBytes(ChatProtocol.HELLO, ChatProtocol.SERVER_ID, "bench" + i));
+
+			if(i == 0)
+				this._sender = session;
+		}
+
+		this._frame = ChatProtocol.frameBytes(ChatProtocol.MESSAGE, ChatProtocol.SERVER_ID, this.message);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		this._core.shutdown("Benchmark over");
+		this._core.awaitStop(5000);
+	}
+
+	/**
+	 * one frame read from a client and relayed to the rest of the room
+	 */
+	@Benchmark
+	public void relay(Deliveries deliveries) throws Exception {
+		this._sender.receive(this._core, this._frame);
+
+		deliveries.messages += this.clients - 1;
+	}
+}//end RelayBenchmark class
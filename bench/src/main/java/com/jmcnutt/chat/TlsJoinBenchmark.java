@@ -0,0 +1,196 @@
+/**
+ * Join latency over loopback with and without TLS. Each
+ * operation is one ChatClientConnection connecting to an
+ * empty room, waiting for ACCEPT and leaving again.
+ *
+ * FULL gives every connection a new client context, so
+ * each makes a full handshake, as a crowd arriving for
+ * the first time would. RESUMED shares one context, so
+ * after the first each connection resumes the session
+ * the server handed out, as reconnecting clients do.
+ * PLAIN is the same join without TLS.
+ *
+ * The server's key is a self-signed EC certificate made
+ * with the JDK's keytool for the trial.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TlsJoinBenchmark {
+	/**
+	 * how each connection is secured
+	 */
+	public enum Handshake {
+		PLAIN,
+		FULL,
+		RESUMED
+	}
+
+	private static final String PASSWORD = "benchmark";
+
+	@Param({"PLAIN", "FULL", "RESUMED"})
+	public Handshake handshake;
+
+	private File _directory;
+	private ChatServerCore _core;
+	private int _port;
+
+	//trusting the trial's certificate, for new contexts
+	private TrustManager[] _trust;
+	//shared by every connection when resuming
+	private SSLContext _shared;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		this._directory = Files.createTempDirectory("chat-tls").toFile();
+		File keyStore = new File(this._directory, "server.p12");
+
+		makeKeyStore(keyStore);
+
+		ChatServerConfig config = new ChatServerConfig();
+		config.setPort(LoopbackRoom.freePort());
+
+		if(this.handshake != Handshake.PLAIN) {
+			config.setKeyStore(keyStore.getPath());
+			config.setKeyStorePassword(PASSWORD);
+		}
+
+		this._port = config.getPort();
+		this._core = new ChatServerCore(config);
+		this._core.start();
+
+		KeyStore store = KeyStore.getInstance("PKCS12");
+
+		InputStream in = new FileInputStream(keyStore);
+		try {
+			store.load(in, PASSWORD.toCharArray());
+		}
+		finally {
+			in.close();
+		}
+
+		TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trust.init(store);
+
+		this._trust = trust.getTrustManagers();
+		this._shared = this.newContext();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		this._core.shutdown("Benchmark over");
+		this._core.awaitStop(5000);
+
+		for(File file : this._directory.listFiles())
+			file.delete();
+
+		this._directory.delete();
+	}
+
+	/**
+	 * one client connecting, joining and leaving
+	 */
+	@Benchmark
+	public int join() throws Exception {
+		final CountDownLatch answered = new CountDownLatch(1);
+		final int[] sessionId = new int[1];
+
+		ChatClientConnection connection = new ChatClientConnection("127.0.0.1", this._port, "joiner");
+
+		if(this.handshake == Handshake.FULL)
+			connection.setSslContext(this.newContext());
+		else if(this.handshake == Handshake.RESUMED)
+			connection.setSslContext(this._shared);
+
+		connection.addListener(new ChatClientListener(){
+			public void joined(int id){
+				sessionId[0] = id;
+				answered.countDown();
+			}
+
+			public void joinFailed(String reason){
+				answered.countDown();
+			}
+
+			public void chatMessage(String line){
+			}
+
+			public void disconnected(){
+			}
+
+			public void reconnecting(int attempt, long delay){
+			}
+		});
+
+		connection.connect();
+		answered.await();
+
+		if(sessionId[0] == 0)
+			throw new IllegalStateException("Join failed");
+
+		connection.leave();
+
+		return sessionId[0];
+	}
+
+	/**
+	 * @return a client context with an empty session cache
+	 */
+	private SSLContext newContext() throws Exception {
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, this._trust, null);
+
+		return context;
+	}
+
+	/**
+	 * makes a self-signed key and certificate with keytool.
+	 */
+	private static void makeKeyStore(File keyStore) throws IOException, InterruptedException {
+		String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+
+		Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "chat", "-keyalg", "EC",
+				"-storetype", "PKCS12", "-keystore", keyStore.getPath(), "-storepass", PASSWORD,
+				"-dname", "CN=localhost", "-validity", "1")
+				.redirectErrorStream(true)
+				.redirectOutput(ProcessBuilder.Redirect.DISCARD)
+				.start();
+
+		if(process.waitFor() != 0)
+			throw new IOException("keytool failed making " + keyStore);
+	}
+}//end TlsJoinBenchmark class
@@ -0,0 +1,126 @@
+/**
+ * A session accepted by VirtualThreadTransport. The
+ * client's socket is read with plain blocking calls
+ * on a thread of its own, and whenever something is
+ * queued for the client another thread writes the
+ * queue out, so a client that stops reading only
+ * holds up its own writer.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+
+class BlockingSession extends Session {
+	//most queued bytes handed to a single write
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+	//the client's channel, left in blocking mode
+	private final SocketChannel _channel;
+
+	//runs the writer whenever the queue fills
+	private final Executor _writerExecutor;
+	//set while a writer is draining the queue, guarded by the queue lock
+	private boolean _writerRunning;
+
+	/**
+	 * @param id - id unique to this session
+	 * @param channel - the client's blocking channel
+	 * @param writerExecutor - runs the thread that writes queued bytes
+	 */
+	BlockingSession(int id, SocketChannel channel, Executor writerExecutor) {
+		super(id);
+
+		this._channel = channel;
+		this._writerExecutor = writerExecutor;
+	}
+
+	/**
+	 * waits for more bytes from the client and reads them
+	 * into the read buffer.
+	 *
+	 * @return false once the client hangs up
+	 */
+	boolean read() throws IOException {
+		int read = this._channel.read(this.readBuffer());
+
+		this.bytesRead(read);
+
+		return read != -1;
+	}
+
+	/**
+	 * starts a writer unless one is already draining the
+	 * queue, which goes on to write what was just queued.
+	 */
+	@Override
+	void outboundReady() {
+		if(this._writerRunning)
+			return;
+
+		this._writerRunning = true;
+		this._writerExecutor.execute(new Runnable(){
+			public void run(){
+				drainOutbound();
+			}
+		});
+	}
+
+	/**
+	 * the writer. Writes the queue, many frames at a time copied
+	 * into one pooled direct buffer, until it is empty. Virtual
+	 * threads come and go, so unlike an EventLoop they can't keep
+	 * views of the shared frames to write from. Only one writer
+	 * runs at a time, it only stops once it finds the queue empty
+	 * with the lock held, and no other is started until it has.
+	 */
+	private void drainOutbound() {
+		PooledBuffer pooled = BufferPool.allocateDirect(WRITE_BUFFER_SIZE);
+		ByteBuffer buffer = pooled.buffer();
+
+		try {
+			while(true) {
+				buffer.clear();
+
+				synchronized(this.outboundLock()) {
+					if(this.copyOutbound(buffer) == 0) {
+						this._writerRunning = false;
+						return;
+					}
+				}
+
+				buffer.flip();
+
+				//written without the lock so relaying to this client never waits
+				int written = buffer.remaining();
+				while(buffer.hasRemaining())
+					this._channel.write(buffer);
+
+				synchronized(this.outboundLock()) {
+					this.outboundWritten(written);
+				}
+			}
+		}
+		catch(IOException ex) {
+			//client is unreachable, its read loop notices the closed socket
+			this.close();
+		}
+		finally {
+			pooled.release();
+		}
+	}
+
+	@Override
+	void closeConnection() {
+		try {
+			this._channel.close();
+		}
+		catch(IOException ex) {
+			//closing a socket requires IOException throw or handle
+		}
+	}
+}//end BlockingSession class
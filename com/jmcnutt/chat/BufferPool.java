@@ -0,0 +1,275 @@
+/**
+ * Hands out buffers for reading, framing and writing
+ * messages and takes them back once used, so a server that
+ * has warmed up relays without allocating buffers at all.
+ *
+ * Buffers come in size classes, each four times the one
+ * before from 256 bytes to 1 MB, and a request is served
+ * from the smallest class it fits in. Larger requests are
+ * allocated on the heap as they come and left to the
+ * garbage collector. Frames to be written are direct
+ * buffers, which a socket writes from without the copy the
+ * JDK makes of a heap buffer first, so a frame shared by a
+ * room goes to every client straight from its one copy.
+ * Read buffers are heap buffers, decoded in place.
+ *
+ * A thread that asks for one with useThreadCache, like an
+ * EventLoop, keeps a few buffers of each class for itself
+ * and takes and returns them without any lock. Its cache
+ * is refilled from, and overflows into, lists shared by
+ * every thread, a batch at a time, so a frame read on one
+ * loop and freed by another only costs a lock now and then.
+ * Other threads, such as the virtual threads of blocking
+ * clients, use the shared lists directly. The shared lists
+ * keep a bounded number of bytes of each class, anything
+ * returned past that is left to the garbage collector, so a
+ * burst doesn't keep its memory forever.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.nio.ByteBuffer;
+
+final class BufferPool {
+	//smallest size class, each class is four times the one before
+	private static final int SMALLEST_SHIFT = 8;
+	private static final int CLASS_SHIFT = 2;
+	//256 bytes to 1 MB
+	private static final int CLASSES = 7;
+
+	//bytes of each class a thread's cache holds, at least one buffer and no more than MAX_CACHED
+	private static final int CACHE_BYTES = 256 * 1024;
+	private static final int MAX_CACHED = 64;
+	//bytes of each class the shared lists hold
+	private static final int SHARED_BYTES = 4 * 1024 * 1024;
+
+	//heap classes, then the direct classes of the same sizes
+	private static final SizeClass[] CLASSES_BY_INDEX = new SizeClass[CLASSES * 2];
+
+	static {
+		for(int i = 0; i < CLASSES; i++) {
+			int size = 1 << (SMALLEST_SHIFT + i * CLASS_SHIFT);
+
+			CLASSES_BY_INDEX[i] = new SizeClass(i, size, false);
+			CLASSES_BY_INDEX[CLASSES + i] = new SizeClass(CLASSES + i, size, true);
+		}
+	}
+
+	//null for threads that haven't asked for a cache
+	private static final ThreadLocal<ThreadCache> CACHES = new ThreadLocal<ThreadCache>();
+
+	/**
+	 * buffers of one size shared by every thread
+	 */
+	private static final class SizeClass {
+		final int index;
+		final int size;
+		final boolean direct;
+		//buffers a thread's cache holds, and moves to or from the shared list at once
+		final int cached;
+		final int batch;
+
+		//guarded by this
+		private final PooledBuffer[] _shared;
+		private int _count;
+
+		SizeClass(int index, int size, boolean direct) {
+			this.index = index;
+			this.size = size;
+			this.direct = direct;
+			this.cached = Math.max(1, Math.min(MAX_CACHED, CACHE_BYTES / size));
+			this.batch = Math.max(1, this.cached / 2);
+			this._shared = new PooledBuffer[Math.max(this.cached * 2, SHARED_BYTES / size)];
+		}
+
+		/**
+		 * @return a buffer from the shared list, or a new one if it is empty
+		 */
+		PooledBuffer take() {
+			synchronized(this) {
+				if(this._count > 0) {
+					PooledBuffer buffer = this._shared[--this._count];
+					this._shared[this._count] = null;
+
+					return buffer;
+				}
+			}
+
+			return this.newBuffer();
+		}
+
+		/**
+		 * @return a buffer of this class the pool hasn't held before
+		 */
+		PooledBuffer newBuffer() {
+			ByteBuffer buffer = this.direct ? ByteBuffer.allocateDirect(this.size) : ByteBuffer.allocate(this.size);
+
+			return new PooledBuffer(buffer, this.index);
+		}
+
+		/**
+		 * moves up to a batch of buffers into a thread's cache.
+		 *
+		 * @return number of buffers moved
+		 */
+		synchronized int takeBatch(PooledBuffer[] cache) {
+			int moved = Math.min(this.batch, this._count);
+
+			for(int i = 0; i < moved; i++) {
+				cache[i] = this._shared[--this._count];
+				this._shared[this._count] = null;
+			}
+
+			return moved;
+		}
+
+		/**
+		 * adds a buffer to the shared list, unless it is full.
+		 */
+		synchronized void give(PooledBuffer buffer) {
+			if(this._count < this._shared.length)
+				this._shared[this._count++] = buffer;
+		}
+
+		/**
+		 * moves buffers from the top of a thread's cache into the
+		 * shared list, as many as fit.
+		 *
+		 * @param from - index of the first buffer moved
+		 * @param to - index after the last
+		 */
+		synchronized void giveBatch(PooledBuffer[] cache, int from, int to) {
+			for(int i = from; i < to; i++) {
+				if(this._count < this._shared.length)
+					this._shared[this._count++] = cache[i];
+
+				cache[i] = null;
+			}
+		}
+	}
+
+	/**
+	 * one thread's buffers of every class, used by that thread alone
+	 */
+	private static final class ThreadCache {
+		final PooledBuffer[][] buffers = new PooledBuffer[CLASSES_BY_INDEX.length][];
+		final int[] counts = new int[CLASSES_BY_INDEX.length];
+
+		ThreadCache() {
+			for(int i = 0; i < CLASSES_BY_INDEX.length; i++)
+				this.buffers[i] = new PooledBuffer[CLASSES_BY_INDEX[i].cached];
+		}
+	}
+
+	private BufferPool() {
+	}
+
+	/**
+	 * gives the calling thread a cache of its own, for threads
+	 * that live as long as the server and take many buffers.
+	 */
+	static void useThreadCache() {
+		if(CACHES.get() == null)
+			CACHES.set(new ThreadCache());
+	}
+
+	/**
+	 * hands out a cleared heap buffer with one reference.
+	 *
+	 * @param capacity - bytes needed
+	 * @return a buffer of at least capacity bytes, with its limit at its capacity
+	 */
+	static PooledBuffer allocate(int capacity) {
+		return allocate(capacity, false);
+	}
+
+	/**
+	 * hands out a cleared direct buffer with one reference,
+	 * for bytes to be written to sockets.
+	 *
+	 * @param capacity - bytes needed
+	 * @return a buffer of at least capacity bytes, on the heap past the largest class
+	 */
+	static PooledBuffer allocateDirect(int capacity) {
+		return allocate(capacity, true);
+	}
+
+	private static PooledBuffer allocate(int capacity, boolean direct) {
+		int index = classOf(capacity);
+
+		if(index == -1)
+			return PooledBuffer.wrap(ByteBuffer.allocate(capacity));
+
+		if(direct)
+			index += CLASSES;
+
+		SizeClass sizeClass = CLASSES_BY_INDEX[index];
+		ThreadCache cache = CACHES.get();
+		PooledBuffer buffer;
+
+		if(cache == null) {
+			buffer = sizeClass.take();
+		}
+		else {
+			PooledBuffer[] buffers = cache.buffers[index];
+
+			if(cache.counts[index] == 0)
+				cache.counts[index] = sizeClass.takeBatch(buffers);
+
+			if(cache.counts[index] > 0) {
+				buffer = buffers[--cache.counts[index]];
+				buffers[cache.counts[index]] = null;
+			}
+			else {
+				buffer = sizeClass.newBuffer();
+			}
+		}
+
+		buffer.reset();
+
+		return buffer;
+	}
+
+	/**
+	 * takes back a buffer whose last reference was released.
+	 */
+	static void recycle(PooledBuffer buffer) {
+		int index = buffer.sizeClass();
+
+		if(index == -1)
+			return;
+
+		SizeClass sizeClass = CLASSES_BY_INDEX[index];
+		ThreadCache cache = CACHES.get();
+
+		if(cache == null) {
+			sizeClass.give(buffer);
+			return;
+		}
+
+		PooledBuffer[] buffers = cache.buffers[index];
+
+		//full, a batch goes to the shared list to be taken by threads that run short
+		if(cache.counts[index] == buffers.length) {
+			int kept = buffers.length - sizeClass.batch;
+
+			sizeClass.giveBatch(buffers, kept, buffers.length);
+			cache.counts[index] = kept;
+		}
+
+		buffers[cache.counts[index]++] = buffer;
+	}
+
+	/**
+	 * @return index of the smallest heap class holding capacity bytes, -1 if none does
+	 */
+	private static int classOf(int capacity) {
+		for(int i = 0; i < CLASSES; i++) {
+			if(capacity <= CLASSES_BY_INDEX[i].size)
+				return i;
+		}
+
+		return -1;
+	}
+}//end BufferPool class
@@ -9,6 +9,14 @@
  * disconnect. Multiple clients can connect 
  * to one server.
  * 
+ * The connection itself lives in ChatClientConnection,
+ * this window only observes it and passes on what the
+ * user types. A lost connection is got back on its own,
+ * chatting is only disabled while it is.
+ * 
+ * Run with -Dcom.jmcnutt.chat.tls=true to connect over TLS,
+ * trusting the certificates javax.net.ssl.trustStore names.
+ * 
  * @author Johnathan McNutt
  */
 package com.jmcnutt.chat;
@@ -17,12 +25,7 @@ import java.awt.BorderLayout;
 import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.ConnectException;
-import java.net.Socket;
 import java.util.Random;
 
 import javax.swing.JButton;
@@ -31,19 +34,18 @@ import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
-import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.ScrollPaneConstants;
-import javax.swing.Timer;
+import javax.swing.SwingUtilities;
 
-public class ChatClient extends JFrame implements ActionListener {
-	private Socket _clientSocket;
+public class ChatClient extends JFrame implements ActionListener, ChatClientListener {
+	//system property asking for TLS
+	public static final String TLS_PROPERTY = "com.jmcnutt.chat.tls";
 	
-	private DataOutputStream _outToServer;
-	private BufferedReader _inFromUser;
+	//the connection to the chatroom, null while disconnected
+	private ChatClientConnection _connection;
 	
 	private String _clientSentence;
-	private String _serverSentence;
 	
 	//panel containing all other panels
 	private JPanel _pContainer = new JPanel(new BorderLayout());
@@ -63,7 +65,9 @@ public class ChatClient extends JFrame implements ActionListener {
 	private JLabel _port = new JLabel("Port:");
 	private JTextField _portEntry = new JTextField("4444");
 	private JButton _connect = new JButton("Connect");
-	private JTextArea _chat = new JTextArea("");
+	//lines shown in the chat area, oldest dropped past its capacity
+	private ChatHistoryModel _history = new ChatHistoryModel();
+	private ChatHistoryList _chat = new ChatHistoryList(this._history);
 	private JTextField _chatEntry = new JTextField("");
 	private JButton _send = new JButton("Send");
 	
@@ -92,7 +96,6 @@ public class ChatClient extends JFrame implements ActionListener {
 		this._pContainer.add(this._pSouth, BorderLayout.SOUTH);
 		
 		//chat functionality disabled until connection is made
-		this._chat.setEditable(false);
 		this._chatEntry.setEditable(false);
 		this._send.setEnabled(false);	
 		
@@ -105,65 +108,79 @@ public class ChatClient extends JFrame implements ActionListener {
 	}
 	
 	/**
-	 * looks for responses 4 times a second
+	 * enables chatting once the server has let the user in,
+	 * or let them back in. Called on the connection's thread.
 	 */
-	private ActionListener taskPerformer = new ActionListener(){
-		public void actionPerformed(ActionEvent e){
-			checkInput();
-		}
-	};
+	@Override
+	public void joined(int sessionId) {
+		SwingUtilities.invokeLater(new Runnable(){
+			public void run(){
+				_send.setEnabled(true);
+				_chatEntry.setEditable(true);
+			}
+		});
+	}
 	
 	/**
-	 * sets up reader and writer elements if not set up or
-	 * checks for messages on open reader
+	 * disables chatting until the connection is back.
+	 * Called on the connection's thread.
 	 */
-	private void checkInput() {
-		try{
-			//sets up streams if not set up
-			if(this._outToServer == null){
-				this.initConnection();
+	@Override
+	public void reconnecting(final int attempt, final long delay) {
+		SwingUtilities.invokeLater(new Runnable(){
+			public void run(){
+				_send.setEnabled(false);
+				_chatEntry.setEditable(false);
+				
+				_history.append(String.format("Connection lost, trying again in %.1f seconds (attempt %d)",
+						delay / 1000.0, attempt));
 			}
-			//displays message if one has been received from server
-			if(this._inFromUser.ready()){
-				this._serverSentence = this._inFromUser.readLine();
+		});
+	}
+	
+	/**
+	 * tells the user why they couldn't join. Called on the connection's thread.
+	 */
+	@Override
+	public void joinFailed(final String reason) {
+		SwingUtilities.invokeLater(new Runnable(){
+			public void run(){
+				JOptionPane.showMessageDialog(null, reason);
 				
-				if(this._serverSentence != null){
-					//if server exits client also disconnects
-					if(this._serverSentence.equals("EXIT")){
-						this.exitRoom();
-					}
-					else
-						this._chat.append(this._serverSentence + "\n");
-				}
+				exitRoom();
 			}
-		}
-		catch(ConnectException e){
-			JOptionPane.showMessageDialog(null, "Chat room is currently full");
-			
-			this.exitRoom();
-		}
-		catch(Exception e){
-			JOptionPane.showMessageDialog(null, "Unknown Exception: " + e.toString());
-		}	
+		});
+	}
+	
+	/**
+	 * shows a chatroom line. Called on the connection's thread.
+	 */
+	@Override
+	public void chatMessage(String line) {
+		this._history.appendLater(line);
+	}
+	
+	/**
+	 * resets the window after the server closed the room
+	 * for good, or it couldn't be reached again.
+	 */
+	@Override
+	public void disconnected() {
+		SwingUtilities.invokeLater(new Runnable(){
+			public void run(){
+				exitRoom();
+			}
+		});
 	}
-
-	//handles automatic message checking
-	private Timer _frameHandler = new Timer(250, taskPerformer);
 	
 	/**
 	 * removes the client from the current chatroom
 	 */
 	private void exitRoom(){
-		try {
-			this._clientSocket.close();
-		}
-		catch(IOException ex){
-			//closing a socket requires IOException throw or handle
-		}
+		if(this._connection != null)
+			this._connection.leave();
 		
-		this._clientSocket = null;
-		this._inFromUser = null;
-		this._outToServer = null;
+		this._connection = null;
 		
 		this._usernameEntry.setEditable(true);
 		this._hostEntry.setEditable(true);
@@ -172,8 +189,6 @@ public class ChatClient extends JFrame implements ActionListener {
 		this._send.setEnabled(false);
 		this._chatEntry.setEditable(false);
 		
-		this._frameHandler.stop();
-		
 		this._connect.setText("Connect");
 	}
 	
@@ -195,57 +210,30 @@ public class ChatClient extends JFrame implements ActionListener {
 	}
 	
 	/**
-	 * initializes connection to host
-	 * 
-	 * @throws ConnectionException - chatroom full
-	 */
-	private void initConnection() throws IOException, ConnectException, InterruptedException {
-			this._outToServer = 
-					new DataOutputStream(this._clientSocket.getOutputStream());
-		
-			this._inFromUser = new BufferedReader
-					(new InputStreamReader(this._clientSocket.getInputStream()));
-			
-			this._outToServer.writeBytes(this._usernameEntry.getText() + "\n");
-			
-			//gives server time to respond
-			Thread.sleep(1000);
-			
-			if(this._inFromUser.ready()){
-				this._serverSentence = this._inFromUser.readLine();
-				
-				if(this._serverSentence.equals("FULL"))
-					throw new ConnectException("Chat room is currently full");
-				
-				this._chat.append(this._serverSentence + "\n");
-			}
-			else
-				throw new ConnectException("Chat room is currently full");		
-	}
-	
-	/**
-	 * attempts to connect to a server
+	 * starts connecting to a server. Chatting is enabled once
+	 * the server accepts the username, until then Disconnect
+	 * abandons the attempt.
 	 */
 	private void connect(){
 		try{
-			this._clientSocket = 
-					new Socket(this._hostEntry.getText(), Integer.parseInt(this._portEntry.getText())); 
+			this._connection = new ChatClientConnection(this._hostEntry.getText(),
+					Integer.parseInt(this._portEntry.getText()), this._usernameEntry.getText());
+			this._connection.addListener(this);
+			
+			if(Boolean.getBoolean(TLS_PROPERTY))
+				this._connection.setSslContext(javax.net.ssl.SSLContext.getDefault());
+			
+			this._connection.connect();
 			
 			this._connect.setText("Disconnect");
-			this._chatEntry.setEditable(true);
-			this._send.setEnabled(true);
 			
 			this._usernameEntry.setEditable(false);
 			this._hostEntry.setEditable(false);
 			this._portEntry.setEditable(false);
-			
-			this._frameHandler.start();
-		}
-		//called if host cannot be found at address and port
-		catch(ConnectException e){
-			JOptionPane.showMessageDialog(null, "Host " + this._hostEntry.getText() + " at Port " + this._portEntry.getText() + " not found.");	
 		}
 		catch(Exception e){
+			this._connection = null;
+			
 			JOptionPane.showMessageDialog(null, "Unknown Exception: " + e.toString());
 		}
 	}
@@ -255,26 +243,10 @@ public class ChatClient extends JFrame implements ActionListener {
 	 * disconnects the user from the server.
 	 */
 	private void disconnect() {
-		try { 
-			if(this._clientSocket.isConnected()){
-				this._clientSentence = this._usernameEntry.getText() + " has left the room.\n";
-			
-				this._chat.append("You have left the room.\n");
+		if(this._connection.getState() == ChatClientConnection.State.JOINED)
+			this._history.append("You have left the room.");
 				
-				this._outToServer.writeBytes(this._clientSentence);
-
-				this._clientSentence = "EXIT";
-			
-				this._outToServer.writeBytes(this._clientSentence);
-			}
-		}
-		catch(java.net.SocketException e) {
-			//called if server can't be reached
-		}
-        catch(Exception e) {  
-        	JOptionPane.showMessageDialog(null, "Unknown Exception: " + e.toString());
-        }
-		
+		//the server lets everyone else know
 		this.exitRoom();
 	}
 	
@@ -284,27 +256,21 @@ public class ChatClient extends JFrame implements ActionListener {
 	 * server.
 	 */
 	private void send() {
-		//prevents users from entering exit command
-		if(this._chatEntry.getText().equals("EXIT"))
-			this._chatEntry.setText("EXIT ");
-		
 		try { 
-			this._clientSentence = this._usernameEntry.getText() + ": " + this._chatEntry.getText() + "\n";
-			
-			this._outToServer.writeBytes(this._clientSentence);
+			this._clientSentence = this._chatEntry.getText();
+		
+			//the server adds the username before relaying
+			this._connection.send(this._clientSentence);
 			
-			this._chat.append("You: " + this._chatEntry.getText() + "\n");
+			this._history.append("You: " + this._clientSentence);
 			
 			this._chatEntry.setText("");
 		}
-		catch(java.net.SocketException e) {	
-			this._chat.append("Connection to host ended abruptly\n");
+		catch(IOException e) {	
+			this._history.append("Connection to host ended abruptly");
 			this._chatEntry.setText("");
 			
 			this.exitRoom();
 		}
-        catch(Exception e){  
-        	JOptionPane.showMessageDialog(null, "Unknown Exception: " + e.toString());
-        }
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,766 @@
+/**
+ * The client's connection to a chatroom, without any
+ * window. Connecting and joining run on a thread of their
+ * own so the caller never waits on the network, and once
+ * joined that thread stays on to read from the server:
+ *
+ *   DISCONNECTED -> CONNECTING   connect is called
+ *   CONNECTING   -> JOINING      socket open, preamble and HELLO sent
+ *   JOINING      -> JOINED       server answered ACCEPT
+ *   JOINED       -> RECONNECTING connection broke or the room closed
+ *   RECONNECTING -> CONNECTING   the reconnect delay has passed
+ *
+ * Any failure on the way, a REJECT, or no answer within
+ * the timeout returns the connection to DISCONNECTED and
+ * is reported through ChatClientListener.joinFailed, so a
+ * slow server is never mistaken for a full one.
+ *
+ * A joined connection that is lost is got back without
+ * the user doing anything. Each attempt waits a random
+ * time of up to the reconnect delay, doubled for every
+ * attempt that failed before it up to the maximum, so
+ * clients dropped together, by a server restart say, come
+ * back spread out rather than all at once. Servers that
+ * speak version 2 of the protocol tell the client which
+ * room it is in and give every message an id; both are
+ * handed back when reconnecting, so the client returns to
+ * the same room and is sent the messages it missed.
+ *
+ * Long messages are sent compressed to servers that speak
+ * version 3 of the protocol, and such servers may send
+ * long messages back compressed. Servers that speak
+ * version 4 ping a client that has been quiet for a while,
+ * and the reader answers at once, so a client that only
+ * reads isn't taken for one that has gone.
+ *
+ * Given an SSLContext the connection speaks TLS, with the
+ * handshake held to the join timeout. Reconnects reuse the
+ * context, so they resume the earlier TLS session instead
+ * of making a full handshake again.
+ *
+ * The reader blocks until a frame arrives rather than
+ * polling, so messages are handed on as fast as the server
+ * sends them.
+ *
+ * Sent messages are buffered and flushed at most once per
+ * flush window. A message sent after a quiet spell is
+ * flushed straight away, one sent within the window of the
+ * last flush waits for the window to end along with any
+ * sent after it, so a fast sender makes one write per
+ * window instead of one per message. Nagle's algorithm is
+ * turned off since the buffering already does its job.
+ *
+ * Leaving sends LEAVE and closes the sending half of the
+ * socket, then waits a moment for the server to close its
+ * end, so the LEAVE isn't lost to a reset.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSocket;
+
+public class ChatClientConnection {
+	//milliseconds allowed for the socket to connect
+	public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+	//milliseconds allowed for the server to answer the HELLO
+	public static final int DEFAULT_JOIN_TIMEOUT = 5000;
+	//microseconds sent messages may wait to be flushed together
+	public static final int DEFAULT_FLUSH_WINDOW = 1000;
+	//most milliseconds the first reconnect waits, doubled for each attempt after
+	public static final int DEFAULT_RECONNECT_DELAY = 500;
+	//most milliseconds any reconnect waits
+	public static final int DEFAULT_MAX_RECONNECT_DELAY = 30000;
+	//attempts made to get a lost connection back
+	public static final int DEFAULT_RECONNECT_ATTEMPTS = 10;
+
+	//bytes of messages buffered before they are written regardless of the window
+	private static final int OUTPUT_BUFFER_SIZE = 16 * 1024;
+	//milliseconds leave waits for the server to close its end
+	private static final int LEAVE_TIMEOUT = 1000;
+
+	//flushes buffered messages, starts reconnects and closes left sockets for every connection
+	private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactory(){
+				public Thread newThread(Runnable task){
+					Thread thread = new Thread(task, "ChatClient-Timer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/**
+	 * where the connection is in joining the room
+	 */
+	public enum State {
+		DISCONNECTED,
+		CONNECTING,
+		JOINING,
+		JOINED,
+		//waiting out the delay before trying to get a lost connection back
+		RECONNECTING
+	}
+
+	private final String _host;
+	private final int _port;
+	private final String _username;
+
+	private int _connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private int _joinTimeout = DEFAULT_JOIN_TIMEOUT;
+	private int _flushWindow = DEFAULT_FLUSH_WINDOW;
+	//socket buffer sizes, 0 leaves the system default
+	private int _sendBufferSize;
+	private int _receiveBufferSize;
+	private int _reconnectDelay = DEFAULT_RECONNECT_DELAY;
+	private int _maxReconnectDelay = DEFAULT_MAX_RECONNECT_DELAY;
+	private int _reconnectAttempts = DEFAULT_RECONNECT_ATTEMPTS;
+	//null speaks plain text
+	private volatile SSLContext _sslContext;
+
+	//guarded by this, read without the lock by getState
+	private volatile State _state = State.DISCONNECTED;
+
+	//socket of the latest attempt, replaced by every reconnect, guarded by this
+	private volatile Socket _socket;
+	private DataOutputStream _outToServer;
+
+	//id the server gave this client, known once joined
+	private int _sessionId;
+
+	//reconnect attempts since the connection was lost, 0 once joined, guarded by this
+	private int _attempt;
+	//protocol version the server last answered with
+	private volatile byte _serverVersion;
+	//room the server last said the client is in, null until told
+	private volatile String _room;
+	//id of the last message received that carried one
+	private volatile long _lastMessageId = ChatProtocol.NO_ID;
+
+	//guarded by _outToServer
+	private long _lastFlush;
+	private boolean _flushScheduled;
+
+	//flushes what was sent during a window, made once
+	private final Runnable _windowFlush = new Runnable(){
+		public void run(){
+			windowEnded();
+		}
+	};
+
+	//starts a reconnect once its delay has passed, made once
+	private final Runnable _reconnect = new Runnable(){
+		public void run(){
+			reconnect();
+		}
+	};
+
+	private CopyOnWriteArrayList<ChatClientListener> _listeners = new CopyOnWriteArrayList<ChatClientListener>();
+
+	/**
+	 * creates a connection to a chatroom. Nothing is opened
+	 * until connect is called.
+	 *
+	 * @param host - name or address of the server
+	 * @param port - port the server accepts clients on
+	 * @param username - name to join the room with
+	 */
+	public ChatClientConnection(String host, int port, String username) {
+		this._host = host;
+		this._port = port;
+		this._username = username;
+	}
+
+	/**
+	 * @param listener - observer to be told about the connection
+	 */
+	public void addListener(ChatClientListener listener) {
+		this._listeners.add(listener);
+	}
+
+	/**
+	 * @param listener - observer to stop telling about the connection
+	 */
+	public void removeListener(ChatClientListener listener) {
+		this._listeners.remove(listener);
+	}
+
+	/**
+	 * @param millis - milliseconds allowed for the socket to connect
+	 */
+	public void setConnectTimeout(int millis) {
+		this._connectTimeout = millis;
+	}
+
+	/**
+	 * @param millis - milliseconds allowed for the server to answer the HELLO
+	 */
+	public void setJoinTimeout(int millis) {
+		this._joinTimeout = millis;
+	}
+
+	/**
+	 * @param micros - microseconds sent messages may wait to be flushed together, 0 flushes every send
+	 */
+	public void setFlushWindow(int micros) {
+		this._flushWindow = micros;
+	}
+
+	/**
+	 * @param bytes - socket send buffer size, 0 for the system default
+	 */
+	public void setSendBufferSize(int bytes) {
+		this._sendBufferSize = bytes;
+	}
+
+	/**
+	 * @param bytes - socket receive buffer size, 0 for the system default
+	 */
+	public void setReceiveBufferSize(int bytes) {
+		this._receiveBufferSize = bytes;
+	}
+
+	/**
+	 * @param context - context trusting the server's certificate, null to speak plain text
+	 */
+	public void setSslContext(SSLContext context) {
+		this._sslContext = context;
+	}
+
+	/**
+	 * @param millis - most milliseconds the first reconnect waits, doubled for each attempt after
+	 */
+	public void setReconnectDelay(int millis) {
+		this._reconnectDelay = millis;
+	}
+
+	/**
+	 * @param millis - most milliseconds any reconnect waits
+	 */
+	public void setMaxReconnectDelay(int millis) {
+		this._maxReconnectDelay = millis;
+	}
+
+	/**
+	 * @param attempts - attempts made to get a lost connection back, 0 never reconnects
+	 */
+	public synchronized void setReconnectAttempts(int attempts) {
+		this._reconnectAttempts = attempts;
+	}
+
+	/**
+	 * @return where the connection is in joining the room
+	 */
+	public State getState() {
+		return this._state;
+	}
+
+	/**
+	 * @return id the server gave this client, 0 until joined
+	 */
+	public int getSessionId() {
+		return this._sessionId;
+	}
+
+	/**
+	 * @return room the server last said the client is in, null if it hasn't
+	 */
+	public String getRoom() {
+		return this._room;
+	}
+
+	/**
+	 * @return id of the last message received that carried one, -1 if none has
+	 */
+	public long getLastMessageId() {
+		return this._lastMessageId;
+	}
+
+	/**
+	 * starts connecting and joining in the background. The
+	 * outcome, and every message after joining, is reported
+	 * to the listeners. The client joins the lobby.
+	 *
+	 * @throws IllegalStateException - already connected or connecting
+	 */
+	public synchronized void connect() {
+		if(this._state != State.DISCONNECTED)
+			throw new IllegalStateException("Already " + this._state);
+
+		//nothing to resume from an earlier connection
+		this._attempt = 0;
+		this._room = null;
+		this._lastMessageId = ChatProtocol.NO_ID;
+
+		this.open();
+	}
+
+	/**
+	 * sends a message to everyone else in the room. The
+	 * message is flushed within the flush window.
+	 *
+	 * @param text - message as typed, the server adds the username
+	 * @throws IOException - the connection to the server broke
+	 */
+	public void send(String text) throws IOException {
+		if(this._state != State.JOINED)
+			throw new IOException("Not joined");
+
+		this.writeFrame(ChatProtocol.MESSAGE, text, false);
+	}
+
+	/**
+	 * writes every buffered message now, without waiting
+	 * for the flush window to end.
+	 *
+	 * @throws IOException - the connection to the server broke
+	 */
+	public void flush() throws IOException {
+		DataOutputStream out = this._outToServer;
+
+		if(out == null)
+			return;
+
+		synchronized(out) {
+			this.flushNow(out);
+		}
+	}
+
+	/**
+	 * tells the server the client is leaving and closes the
+	 * connection. Listeners are not told, the caller knows.
+	 * Also abandons a connect, join or reconnect in progress.
+	 */
+	public void leave() {
+		State state;
+		Socket socket;
+
+		//disconnected first, so the server closing its end isn't reported as lost
+		synchronized(this) {
+			state = this._state;
+			socket = this._socket;
+			this._state = State.DISCONNECTED;
+		}
+
+		if(state == State.JOINED) {
+			try {
+				this.writeFrame(ChatProtocol.LEAVE, "", true);
+
+				//the server closes its end once it reads the LEAVE, which ends the reader
+				socket.shutdownOutput();
+				this.closeLater(socket);
+				return;
+			}
+			catch(IOException e) {
+				//server can't be reached, nothing to tell it
+			}
+		}
+
+		//a lost connection's socket is already closed
+		if(state != State.DISCONNECTED && state != State.RECONNECTING)
+			closeSocket(socket);
+	}
+
+	/**
+	 * starts an attempt on a new socket. Called holding the lock.
+	 */
+	private void open() {
+		this._state = State.CONNECTING;
+
+		final Socket socket = new Socket();
+		this._socket = socket;
+
+		Thread thread = new Thread(new Runnable(){
+			public void run(){
+				DataInputStream in = join(socket);
+
+				if(in != null)
+					readFrames(socket, in);
+			}
+		}, "ChatClient-Connection");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * the timer, once a reconnect's delay has passed. Starts
+	 * the attempt unless the client left meanwhile.
+	 */
+	private synchronized void reconnect() {
+		if(this._state == State.RECONNECTING)
+			this.open();
+	}
+
+	/**
+	 * the reader. Passes every frame from the server on to the
+	 * listeners until the room closes or the connection is
+	 * lost. Once the client has left it reads on, ignoring what
+	 * arrives, until the server closes its end.
+	 *
+	 * @param socket - socket of the joined attempt
+	 * @param in - stream from the server
+	 */
+	private void readFrames(Socket socket, DataInputStream in) {
+		try {
+			while(true) {
+				ChatProtocol.Frame frame = ChatProtocol.readFrame(in);
+
+				//left, waiting for the server to close its end
+				if(this._state != State.JOINED || this._socket != socket)
+					continue;
+
+				//if server exits client also disconnects, and comes back if it can
+				if(frame.type == ChatProtocol.LEAVE) {
+					this.ended(socket, null);
+				}
+				else if(frame.type == ChatProtocol.ROOM) {
+					this._room = frame.payload;
+				}
+				else if(frame.type == ChatProtocol.PING) {
+					this.writeFrame(ChatProtocol.PONG, "", true);
+				}
+				else if(frame.type == ChatProtocol.MESSAGE || frame.type == ChatProtocol.NOTICE) {
+					if(frame.id != ChatProtocol.NO_ID)
+						this._lastMessageId = frame.id;
+
+					this.fireChatMessage(frame.payload);
+				}
+			}
+		}
+		catch(IOException e) {
+			//server closed the connection without saying goodbye, or the client left
+			this.ended(socket, null);
+		}
+		finally {
+			closeSocket(socket);
+		}
+	}
+
+	/**
+	 * the connect thread. Opens the socket, says hello and
+	 * waits, at most the join timeout, for the server's answer.
+	 *
+	 * @param socket - unconnected socket made by open
+	 * @return stream from the server, null if the client didn't join
+	 */
+	private DataInputStream join(Socket socket) {
+		try {
+			socket.setTcpNoDelay(true);
+
+			if(this._sendBufferSize > 0)
+				socket.setSendBufferSize(this._sendBufferSize);
+
+			//set before connecting so a large window can be agreed
+			if(this._receiveBufferSize > 0)
+				socket.setReceiveBufferSize(this._receiveBufferSize);
+
+			socket.connect(new InetSocketAddress(this._host, this._port), this._connectTimeout);
+
+			//reads below, the handshake's included, give up once the timeout passes without a byte
+			socket.setSoTimeout(this._joinTimeout);
+
+			//the connected socket is still the one closed and compared, the layer closes with it
+			Socket stream = socket;
+			SSLContext context = this._sslContext;
+
+			if(context != null) {
+				SSLSocket secure = (SSLSocket)context.getSocketFactory().createSocket(socket, this._host,
+						this._port, true);
+				secure.startHandshake();
+				stream = secure;
+			}
+
+			this._outToServer = new DataOutputStream(new BufferedOutputStream(stream.getOutputStream(),
+					OUTPUT_BUFFER_SIZE));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(stream.getInputStream()));
+
+			if(!this.advance(State.CONNECTING, State.JOINING))
+				return null;
+
+			synchronized(this._outToServer) {
+				this._outToServer.write(ChatProtocol.preamble(ChatProtocol.VERSION));
+				this._outToServer.write(this.hello());
+				this.flushNow(this._outToServer);
+			}
+
+			byte[] preamble = new byte[ChatProtocol.PREAMBLE_SIZE];
+			in.readFully(preamble);
+
+			byte version = ChatProtocol.readPreamble(ByteBuffer.wrap(preamble));
+
+			//servers from before the binary protocol answer with a line instead
+			if(version < 1)
+				throw new ProtocolException("Unsupported protocol version");
+
+			this._serverVersion = version;
+
+			ChatProtocol.Frame answer = ChatProtocol.readFrame(in);
+
+			socket.setSoTimeout(0);
+
+			if(answer.type == ChatProtocol.REJECT) {
+				this.ended(socket, answer.payload);
+				return null;
+			}
+
+			if(answer.type != ChatProtocol.ACCEPT)
+				throw new ProtocolException("Expected ACCEPT, got frame type " + answer.type);
+
+			this._sessionId = answer.sender;
+
+			if(!this.accepted())
+				return null;
+
+			for(ChatClientListener listener : this._listeners)
+				listener.joined(this._sessionId);
+
+			return in;
+		}
+		//called if no answer came before the connect or join timeout
+		catch(SocketTimeoutException e) {
+			this.ended(socket, "Host " + this._host + " did not answer in time");
+		}
+		catch(UnknownHostException e) {
+			this.ended(socket, "Host " + this._host + " not found.");
+		}
+		//called if host cannot be found at address and port
+		catch(ConnectException e) {
+			this.ended(socket, "Host " + this._host + " at Port " + this._port + " not found.");
+		}
+		catch(ProtocolException e) {
+			this.ended(socket, "Host " + this._host + " is not a compatible chat server.");
+		}
+		//called if the handshake failed, an untrusted certificate or a server without TLS
+		catch(SSLException e) {
+			this.ended(socket, "Secure connection to host " + this._host + " failed: " + e.getMessage());
+		}
+		catch(IOException e) {
+			this.ended(socket, "Connection to host ended abruptly");
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return the HELLO for the next attempt, asking to resume
+	 * once a server has said which room the client is in
+	 */
+	private byte[] hello() {
+		String room = this._room;
+
+		//servers before version 2 would take the room for part of the name
+		if(room == null || this._serverVersion < ChatProtocol.RESUME_VERSION)
+			return ChatProtocol.frameBytes(ChatProtocol.HELLO, ChatProtocol.SERVER_ID, this._username);
+
+		return ChatProtocol.frameBytes(ChatProtocol.HELLO, ChatProtocol.SERVER_ID, this._lastMessageId,
+				this._username + ChatProtocol.ROOM_SEPARATOR + room);
+	}
+
+	/**
+	 * moves the connection on unless it was closed meanwhile.
+	 *
+	 * @param from - state the connection should still be in
+	 * @param to - state to move to
+	 * @return false if the connection was closed
+	 */
+	private synchronized boolean advance(State from, State to) {
+		if(this._state != from)
+			return false;
+
+		this._state = to;
+		return true;
+	}
+
+	/**
+	 * moves a joining connection to JOINED, so a later loss
+	 * starts its reconnect attempts over.
+	 *
+	 * @return false if the connection was closed
+	 */
+	private synchronized boolean accepted() {
+		if(!this.advance(State.JOINING, State.JOINED))
+			return false;
+
+		this._attempt = 0;
+		return true;
+	}
+
+	/**
+	 * writes a single frame, keeping frames from different
+	 * threads from interleaving. Unless told to flush, the
+	 * frame is flushed now if the last flush was at least a
+	 * window ago, or else when the window ends.
+	 *
+	 * @param flush - whether to flush straight away
+	 */
+	private void writeFrame(byte type, String payload, boolean flush) throws IOException {
+		DataOutputStream out = this._outToServer;
+
+		synchronized(out) {
+			//servers before version 3 can't read compressed frames
+			boolean compress = this._serverVersion >= ChatProtocol.COMPRESS_VERSION &&
+					payload.length() >= ChatProtocol.COMPRESS_THRESHOLD;
+
+			out.write(ChatProtocol.frameBytes(type, ChatProtocol.SERVER_ID, ChatProtocol.NO_ID, payload, compress));
+
+			//already waiting on a window to end
+			if(this._flushScheduled && !flush)
+				return;
+
+			long sinceFlush = System.nanoTime() - this._lastFlush;
+			long window = TimeUnit.MICROSECONDS.toNanos(this._flushWindow);
+
+			if(flush || sinceFlush >= window) {
+				this.flushNow(out);
+			}
+			else {
+				this._flushScheduled = true;
+				TIMER.schedule(this._windowFlush, window - sinceFlush, TimeUnit.NANOSECONDS);
+			}
+		}
+	}
+
+	/**
+	 * writes everything buffered. Called holding the stream's lock.
+	 */
+	private void flushNow(DataOutputStream out) throws IOException {
+		out.flush();
+
+		this._lastFlush = System.nanoTime();
+	}
+
+	/**
+	 * the timer. Writes what was sent during a window once it ends.
+	 */
+	private void windowEnded() {
+		DataOutputStream out = this._outToServer;
+		Socket socket = this._socket;
+
+		try {
+			synchronized(out) {
+				this._flushScheduled = false;
+				this.flushNow(out);
+			}
+		}
+		catch(IOException e) {
+			//the reader notices the broken connection too, ended only acts once
+			this.ended(socket, null);
+		}
+	}
+
+	/**
+	 * ends an attempt that failed or a joined connection that
+	 * was lost. Another attempt is scheduled if the connection
+	 * had joined, or was already reconnecting, and attempts are
+	 * left; otherwise the connection returns to DISCONNECTED.
+	 * Does nothing if the client left or the socket belongs to
+	 * an attempt already ended.
+	 *
+	 * @param socket - socket of the attempt that ended
+	 * @param reason - why joining failed, fit to show the user, null if a joined connection was lost
+	 */
+	private void ended(Socket socket, String reason) {
+		boolean firstConnect;
+		int attempt = 0;
+		long delay = 0;
+
+		synchronized(this) {
+			if(socket != this._socket || this._state == State.DISCONNECTED || this._state == State.RECONNECTING)
+				return;
+
+			boolean wasJoined = this._state == State.JOINED;
+			firstConnect = !wasJoined && this._attempt == 0;
+
+			closeSocket(socket);
+
+			//a failed first connect is left to the user to try again
+			if(!firstConnect && this._attempt < this._reconnectAttempts) {
+				attempt = ++this._attempt;
+				delay = this.backoff(attempt);
+
+				this._state = State.RECONNECTING;
+				TIMER.schedule(this._reconnect, delay, TimeUnit.MILLISECONDS);
+			}
+			else {
+				this._state = State.DISCONNECTED;
+			}
+		}
+
+		for(ChatClientListener listener : this._listeners) {
+			if(attempt > 0)
+				listener.reconnecting(attempt, delay);
+			else if(firstConnect)
+				listener.joinFailed(reason);
+			else
+				listener.disconnected();
+		}
+	}
+
+	/**
+	 * picks the delay before a reconnect at random, anywhere
+	 * from none to the reconnect delay doubled for every
+	 * attempt before it, at most the maximum. Spreading over
+	 * the whole range keeps clients that lost their connection
+	 * together from coming back together.
+	 *
+	 * @param attempt - attempt about to be made, from 1
+	 * @return milliseconds to wait
+	 */
+	private long backoff(int attempt) {
+		long ceiling = Math.min(this._maxReconnectDelay, (long)this._reconnectDelay << Math.min(attempt - 1, 30));
+
+		return ThreadLocalRandom.current().nextLong(ceiling + 1);
+	}
+
+	/**
+	 * closes a left socket after the leave timeout, in case
+	 * the server never closes its end.
+	 */
+	private void closeLater(final Socket socket) {
+		TIMER.schedule(new Runnable(){
+			public void run(){
+				closeSocket(socket);
+			}
+		}, LEAVE_TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * closes a socket, which also ends its reader.
+	 */
+	private static void closeSocket(Socket socket) {
+		try {
+			socket.close();
+		}
+		catch(IOException ex){
+			//closing a socket requires IOException throw or handle
+		}
+	}
+
+	/**
+	 * passes a chatroom line on to every listener.
+	 */
+	private void fireChatMessage(String line) {
+		for(ChatClientListener listener : this._listeners)
+			listener.chatMessage(line);
+	}
+}//end ChatClientConnection class
@@ -0,0 +1,58 @@
+/**
+ * Observer of a ChatClientConnection. Lets the client
+ * window follow the connection through joining, chatting
+ * and leaving without the connection knowing anything
+ * about the window.
+ *
+ * Methods are called on the connection's own threads, so
+ * implementations should return quickly and hand any
+ * GUI work off to the event dispatch thread.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+public interface ChatClientListener {
+
+	/**
+	 * called once the server has accepted the username.
+	 *
+	 * @param sessionId - id the server gave this client
+	 */
+	void joined(int sessionId);
+
+	/**
+	 * called when the connection or the join could not be
+	 * completed. The connection is closed afterwards.
+	 *
+	 * @param reason - why the client could not join, fit to show the user
+	 */
+	void joinFailed(String reason);
+
+	/**
+	 * called for every line the chatroom shows, including
+	 * joins, leaves and other clients' messages.
+	 *
+	 * @param line - the line without its terminator
+	 */
+	void chatMessage(String line);
+
+	/**
+	 * called when a joined connection ends, either because
+	 * the server closed the room or the connection broke,
+	 * and it won't be reconnected, or when reconnecting
+	 * has given up. Not called when the client leaves on
+	 * its own.
+	 */
+	void disconnected();
+
+	/**
+	 * called when a joined connection ends, or an attempt to
+	 * get it back fails, and another attempt will be made.
+	 * joined is called again once the client is back.
+	 *
+	 * @param attempt - attempts made so far, counting the coming one
+	 * @param delay - milliseconds until the attempt
+	 */
+	void reconnecting(int attempt, long delay);
+}
@@ -0,0 +1,67 @@
+/**
+ * Shows a ChatHistoryModel one line per row. Every row
+ * has the same height and takes the width of the list,
+ * so Swing lays out and paints only the rows in view and
+ * never measures the rest. Lines too long for the window
+ * are cut short, the whole line shows as a tooltip.
+ *
+ * The list follows the newest line as lines are added.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.awt.event.MouseEvent;
+
+import javax.swing.JList;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+
+public class ChatHistoryList extends JList<String> {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * @param history - lines to show
+	 */
+	public ChatHistoryList(ChatHistoryModel history) {
+		super(history);
+
+		//row height measured once from a sample line
+		this.setPrototypeCellValue("X");
+		//rows take the list's width, see getScrollableTracksViewportWidth
+		this.setFixedCellWidth(1);
+
+		history.addListDataListener(new ListDataListener(){
+			public void intervalAdded(ListDataEvent e){
+				ensureIndexIsVisible(e.getIndex1());
+			}
+
+			public void intervalRemoved(ListDataEvent e){
+			}
+
+			public void contentsChanged(ListDataEvent e){
+			}
+		});
+	}
+
+	/**
+	 * sizes the list, and so every row, to the scroll pane
+	 */
+	@Override
+	public boolean getScrollableTracksViewportWidth() {
+		return true;
+	}
+
+	/**
+	 * @return the whole line under the mouse
+	 */
+	@Override
+	public String getToolTipText(MouseEvent e) {
+		int index = this.locationToIndex(e.getPoint());
+
+		if(index == -1 || !this.getCellBounds(index, index).contains(e.getPoint()))
+			return null;
+
+		return this.getModel().getElementAt(index);
+	}
+}//end ChatHistoryList class
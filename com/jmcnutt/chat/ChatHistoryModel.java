@@ -0,0 +1,162 @@
+/**
+ * The lines a chat window shows, kept in a ring buffer
+ * of fixed capacity. Once full, every new line pushes out
+ * the oldest, so a room left open for days holds no more
+ * memory than one opened a minute ago.
+ *
+ * The capacity defaults to DEFAULT_CAPACITY lines and can
+ * be changed with the system property named by
+ * CAPACITY_PROPERTY, for example -Dcom.jmcnutt.chat.history=500
+ *
+ * Like any Swing model it is changed on the event dispatch
+ * thread, except for appendLater which any thread may call.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.swing.AbstractListModel;
+import javax.swing.SwingUtilities;
+
+public class ChatHistoryModel extends AbstractListModel<String> {
+	private static final long serialVersionUID = 1L;
+
+	//lines kept when no capacity is given
+	public static final int DEFAULT_CAPACITY = 10000;
+	//system property read for the capacity when none is given
+	public static final String CAPACITY_PROPERTY = "com.jmcnutt.chat.history";
+
+	private final String[] _lines;
+	//index of the oldest line in _lines
+	private int _head;
+	private int _size;
+
+	//lines from other threads not yet added, also guards _appendQueued
+	private final ArrayList<String> _pendingLines = new ArrayList<String>();
+	//set while an append is waiting on the event dispatch thread
+	private boolean _appendQueued;
+
+	/**
+	 * creates a history with the capacity from CAPACITY_PROPERTY,
+	 * or DEFAULT_CAPACITY if it isn't set.
+	 */
+	public ChatHistoryModel() {
+		this(Integer.getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY));
+	}
+
+	/**
+	 * @param capacity - most lines kept, older ones are dropped
+	 * @throws IllegalArgumentException - capacity is less than 1
+	 */
+	public ChatHistoryModel(int capacity) {
+		if(capacity < 1)
+			throw new IllegalArgumentException("History capacity must be at least 1, was " + capacity);
+
+		this._lines = new String[capacity];
+	}
+
+	/**
+	 * @return most lines kept
+	 */
+	public int getCapacity() {
+		return this._lines.length;
+	}
+
+	@Override
+	public int getSize() {
+		return this._size;
+	}
+
+	@Override
+	public String getElementAt(int index) {
+		return this._lines[(this._head + index) % this._lines.length];
+	}
+
+	/**
+	 * adds a line after the newest, dropping the oldest if full.
+	 *
+	 * @param line - the line without its terminator
+	 */
+	public void append(String line) {
+		this.appendAll(Collections.singletonList(line));
+	}
+
+	/**
+	 * adds lines after the newest, dropping as many of the oldest
+	 * as needed to make room. Listeners are told once about the
+	 * lines dropped and once about the lines added.
+	 *
+	 * @param lines - lines in the order they arrived
+	 */
+	public void appendAll(List<String> lines) {
+		int capacity = this._lines.length;
+
+		//only the newest lines fit, the rest would be dropped straight away
+		int first = Math.max(0, lines.size() - capacity);
+		int added = lines.size() - first;
+
+		if(added == 0)
+			return;
+
+		int dropped = Math.max(0, this._size + added - capacity);
+
+		if(dropped > 0) {
+			this._head = (this._head + dropped) % capacity;
+			this._size -= dropped;
+
+			this.fireIntervalRemoved(this, 0, dropped - 1);
+		}
+
+		int start = this._size;
+
+		for(int i = first; i < lines.size(); i++) {
+			this._lines[(this._head + this._size) % capacity] = lines.get(i);
+			this._size++;
+		}
+
+		this.fireIntervalAdded(this, start, this._size - 1);
+	}
+
+	/**
+	 * adds a line from any thread. Lines arriving while an append
+	 * is already waiting on the event dispatch thread join it, so
+	 * a busy room costs one update per pass of the event dispatch
+	 * thread rather than one per line.
+	 *
+	 * @param line - the line without its terminator
+	 */
+	public void appendLater(String line) {
+		synchronized(this._pendingLines) {
+			this._pendingLines.add(line);
+
+			if(this._appendQueued)
+				return;
+
+			this._appendQueued = true;
+		}
+
+		SwingUtilities.invokeLater(this._appendPending);
+	}
+
+	/**
+	 * adds every line queued by appendLater since the last update
+	 */
+	private Runnable _appendPending = new Runnable(){
+		public void run(){
+			ArrayList<String> lines;
+
+			synchronized(_pendingLines) {
+				lines = new ArrayList<String>(_pendingLines);
+
+				_pendingLines.clear();
+				_appendQueued = false;
+			}
+
+			appendAll(lines);
+		}
+	};
+}//end ChatHistoryModel class
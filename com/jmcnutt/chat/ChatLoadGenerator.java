@@ -0,0 +1,354 @@
+/**
+ * Headless load generator. Opens a number of bot clients
+ * against a running server, each joining the room through
+ * an ordinary ChatClientConnection, sends messages from
+ * every bot at a steady rate and measures how long each
+ * message takes to reach the other bots.
+ *
+ * Every message carries the time it was sent, so each bot
+ * that receives it can record the delivery latency. Once a
+ * second the rate of messages sent and received and the
+ * latency percentiles for that second are printed, and a
+ * summary over the whole run is printed at the end. Raising
+ * the client count or rate until the received rate stops
+ * keeping up shows where the server saturates.
+ *
+ *   java com.jmcnutt.chat.ChatLoadGenerator [-host h] [-port n] [-clients n]
+ *       [-rate n] [-size bytes] [-duration seconds] [-rooms n] [-tls]
+ *
+ * With -tls the bots connect over TLS, trusting the
+ * certificates javax.net.ssl.trustStore names. They share
+ * one context, so reconnecting bots resume their sessions.
+ *
+ * With -rooms the bots are spread evenly over that many
+ * rooms, so each message only reaches the bots sharing
+ * its sender's room.
+ *
+ * Every bot reads on a thread of its own, so large runs
+ * need "ulimit -n" and "ulimit -u" raised.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ChatLoadGenerator {
+	//options understood by parse, shown when one is wrong
+	public static final String USAGE =
+			"usage: ChatLoadGenerator [-host h] [-port n] [-clients n]\n" +
+			"                         [-rate n] [-size bytes] [-duration seconds] [-rooms n] [-tls]";
+
+	//marks the send time in a message, the server puts "name: " before it
+	private static final String TIMESTAMP_MARK = ": @";
+
+	//milliseconds between progress lines
+	private static final long REPORT_INTERVAL = 1000;
+
+	private String _host = "127.0.0.1";
+	private int _port = ChatServerConfig.DEFAULT_PORT;
+	private int _clients = 10;
+	//messages per second from each bot
+	private double _rate = 1;
+	//length of each message before the server adds the username
+	private int _size = 64;
+	private int _duration = 30;
+	//rooms the bots are spread over, 0 leaves them all in the lobby
+	private int _rooms;
+	private boolean _tls;
+
+	private ChatClientConnection[] _bots;
+
+	private final AtomicLong _sent = new AtomicLong();
+	private final AtomicLong _received = new AtomicLong();
+	private final AtomicLong _sendFailures = new AtomicLong();
+	private final AtomicLong _disconnects = new AtomicLong();
+	private final AtomicLong _reconnects = new AtomicLong();
+
+	//latencies since the last progress line, moved into _total when it is printed
+	private final LatencyHistogram _interval = new LatencyHistogram();
+	private final LatencyHistogram _total = new LatencyHistogram();
+
+	/**
+	 * runs the load generator until the duration has passed.
+	 *
+	 * options are listed in USAGE
+	 */
+	public static void main(String[] args) {
+		ChatLoadGenerator generator = null;
+
+		try {
+			generator = parse(args);
+		}
+		catch(RuntimeException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+
+		try {
+			generator.run();
+		}
+		catch(InterruptedException e) {
+			//exiting anyway
+		}
+	}//end Main
+
+	/**
+	 * reads the load to generate from command line options.
+	 *
+	 * @param args - options as given to main
+	 * @return generator with the options applied
+	 * @throws IllegalArgumentException - unknown or malformed option
+	 */
+	static ChatLoadGenerator parse(String[] args) {
+		ChatLoadGenerator generator = new ChatLoadGenerator();
+
+		try {
+			for(int i = 0; i < args.length; i++) {
+				if(args[i].equals("-host"))
+					generator._host = args[++i];
+				else if(args[i].equals("-port"))
+					generator._port = Integer.parseInt(args[++i]);
+				else if(args[i].equals("-clients"))
+					generator._clients = Integer.parseInt(args[++i]);
+				else if(args[i].equals("-rate"))
+					generator._rate = Double.parseDouble(args[++i]);
+				else if(args[i].equals("-size"))
+					generator._size = Integer.parseInt(args[++i]);
+				else if(args[i].equals("-duration"))
+					generator._duration = Integer.parseInt(args[++i]);
+				else if(args[i].equals("-rooms"))
+					generator._rooms = Integer.parseInt(args[++i]);
+				else if(args[i].equals("-tls"))
+					generator._tls = true;
+				else
+					throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+		catch(ArrayIndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Missing value for " + args[args.length - 1]);
+		}
+
+		if(generator._clients < 1 || generator._rate <= 0 || generator._size < 0 || generator._duration < 1 ||
+				generator._rooms < 0)
+			throw new IllegalArgumentException("Clients, rate and duration must be positive, rooms at least 0");
+
+		return generator;
+	}
+
+	/**
+	 * joins every bot, sends for the duration, prints the
+	 * results and leaves.
+	 */
+	void run() throws InterruptedException {
+		System.out.println("Joining " + this._clients + " clients to " + this._host + ":" + this._port);
+
+		int joined = this.joinBots();
+
+		System.out.println(joined + " joined, " + (this._clients - joined) + " failed");
+
+		if(joined == 0)
+			return;
+
+		ScheduledExecutorService senders = Executors.newScheduledThreadPool(
+				Runtime.getRuntime().availableProcessors(), new ThreadFactory(){
+					public Thread newThread(Runnable task){
+						Thread thread = new Thread(task, "ChatLoadGenerator-Sender");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+
+		long period = (long)(TimeUnit.SECONDS.toNanos(1) / this._rate);
+		Random random = new Random();
+
+		for(final ChatClientConnection bot : this._bots) {
+			if(bot.getState() != ChatClientConnection.State.JOINED)
+				continue;
+
+			//spread over the period so the bots don't all send at once
+			senders.scheduleAtFixedRate(new Runnable(){
+				public void run(){
+					sendFrom(bot);
+				}
+			}, (long)(random.nextDouble() * period), period, TimeUnit.NANOSECONDS);
+		}
+
+		long start = System.nanoTime();
+		long end = start + TimeUnit.SECONDS.toNanos(this._duration);
+		long lastSent = 0;
+		long lastReceived = 0;
+
+		System.out.println("   sent/s    recv/s   p50 ms   p99 ms  p999 ms   max ms");
+
+		while(System.nanoTime() < end) {
+			Thread.sleep(REPORT_INTERVAL);
+
+			long sent = this._sent.get();
+			long received = this._received.get();
+
+			System.out.println(String.format("%9d %9d %s", sent - lastSent, received - lastReceived,
+					percentiles(this._interval)));
+
+			lastSent = sent;
+			lastReceived = received;
+
+			this._interval.moveTo(this._total);
+		}
+
+		senders.shutdownNow();
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		this._interval.moveTo(this._total);
+
+		System.out.println();
+		System.out.println(String.format("sent %d (%.0f/s), received %d (%.0f/s), %d send failures, %d reconnects, %d disconnected",
+				this._sent.get(), this._sent.get() / seconds, this._received.get(), this._received.get() / seconds,
+				this._sendFailures.get(), this._reconnects.get(), this._disconnects.get()));
+		System.out.println("latency over the run:");
+		System.out.println("                      p50 ms   p99 ms  p999 ms   max ms");
+		System.out.println("                    " + percentiles(this._total));
+
+		for(ChatClientConnection bot : this._bots)
+			bot.leave();
+	}
+
+	/**
+	 * starts every bot connecting and waits for each one to be
+	 * accepted or turned away.
+	 *
+	 * @return number of bots that joined
+	 */
+	private int joinBots() throws InterruptedException {
+		final CountDownLatch answered = new CountDownLatch(this._clients);
+		final AtomicLong joined = new AtomicLong();
+
+		this._bots = new ChatClientConnection[this._clients];
+
+		javax.net.ssl.SSLContext context = null;
+
+		try {
+			if(this._tls)
+				context = javax.net.ssl.SSLContext.getDefault();
+		}
+		catch(java.security.NoSuchAlgorithmException e) {
+			throw new IllegalStateException("TLS is not available", e);
+		}
+
+		for(int i = 0; i < this._clients; i++) {
+			final ChatClientConnection bot = new ChatClientConnection(this._host, this._port, "bot" + i);
+			bot.setSslContext(context);
+			final String room = this._rooms == 0 ? null : "room" + (i % this._rooms);
+
+			bot.addListener(new ChatClientListener(){
+				public void joined(int sessionId){
+					//back after a lost connection, the server put the bot back in its room
+					if(bot.getRoom() != null || answered.getCount() == 0)
+						return;
+
+					try {
+						//sent before any timestamped message, so the server moves the bot first
+						if(room != null)
+							bot.send("/join " + room);
+					}
+					catch(IOException e) {
+						//lost straight away, counted by disconnected
+					}
+
+					joined.incrementAndGet();
+					answered.countDown();
+				}
+
+				public void joinFailed(String reason){
+					System.err.println(reason);
+					answered.countDown();
+				}
+
+				public void chatMessage(String line){
+					received(line);
+				}
+
+				public void disconnected(){
+					_disconnects.incrementAndGet();
+				}
+
+				public void reconnecting(int attempt, long delay){
+					_reconnects.incrementAndGet();
+				}
+			});
+
+			this._bots[i] = bot;
+			bot.connect();
+		}
+
+		answered.await();
+
+		return (int)joined.get();
+	}
+
+	/**
+	 * sends one timestamped message from a bot. Called on a sender thread.
+	 */
+	private void sendFrom(ChatClientConnection bot) {
+		StringBuilder message = new StringBuilder(this._size);
+		message.append('@').append(System.nanoTime()).append(' ');
+
+		while(message.length() < this._size)
+			message.append('x');
+
+		try {
+			bot.send(message.toString());
+			this._sent.incrementAndGet();
+		}
+		catch(IOException e) {
+			//the bot is no longer joined, counted once by disconnected
+			this._sendFailures.incrementAndGet();
+		}
+	}
+
+	/**
+	 * records the latency of a message another bot sent. Joins,
+	 * leaves and other lines without a timestamp are ignored.
+	 * Called on the receiving bot's reader thread.
+	 */
+	private void received(String line) {
+		int mark = line.indexOf(TIMESTAMP_MARK);
+
+		if(mark == -1)
+			return;
+
+		//parsed in place, substring would allocate for every delivery
+		long sentAt = 0;
+		boolean negative = false;
+		int i = mark + TIMESTAMP_MARK.length();
+
+		if(i < line.length() && line.charAt(i) == '-') {
+			negative = true;
+			i++;
+		}
+
+		for(; i < line.length() && line.charAt(i) != ' '; i++)
+			sentAt = sentAt * 10 + (line.charAt(i) - '0');
+
+		this._interval.record(System.nanoTime() - (negative ? -sentAt : sentAt));
+		this._received.incrementAndGet();
+	}
+
+	/**
+	 * @return the p50, p99, p999 and max of a histogram in milliseconds
+	 */
+	private static String percentiles(LatencyHistogram histogram) {
+		return String.format("%8.2f %8.2f %8.2f %8.2f",
+				histogram.getPercentile(0.50) / 1e6, histogram.getPercentile(0.99) / 1e6,
+				histogram.getPercentile(0.999) / 1e6, histogram.getPercentile(1.0) / 1e6);
+	}
+}//end ChatLoadGenerator class
@@ -0,0 +1,677 @@
+/**
+ * The binary wire protocol spoken between ChatClient and
+ * the server, and the legacy text protocol it replaces.
+ *
+ * A binary connection starts with a preamble: a zero byte,
+ * the letters JCP and the highest version the sender speaks.
+ * The client sends its preamble and a HELLO frame, the server
+ * answers with its own preamble carrying the version both
+ * will use, then ACCEPT or REJECT. Legacy clients start
+ * straight away with their username, which can never begin
+ * with a zero byte, so the server tells the two apart from
+ * the first byte it reads.
+ *
+ * Every frame after the preamble is a ten byte header,
+ * followed by a UTF-8 payload:
+ *
+ *   type     1 byte, one of the frame types below
+ *   flags    1 byte, FLAG_ID or 0
+ *   sender   4 bytes, session id of the sender, 0 for the server
+ *   length   4 bytes, payload length in bytes
+ *
+ * From version 2 a frame with FLAG_ID set carries a message
+ * id in the first 8 bytes of its payload, before the text.
+ * Messages from the server carry the offset the message log
+ * gave them, and a HELLO carrying one asks to resume after
+ * the message with that id. Frames without the flag are
+ * laid out as in version 1, and a client is only sent ids
+ * or ROOM frames once both sides have agreed on version 2.
+ *
+ * From version 3 a frame with FLAG_DEFLATE set carries
+ * its text, after any id, compressed with DEFLATE, raw
+ * with no zlib header, starting from DICTIONARY so that
+ * even a single line finds something to refer back to.
+ * Each frame is compressed on its own, so the server can
+ * compress a message once and send the same bytes to
+ * every client. Only text of COMPRESS_THRESHOLD bytes or
+ * more is worth compressing, and a frame is only sent
+ * compressed when that makes it smaller.
+ *
+ * From version 4 either side may send PING to a side that
+ * has been quiet, which answers PONG straight away, so a
+ * connection whose other end has gone is noticed even
+ * when no one is talking. A server only pings clients
+ * and nodes that agreed on version 4.
+ *
+ * Servers of a cluster link to each other with the same
+ * preamble, opening with PEER in place of HELLO. Over a
+ * link MESSAGE and NOTICE frames carry a room name, empty
+ * for every room, then ROOM_SEPARATOR and the line.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+final class ChatProtocol {
+	//first four bytes of a binary connection
+	static final byte[] MAGIC = {0, 'J', 'C', 'P'};
+	//magic followed by the version byte
+	static final int PREAMBLE_SIZE = MAGIC.length + 1;
+
+	//highest protocol version this build speaks
+	static final byte VERSION = 4;
+	//first version with message ids, ROOM frames and resuming
+	static final byte RESUME_VERSION = 2;
+	//first version with compressed frames
+	static final byte COMPRESS_VERSION = 3;
+	//first version with PING and PONG
+	static final byte HEARTBEAT_VERSION = 4;
+
+	static final int HEADER_SIZE = 10;
+	//largest payload accepted, anything bigger is a protocol error
+	static final int MAX_PAYLOAD = 1024 * 1024;
+
+	//sender id used for frames from the server itself
+	static final int SERVER_ID = 0;
+	//id of a frame that carries none
+	static final long NO_ID = -1;
+
+	//set when the payload starts with an 8 byte message id
+	static final byte FLAG_ID = 1;
+	//set when the text is compressed
+	static final byte FLAG_DEFLATE = 2;
+
+	//bytes of text below which frames are sent as they are
+	static final int COMPRESS_THRESHOLD = 256;
+
+	//text both sides start compressing from, what chat lines are likely to repeat,
+	//most likely last since nearer matches cost fewer bits
+	static final byte[] DICTIONARY = (
+			"https://www.youtube.com/watch?v= http://github.com/ .html .png .jpg .org .net " +
+			"public static void class return new String int if else for while ( ) { } ; = " +
+			"Rooms: lobby (1) /join /leave /rooms was removed for flooding the room " +
+			"has left the room joined the room because would could should about there their " +
+			"what when where which people really think thanks please sorry yeah okay " +
+			"going just like know that this have with from your they will not but and the you ")
+			.getBytes(StandardCharsets.US_ASCII);
+
+	//compressors for each thread that encodes or decodes, reset after every frame
+	private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<Deflater>(){
+		protected Deflater initialValue(){
+			return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+	};
+	private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>(){
+		protected Inflater initialValue(){
+			return new Inflater(true);
+		}
+	};
+
+	//client to server, payload is the username, or to resume the username, ROOM_SEPARATOR and room
+	static final byte HELLO = 1;
+	//server to client, sender is the client's own id, payload the username
+	static final byte ACCEPT = 2;
+	//server to client, payload is the reason
+	static final byte REJECT = 3;
+	//either way, payload is the message text
+	static final byte MESSAGE = 4;
+	//server to client, payload is a line about the room such as a join
+	static final byte NOTICE = 5;
+	//client to server when leaving, server to client when the room closes
+	static final byte LEAVE = 6;
+	//server to client, payload is the room the client is now in
+	static final byte ROOM = 7;
+	//node to node in place of HELLO, payload is the linking node's name
+	static final byte PEER = 8;
+	//either way to a quiet side, payload is empty
+	static final byte PING = 9;
+	//either way in answer to PING, payload is empty
+	static final byte PONG = 10;
+
+	//splits the username from the room in a resuming HELLO, and the room from the line between nodes
+	static final char ROOM_SEPARATOR = '\0';
+
+	//legacy text protocol lines with a special meaning
+	static final String LEGACY_EXIT = "EXIT";
+	static final String LEGACY_FULL = "FULL";
+
+	/**
+	 * A single decoded frame.
+	 */
+	static final class Frame {
+		final byte type;
+		final int sender;
+		//NO_ID unless the frame carried one
+		final long id;
+		final String payload;
+
+		/**
+		 * @param type - one of the frame types
+		 * @param sender - session id of the sender
+		 * @param id - message id carried, NO_ID for none
+		 * @param payload - decoded payload, without the id
+		 */
+		Frame(byte type, int sender, long id, String payload) {
+			this.type = type;
+			this.sender = sender;
+			this.id = id;
+			this.payload = payload;
+		}
+	}
+
+	private ChatProtocol() {
+	}
+
+	/**
+	 * @param version - version to announce
+	 * @return a new array holding the preamble
+	 */
+	static byte[] preamble(byte version) {
+		byte[] preamble = new byte[PREAMBLE_SIZE];
+		System.arraycopy(MAGIC, 0, preamble, 0, MAGIC.length);
+		preamble[MAGIC.length] = version;
+
+		return preamble;
+	}
+
+	/**
+	 * checks that a buffer holds a preamble at its position.
+	 *
+	 * @param buffer - at least PREAMBLE_SIZE bytes from position
+	 * @return the version announced
+	 * @throws ProtocolException - the magic doesn't match
+	 */
+	static byte readPreamble(ByteBuffer buffer) throws ProtocolException {
+		for(int i = 0; i < MAGIC.length; i++) {
+			if(buffer.get() != MAGIC[i])
+				throw new ProtocolException("Not a chat protocol connection");
+		}
+
+		return buffer.get();
+	}
+
+	/**
+	 * encodes a frame into a buffer from the BufferPool, which
+	 * can be queued for many clients without another copy.
+	 *
+	 * @param type - one of the frame types
+	 * @param sender - session id of the sender
+	 * @param payload - text to carry
+	 * @return buffer holding header and payload, with one reference
+	 */
+	static PooledBuffer encodeFrame(byte type, int sender, String payload) {
+		return encodeFrame(type, sender, NO_ID, payload);
+	}
+
+	/**
+	 * encodes a frame carrying a message id into a pooled buffer.
+	 *
+	 * @param id - message id to carry, NO_ID for none
+	 * @return buffer holding header, id and payload, with one reference
+	 */
+	static PooledBuffer encodeFrame(byte type, int sender, long id, String payload) {
+		return encodeFrame(type, sender, id, payload, false);
+	}
+
+	/**
+	 * encodes a frame into a pooled buffer, with its text
+	 * compressed if asked and if that makes it smaller. The
+	 * text is written into the buffer a character at a time,
+	 * so nothing but the buffer is needed.
+	 *
+	 * @param compress - whether to try compressing the text, for version 3 receivers only
+	 * @return buffer holding header, id and payload, with one reference
+	 */
+	static PooledBuffer encodeFrame(byte type, int sender, long id, String payload, boolean compress) {
+		int length = utf8Length(payload);
+
+		PooledBuffer frame = BufferPool.allocateDirect(HEADER_SIZE + idSize(id) + length);
+		ByteBuffer buffer = frame.buffer();
+
+		buffer.position(HEADER_SIZE + idSize(id));
+
+		if(compress && deflate(payload, length, buffer)) {
+			putHeader(buffer, type, FLAG_DEFLATE, sender, id, buffer.position() - HEADER_SIZE);
+		}
+		else {
+			putUtf8(buffer, payload);
+			putHeader(buffer, type, (byte)0, sender, id, idSize(id) + length);
+		}
+
+		buffer.flip();
+
+		return frame;
+	}
+
+	/**
+	 * writes a frame's header, and its id if it has one, at
+	 * the start of the buffer, leaving the position alone.
+	 *
+	 * @param flags - flags other than FLAG_ID, which is set for an id
+	 * @param length - payload length, id included
+	 */
+	private static void putHeader(ByteBuffer buffer, byte type, byte flags, int sender, long id, int length) {
+		buffer.put(0, type);
+		buffer.put(1, (byte)(flags | (id == NO_ID ? 0 : FLAG_ID)));
+		buffer.putInt(2, sender);
+		buffer.putInt(6, length);
+
+		if(id != NO_ID)
+			buffer.putLong(HEADER_SIZE, id);
+	}
+
+	/**
+	 * @return bytes the text takes up in UTF-8, unpaired surrogates counted as the '?' sent for them
+	 */
+	static int utf8Length(String text) {
+		int length = text.length();
+		int bytes = length;
+
+		for(int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+
+			if(c < 0x80)
+				continue;
+
+			if(c < 0x800)
+				bytes++;
+			else if(!Character.isSurrogate(c))
+				bytes += 2;
+			//four bytes for the two characters
+			else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+				bytes += 2;
+				i++;
+			}
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * writes text as UTF-8 the way String.getBytes does, without
+	 * the array it makes.
+	 *
+	 * @param buffer - buffer with room for utf8Length bytes
+	 * @param text - text to write
+	 */
+	static void putUtf8(ByteBuffer buffer, String text) {
+		int length = text.length();
+
+		for(int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+
+			if(c < 0x80) {
+				buffer.put((byte)c);
+			}
+			else if(c < 0x800) {
+				buffer.put((byte)(0xC0 | (c >> 6)));
+				buffer.put((byte)(0x80 | (c & 0x3F)));
+			}
+			else if(!Character.isSurrogate(c)) {
+				buffer.put((byte)(0xE0 | (c >> 12)));
+				buffer.put((byte)(0x80 | ((c >> 6) & 0x3F)));
+				buffer.put((byte)(0x80 | (c & 0x3F)));
+			}
+			else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+				int code = Character.toCodePoint(c, text.charAt(++i));
+
+				buffer.put((byte)(0xF0 | (code >> 18)));
+				buffer.put((byte)(0x80 | ((code >> 12) & 0x3F)));
+				buffer.put((byte)(0x80 | ((code >> 6) & 0x3F)));
+				buffer.put((byte)(0x80 | (code & 0x3F)));
+			}
+			else {
+				buffer.put((byte)'?');
+			}
+		}
+	}
+
+	/**
+	 * decodes one frame from the buffer if all of it has arrived.
+	 *
+	 * @param buffer - bytes read so far, position is moved past the frame
+	 * @return the frame, null if more bytes are needed
+	 * @throws ProtocolException - the frame is too large
+	 */
+	static Frame decodeFrame(ByteBuffer buffer) throws ProtocolException {
+		if(buffer.remaining() < HEADER_SIZE)
+			return null;
+
+		int start = buffer.position();
+		int length = buffer.getInt(start + 6);
+
+		if(length < 0 || length > MAX_PAYLOAD)
+			throw new ProtocolException("Frame of " + length + " bytes is too large");
+
+		if(buffer.remaining() < HEADER_SIZE + length)
+			return null;
+
+		byte type = buffer.get(start);
+		int sender = buffer.getInt(start + 2);
+
+		byte flags = buffer.get(start + 1);
+
+		long id = NO_ID;
+		int text = start + HEADER_SIZE;
+
+		if((flags & FLAG_ID) != 0) {
+			if(length < 8)
+				throw new ProtocolException("Frame too short for its id");
+
+			id = buffer.getLong(text);
+			text += 8;
+		}
+
+		int end = start + HEADER_SIZE + length;
+
+		String payload;
+		if((flags & FLAG_DEFLATE) != 0)
+			payload = inflate(buffer.array(), buffer.arrayOffset() + text, end - text);
+		else
+			payload = new String(buffer.array(), buffer.arrayOffset() + text, end - text, StandardCharsets.UTF_8);
+
+		buffer.position(end);
+
+		return new Frame(type, sender, id, payload);
+	}
+
+	/**
+	 * reads one frame from a stream, waiting until all of it arrives.
+	 *
+	 * @param in - stream positioned at a frame header
+	 * @return the frame
+	 * @throws ProtocolException - the frame is too large
+	 */
+	static Frame readFrame(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		byte flags = in.readByte();
+		int sender = in.readInt();
+		int length = in.readInt();
+
+		if(length < 0 || length > MAX_PAYLOAD)
+			throw new ProtocolException("Frame of " + length + " bytes is too large");
+
+		long id = NO_ID;
+
+		if((flags & FLAG_ID) != 0) {
+			if(length < 8)
+				throw new ProtocolException("Frame too short for its id");
+
+			id = in.readLong();
+			length -= 8;
+		}
+
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+
+		if((flags & FLAG_DEFLATE) != 0)
+			return new Frame(type, sender, id, inflate(bytes, 0, length));
+
+		return new Frame(type, sender, id, new String(bytes, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * encodes a frame into a plain array for writing to a stream.
+	 *
+	 * @param type - one of the frame types
+	 * @param sender - session id of the sender
+	 * @param payload - text to carry
+	 * @return array holding header and payload
+	 */
+	static byte[] frameBytes(byte type, int sender, String payload) {
+		return frameBytes(type, sender, NO_ID, payload);
+	}
+
+	/**
+	 * encodes a frame carrying a message id into a plain array.
+	 *
+	 * @param id - message id to carry, NO_ID for none
+	 * @return array holding header, id and payload
+	 */
+	static byte[] frameBytes(byte type, int sender, long id, String payload) {
+		return frameBytes(type, sender, id, payload, false);
+	}
+
+	/**
+	 * encodes a frame into a plain array, with its text
+	 * compressed if asked and if that makes it smaller.
+	 *
+	 * @param compress - whether to try compressing the text, for version 3 receivers only
+	 * @return array holding header, id and payload
+	 */
+	static byte[] frameBytes(byte type, int sender, long id, String payload, boolean compress) {
+		byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+		byte[] deflated = compress ? deflate(bytes) : null;
+
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + idSize(id) +
+				(deflated != null ? deflated.length : bytes.length));
+		putFrame(buffer, type, sender, id, bytes, deflated);
+
+		return buffer.array();
+	}
+
+	/**
+	 * @return bytes the id takes up in a frame's payload
+	 */
+	private static int idSize(long id) {
+		return id == NO_ID ? 0 : 8;
+	}
+
+	/**
+	 * writes a header, the id if there is one, and the payload,
+	 * compressed if deflated is given.
+	 */
+	private static void putFrame(ByteBuffer buffer, byte type, int sender, long id, byte[] bytes, byte[] deflated) {
+		byte[] text = deflated != null ? deflated : bytes;
+
+		buffer.put(type);
+		buffer.put((byte)((id == NO_ID ? 0 : FLAG_ID) | (deflated != null ? FLAG_DEFLATE : 0)));
+		buffer.putInt(sender);
+		buffer.putInt(idSize(id) + text.length);
+
+		if(id != NO_ID)
+			buffer.putLong(id);
+
+		buffer.put(text);
+	}
+
+	/**
+	 * compresses a frame's text into a buffer, from its position.
+	 * The text is written out to a pooled buffer first, which
+	 * goes back to the pool straight after.
+	 *
+	 * @param text - the text
+	 * @param length - its length in UTF-8
+	 * @param buffer - frame being encoded, with room for length bytes from position
+	 * @return false if the text came out no smaller, with nothing written
+	 */
+	private static boolean deflate(String text, int length, ByteBuffer buffer) {
+		Deflater deflater = DEFLATERS.get();
+		PooledBuffer bytes = BufferPool.allocate(length);
+
+		int start = buffer.position();
+		int limit = buffer.limit();
+
+		try {
+			putUtf8(bytes.buffer(), text);
+			bytes.buffer().flip();
+
+			deflater.setDictionary(DICTIONARY);
+			deflater.setInput(bytes.buffer());
+			deflater.finish();
+
+			//anything that doesn't fit in fewer bytes than the text isn't worth sending
+			buffer.limit(start + length - 1);
+			deflater.deflate(buffer);
+
+			if(!deflater.finished()) {
+				buffer.position(start);
+				return false;
+			}
+
+			return true;
+		}
+		finally {
+			buffer.limit(limit);
+			deflater.reset();
+			bytes.release();
+		}
+	}
+
+	/**
+	 * compresses a frame's text starting from the dictionary.
+	 *
+	 * @param bytes - UTF-8 text
+	 * @return the compressed text, null if it came out no smaller
+	 */
+	private static byte[] deflate(byte[] bytes) {
+		Deflater deflater = DEFLATERS.get();
+
+		try {
+			deflater.setDictionary(DICTIONARY);
+			deflater.setInput(bytes);
+			deflater.finish();
+
+			//anything that doesn't fit in fewer bytes than the text isn't worth sending
+			byte[] deflated = new byte[bytes.length];
+			int length = deflater.deflate(deflated);
+
+			if(!deflater.finished() || length >= bytes.length)
+				return null;
+
+			return Arrays.copyOf(deflated, length);
+		}
+		finally {
+			deflater.reset();
+		}
+	}
+
+	/**
+	 * decompresses a frame's text, refusing anything that
+	 * would come out larger than MAX_PAYLOAD.
+	 *
+	 * @param bytes - array holding the compressed text
+	 * @param offset - where the compressed text starts
+	 * @param length - bytes of compressed text
+	 * @return the text
+	 * @throws ProtocolException - the text is corrupt, cut short or too large
+	 */
+	private static String inflate(byte[] bytes, int offset, int length) throws ProtocolException {
+		Inflater inflater = INFLATERS.get();
+
+		try {
+			inflater.setDictionary(DICTIONARY);
+			inflater.setInput(bytes, offset, length);
+
+			byte[] text = new byte[Math.min(MAX_PAYLOAD, Math.max(256, length * 4))];
+			int size = 0;
+
+			while(!inflater.finished()) {
+				if(size == text.length) {
+					if(text.length == MAX_PAYLOAD)
+						throw new ProtocolException("Compressed frame is too large");
+
+					text = Arrays.copyOf(text, Math.min(MAX_PAYLOAD, text.length * 2));
+				}
+
+				int inflated = inflater.inflate(text, size, text.length - size);
+
+				if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new ProtocolException("Compressed frame is cut short");
+
+				size += inflated;
+			}
+
+			return new String(text, 0, size, StandardCharsets.UTF_8);
+		}
+		catch(DataFormatException e) {
+			throw new ProtocolException("Compressed frame is corrupt");
+		}
+		finally {
+			inflater.reset();
+		}
+	}
+
+	/**
+	 * @param frame - an encoded frame from position, which is left where it was
+	 * @return whether the frame carries a message id
+	 */
+	static boolean hasId(ByteBuffer frame) {
+		return (frame.get(frame.position() + 1) & FLAG_ID) != 0;
+	}
+
+	/**
+	 * @param frame - an encoded frame from position, which is left where it was
+	 * @return the message id the frame carries, NO_ID for none
+	 */
+	static long frameId(ByteBuffer frame) {
+		return hasId(frame) ? frame.getLong(frame.position() + HEADER_SIZE) : NO_ID;
+	}
+
+	/**
+	 * reads the text out of an uncompressed encoded frame, skipping any id.
+	 * Works on any buffer, mapped ones included.
+	 *
+	 * @param frame - an encoded frame from position, which is left where it was
+	 * @return the payload text
+	 */
+	static String frameText(ByteBuffer frame) {
+		int start = frame.position();
+		int text = start + HEADER_SIZE + (hasId(frame) ? 8 : 0);
+
+		byte[] bytes = new byte[start + HEADER_SIZE + frame.getInt(start + 6) - text];
+		frame.get(text, bytes);
+
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * encodes a legacy text line the way old clients read it, one
+	 * byte per character, into a pooled buffer.
+	 *
+	 * @param line - line to encode, terminator is added
+	 * @return buffer holding the encoded line, with one reference
+	 */
+	static PooledBuffer encodeLine(String line) {
+		PooledBuffer encoded = BufferPool.allocateDirect(line.length() + 1);
+		ByteBuffer buffer = encoded.buffer();
+
+		for(int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+
+			//characters outside Latin-1 can't be sent one byte each
+			buffer.put(c <= 0xFF ? (byte)c : (byte)'?');
+		}
+
+		buffer.put((byte)'\n');
+		buffer.flip();
+
+		return encoded;
+	}
+
+	/**
+	 * the legacy text line standing in for a frame.
+	 *
+	 * @param type - MESSAGE, NOTICE, LEAVE or REJECT
+	 * @param payload - the frame's payload
+	 * @return line an old client understands
+	 */
+	static String legacyLine(byte type, String payload) {
+		if(type == LEAVE)
+			return LEGACY_EXIT;
+		else if(type == REJECT)
+			return LEGACY_FULL;
+		else
+			return payload;
+	}
+}//end ChatProtocol class
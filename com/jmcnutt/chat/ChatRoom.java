@@ -0,0 +1,95 @@
+/**
+ * A named room inside the server and the sessions in it.
+ * Members are kept densely packed in one growing array so
+ * relaying a message walks only the room's own members,
+ * however many other rooms the server holds. Adding and
+ * removing are both constant time; removal moves the last
+ * member into the freed slot, like SessionRegistry.
+ *
+ * A session is in at most one room at a time.
+ *
+ * Not thread safe, ChatServerCore only uses it while holding its lock.
+ * Each of SelectorTransport's loops keeps its own list of
+ * the room's members it serves, see EventLoop.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.util.Arrays;
+
+class ChatRoom {
+	//starting size of the member array
+	private static final int INITIAL_CAPACITY = 4;
+
+	private final String _name;
+
+	private Session[] _members = new Session[INITIAL_CAPACITY];
+	private int _size;
+
+	/**
+	 * @param name - name clients join the room by
+	 */
+	ChatRoom(String name) {
+		this._name = name;
+	}
+
+	/**
+	 * @return name clients join the room by
+	 */
+	String getName() {
+		return this._name;
+	}
+
+	/**
+	 * @return number of sessions in the room
+	 */
+	int size() {
+		return this._size;
+	}
+
+	/**
+	 * @param slot - position from 0 to size() - 1
+	 * @return the member at that position
+	 */
+	Session get(int slot) {
+		return this._members[slot];
+	}
+
+	/**
+	 * adds a session that isn't in any room.
+	 *
+	 * @param session - session to add
+	 */
+	void add(Session session) {
+		if(this._size == this._members.length)
+			this._members = Arrays.copyOf(this._members, this._members.length * 2);
+
+		session._room = this;
+		session._roomSlot = this._size;
+		this._members[this._size++] = session;
+	}
+
+	/**
+	 * removes a member, moving the last member into its slot.
+	 *
+	 * @param session - session to remove
+	 * @return false if the session isn't in this room
+	 */
+	boolean remove(Session session) {
+		if(session._room != this)
+			return false;
+
+		int slot = session._roomSlot;
+
+		Session last = this._members[--this._size];
+		this._members[slot] = last;
+		last._roomSlot = slot;
+
+		this._members[this._size] = null;
+		session._room = null;
+		session._roomSlot = -1;
+
+		return true;
+	}
+}//end ChatRoom class
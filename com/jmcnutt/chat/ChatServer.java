@@ -8,6 +8,11 @@
  * If server disconnects chatroom will disconnect all 
  * clients.
  * 
+ * The chatroom itself lives in ChatServerCore, this
+ * window only observes it and passes on what the
+ * host types, on a thread of its own so the window
+ * never waits on the core's lock or its message log.
+ *
  * @author Johnathan McNutt
  */
 package com.jmcnutt.chat;
@@ -16,12 +21,9 @@ import java.awt.BorderLayout;
 import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.swing.JButton;
 import javax.swing.JFrame;
@@ -29,26 +31,25 @@ import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
-import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.ScrollPaneConstants;
-import javax.swing.Timer;
+import javax.swing.SwingUtilities;
 
-public class ChatServer extends JFrame implements ActionListener, Runnable {	
-	//sets the maximum number of clients that can connect to the chatroom
-	private final int MAXIMUM_CLIENTS = 10;
-	
-	//stores the clients usernames
-	private String[] _usernames = new String[MAXIMUM_CLIENTS];
-	
-	private ServerSocket _serverSocket;
-	private Socket[] _connectionSocket = new Socket[MAXIMUM_CLIENTS];
-	
-	private DataOutputStream[] _outToClient = new DataOutputStream[MAXIMUM_CLIENTS];
-	private BufferedReader[] _inFromClient = new BufferedReader[MAXIMUM_CLIENTS];
+public class ChatServer extends JFrame implements ActionListener, ChatServerListener {
+	//hands what the host types to the core, in the order it was typed
+	private static final ExecutorService HOST = Executors.newSingleThreadExecutor(
+			new ThreadFactory(){
+				public Thread newThread(Runnable task){
+					Thread thread = new Thread(task, "ChatServer-Host");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	//the running chatroom, null while disconnected
+	private ChatServerCore _core;
 	
 	private String _serverSentence = "";
-	private String _clientSentence = "";
 	
 	//panel containing all other panels
 	private JPanel _pContainer = new JPanel(new BorderLayout());
@@ -60,9 +61,11 @@ public class ChatServer extends JFrame implements ActionListener, Runnable {
 	private JLabel _username = new JLabel("Username:");
 	private JTextField _usernameEntry = new JTextField("Host");
 	private JLabel _port = new JLabel("Port:");
-	private JTextField _portEntry = new JTextField("4444");
+	private JTextField _portEntry = new JTextField(String.valueOf(ChatServerConfig.DEFAULT_PORT));
 	private JButton _connect = new JButton("Connect");
-	private JTextArea _chat = new JTextArea("");
+	//lines shown in the chat area, oldest dropped past its capacity
+	private ChatHistoryModel _history = new ChatHistoryModel();
+	private ChatHistoryList _chat = new ChatHistoryList(this._history);
 	private JTextField _chatEntry = new JTextField("");
 	private JButton _send = new JButton("Send");
 	
@@ -89,7 +92,6 @@ public class ChatServer extends JFrame implements ActionListener, Runnable {
 		this._pContainer.add(this._pSouth, BorderLayout.SOUTH);
 		
 		//chat functionality disabled until connection is made
-		this._chat.setEditable(false);
 		this._chatEntry.setEditable(false);
 		this._send.setEnabled(false);	
 		
@@ -102,194 +104,30 @@ public class ChatServer extends JFrame implements ActionListener, Runnable {
 	}
 	
 	/**
-	 * check for new messages 4 times each second.
-	 */
-	private ActionListener taskPerformer = new ActionListener(){
-		public void actionPerformed(ActionEvent e){
-			checkInput();
-		}
-	};
-	
-	/**
-	 * Checks for messages from the clients. If a message is received
-	 * relays the message to the rest of the clients.
-	 */
-	private void checkInput() {
-		for(int i = 0; i < MAXIMUM_CLIENTS; i++) {
-			try{
-				if(this._connectionSocket[i] != null){
-					//if message received from client displays message
-					if (this._inFromClient[i].ready()){
-						this._clientSentence = this._inFromClient[i].readLine();
-						
-						if(this._clientSentence != null){
-							//if client disconnects
-							if(this._clientSentence.equals("EXIT")){					
-								this.removeClient(i);
-							}
-							else {
-								this._chat.append(this._clientSentence + "\n");
-								
-								this.relayMessage(this._clientSentence, i);
-							}
-						}
-					}
-				}
-			}//end try
-			catch(java.net.SocketException ex) {
-				//Called if client is unreachable
-			}
-			catch(Exception ex){
-				JOptionPane.showMessageDialog(null, "Unknown Exception: " + ex.toString());
-			}
-		}//end for loop
-	}
-	
-	//handles automatic message checking
-	private Timer _frameHandler = new Timer(250, taskPerformer);
-	
-	/**
-	 * sends a message to all clients, except the original sender
-	 * 
-	 * @param message - String to send
-	 * @param senderIndex - index of sender. -1 if host is sender
-	 */
-	private void relayMessage(String message, int senderIndex){
-		for(int i = 0; i < MAXIMUM_CLIENTS; i++) {
-			//send the sentence to all clients except original sender
-			if(i != senderIndex) {
-				//try block to prevent broken connection from interrupting message sending
-				try {
-					if(this._connectionSocket[i] != null){
-						this._outToClient[i].writeBytes(message + "\n");
-					}
-				}
-				//Called if client is unreachable
-				catch(java.net.SocketException ex) {
-					String s = this._usernames[i] + " has left the room";
-					
-					this._chat.append(s + "\n");
-					
-					this.removeClient(i);
-					
-					//sends that a user has disconnect to all clients
-					this.relayMessage(s, -1);
-				}
-				catch(Exception ex){
-					JOptionPane.showMessageDialog(null, "Unknown Exception: " + ex.toString());
-				}
-			}
-		}//end for loop
-	}
-	
-	/**
-	 * removes a single client from the chatroom by index.
-	 * 
-	 * @param clientIndex - the index of the client to be removed
+	 * shows a chatroom line. Called on one of the server's I/O threads.
 	 */
-	private void removeClient(int clientIndex) {
-		if(this._connectionSocket[clientIndex] != null) {
-			try {
-				this._connectionSocket[clientIndex].close();
-			}
-			catch(IOException ex) {
-				//closing a socket requires IOException throw or handle
-			}
-			
-			this._connectionSocket[clientIndex] = null;
-			this._inFromClient[clientIndex] = null;
-			this._outToClient[clientIndex] = null;
-			
-			this._usernames[clientIndex] = null;
-		}
+	@Override
+	public void chatMessage(String line) {
+		this._history.appendLater(line);
 	}
-	
+
 	/**
-	 * a separate thread of execution so looking for a connection doesn't freeze the GUI.
-	 * If a connection is made a new thread is created to check for more connections.
+	 * reports an unexpected server exception. Called on one of the server's I/O threads.
 	 */
-	public void run(){
-		try {
-			Socket socket;
-			socket = this._serverSocket.accept();
-			
-			int newConnection;
-			for(newConnection = 0; newConnection < MAXIMUM_CLIENTS; newConnection++) {
-				if(this._connectionSocket[newConnection] == null)
-					break;
-			}
-			
-			//checks if there was a free connection
-			if(newConnection != MAXIMUM_CLIENTS) {
-				this.connectClient(socket, newConnection);
-			}
-			//sets up a rejection connection if full
-			else {
-				this.rejectClient(socket);
+	@Override
+	public void serverError(final Exception ex) {
+		SwingUtilities.invokeLater(new Runnable(){
+			public void run(){
+				JOptionPane.showMessageDialog(null, "Unknown Exception: " + ex.toString());
 			}
-			
-			//begins new connection thread so more clients can be connected
-			Thread connectionThread = new Thread(this);
-			connectionThread.start();
-		}//end try
-		catch (IOException ex) {
-			//activates if connection is closed before client is found
-		}
-		catch(NullPointerException ex) {
-			//activates if connection is closed while searching for more clients
-		}
-		catch(Exception ex){
-			JOptionPane.showMessageDialog(null, "Unknown Exception: " + ex.toString());
-		}
-	}//end run method
-	
-	/**
-	 * connects a single client to the chatroom.
-	 * 
-	 * @param socket - socket client is accepted from
-	 * @param index - free array index to set up connection on
-	 */
-	private void connectClient(Socket socket, int index) throws IOException {
-		this._connectionSocket[index] = socket;
-		
-		this._inFromClient[index] = new BufferedReader
-			(new InputStreamReader(this._connectionSocket[index].getInputStream()));
-			
-		this._outToClient[index] = 
-			new DataOutputStream(this._connectionSocket[index].getOutputStream());
-		
-		this._clientSentence = this._inFromClient[index].readLine();
-		
-		this._usernames[index] = this._clientSentence;
-		
-		this._clientSentence += " joined the room";
-		
-		this._chat.append(this._clientSentence + "\n");
-		
-		this.relayMessage(this._clientSentence, -1);
+		});
 	}
-	
+
 	/**
-	 * rejects a client from connecting to the chatroom.
-	 * 
-	 * @param socket - socket with accepted client
+	 * nothing to do, the window is reset when disconnect is pressed.
 	 */
-	private void rejectClient(Socket socket) throws IOException {
-		try {
-			DataOutputStream das = 
-					new DataOutputStream(socket.getOutputStream());
-			
-			das.writeBytes("FULL\n");
-			
-			//gives client time to receive message
-			Thread.sleep(1000);
-			
-			socket.close();
-		}
-		catch(InterruptedException ex){
-			//activates if Thread is interrupted during sleep
-			socket.close();
-		}
+	@Override
+	public void serverStopped() {
 	}
 	
 	/**
@@ -314,8 +152,12 @@ public class ChatServer extends JFrame implements ActionListener, Runnable {
 	 */
 	private void connect(){
 		try{
-			this._serverSocket = 
-					new ServerSocket(Integer.parseInt(this._portEntry.getText())); 
+			this._core = new ChatServerCore(Integer.parseInt(this._portEntry.getText()),
+					ChatServerConfig.DEFAULT_MAXIMUM_CLIENTS);
+			this._core.addListener(this);
+
+			//starts the I/O threads that accept clients and read their messages
+			this._core.start();
 			
 			this._connect.setText("Disconnect");
 			this._chatEntry.setEditable(true);
@@ -324,19 +166,16 @@ public class ChatServer extends JFrame implements ActionListener, Runnable {
 			this._usernameEntry.setEditable(false);
 			this._portEntry.setEditable(false);
 			
-			//starts a new thread that looks for client connections
-			Thread connectionThread = new Thread(this);
-			connectionThread.start();
-			
-			//starts looking for data from clients
-			this._frameHandler.start();
-			
-			this._chat.append("Waiting on Connection\n");
+			this._history.append("Waiting on Connection");
 		}
 		catch(java.net.BindException e) {
+			this._core = null;
+
 			JOptionPane.showMessageDialog(null, "Port " + this._portEntry.getText() + " Already in use");
 		}
 		catch(Exception e){
+			this._core = null;
+
 			JOptionPane.showMessageDialog(null, "Unknown Exception: " + e.toString());
 		}
 	}
@@ -347,21 +186,18 @@ public class ChatServer extends JFrame implements ActionListener, Runnable {
 	private void disconnect() {
 		this._serverSentence = this._usernameEntry.getText() + " has left the room.";
 		
-		this.relayMessage(this._serverSentence, -1);
-		this.relayMessage("EXIT", -1);
-		
-		for(int i = 0; i < MAXIMUM_CLIENTS; i++)
-			this.removeClient(i);
-		
-		try { 
-			this._serverSocket.close();
-		}
-        catch(IOException e){  
-        	//catch required to close socket
-        }
+		final ChatServerCore core = this._core;
+		final String farewell = this._serverSentence;
+
+		//after whatever the host sent before
+		HOST.execute(new Runnable(){
+			public void run(){
+				core.shutdown(farewell);
+			}
+		});
+		this._core = null;
 			
-		this._serverSocket = null;
-		this._chat.append("You have left the room.\n");
+		this._history.append("You have left the room.");
 		
 		this._usernameEntry.setEditable(true);
 		this._portEntry.setEditable(true);
@@ -370,8 +206,6 @@ public class ChatServer extends JFrame implements ActionListener, Runnable {
 		this._chatEntry.setEditable(false);
 		
 		this._connect.setText("Connect");
-		
-		this._frameHandler.stop();
 	}
 	
 	/**
@@ -379,16 +213,19 @@ public class ChatServer extends JFrame implements ActionListener, Runnable {
 	 * into the chat area to all clients connected.
 	 */
 	private void send() {
-		//prevents users from entering exit command
-		if(this._chatEntry.getText().equals("EXIT"))
-			this._chatEntry.setText("EXIT ");
-		
 		this._serverSentence = this._usernameEntry.getText() + ": " + this._chatEntry.getText();
 		
-		this._chat.append("You: " + this._chatEntry.getText() + "\n");
+		this._history.append("You: " + this._chatEntry.getText());
 		
 		this._chatEntry.setText("");
 		
-		this.relayMessage(this._serverSentence, -1);
+		final ChatServerCore core = this._core;
+		final String message = this._serverSentence;
+
+		HOST.execute(new Runnable(){
+			public void run(){
+				core.broadcast(message);
+			}
+		});
 	}
-}//end ChatServer class
\ No newline at end of file
+}//end ChatServer class
@@ -0,0 +1,706 @@
+/**
+ * Settings for a ChatServerCore. Every setting starts
+ * at its default, so a config only needs the settings
+ * that differ. Configs can also be read from the
+ * command line options the headless server takes.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ChatServerConfig {
+	//port used when none is given
+	public static final int DEFAULT_PORT = 4444;
+	//client limit used when none is given, 0 for no limit
+	public static final int DEFAULT_MAXIMUM_CLIENTS = 0;
+	//bytes allowed to wait for a client before it counts as slow
+	public static final int DEFAULT_HIGH_WATER_MARK = 1024 * 1024;
+	//messages of a room sent to a client joining it
+	public static final int DEFAULT_REPLAY_COUNT = 50;
+	//milliseconds clients are given to be written what is queued once the server shuts down
+	public static final int DEFAULT_SHUTDOWN_TIMEOUT = 2000;
+	//milliseconds a client may be quiet before it is pinged
+	public static final int DEFAULT_HEARTBEAT_INTERVAL = 30000;
+	//milliseconds a client may be quiet before it is closed
+	public static final int DEFAULT_IDLE_TIMEOUT = 90000;
+	//messages a client may send at once when its rate is limited
+	public static final int DEFAULT_MESSAGE_BURST = 20;
+	//bytes a client may send at once when its byte rate is limited
+	public static final int DEFAULT_BYTE_BURST = 64 * 1024;
+	//characters of text from which messages are sent compressed
+	public static final int DEFAULT_COMPRESS_THRESHOLD = ChatProtocol.COMPRESS_THRESHOLD;
+	//environment variable parse takes the key store password from, kept off the command line where ps shows it
+	public static final String TLS_PASSWORD_VARIABLE = "CHAT_TLS_PASSWORD";
+
+	//options understood by parse, shown when one is wrong
+	public static final String USAGE =
+			"usage: ChatServerCore [-port n] [-max n] [-mode selector|virtual] [-threads n]\n" +
+			"                      [-highwater bytes] [-slow drop|disconnect]\n" +
+			"                      [-log directory] [-replay n] [-metrics port]\n" +
+			"                      [-sndbuf bytes] [-rcvbuf bytes] [-drain millis]\n" +
+			"                      [-heartbeat millis] [-idle millis]\n" +
+			"                      [-node name] [-peers host:port,...]\n" +
+			"                      [-rate n] [-burst n] [-byterate bytes] [-byteburst bytes]\n" +
+			"                      [-flood delay|drop|kick] [-compress bytes]\n" +
+			"                      [-tls keystore] [-tlspassfile file]\n" +
+			"the key store password is read from the file, or else from " + TLS_PASSWORD_VARIABLE;
+
+	/**
+	 * how the server's sockets are served
+	 */
+	public enum IoMode {
+		//clients spread over a few Selector driven I/O threads
+		SELECTOR,
+		//a blocking read loop per client on a virtual thread
+		VIRTUAL_THREADS
+	}
+
+	/**
+	 * what happens to a client whose outbound queue
+	 * has reached the high-water mark
+	 */
+	public enum SlowConsumerPolicy {
+		//the client misses messages until its queue drains
+		DROP,
+		//the client is removed from the room
+		DISCONNECT
+	}
+
+	/**
+	 * what happens to a message a client sends
+	 * past its rate limit
+	 */
+	public enum FloodPolicy {
+		//nothing more is read from the client until the message is allowed
+		DELAY,
+		//the message is thrown away
+		DROP,
+		//the client is removed from the room
+		KICK
+	}
+
+	private int _port = DEFAULT_PORT;
+	private int _maximumClients = DEFAULT_MAXIMUM_CLIENTS;
+	private IoMode _ioMode = IoMode.SELECTOR;
+	//I/O threads in selector mode, one for each core unless set
+	private int _ioThreads = Runtime.getRuntime().availableProcessors();
+	private int _highWaterMark = DEFAULT_HIGH_WATER_MARK;
+	private SlowConsumerPolicy _slowConsumerPolicy = SlowConsumerPolicy.DISCONNECT;
+	//null keeps no history
+	private String _logDirectory;
+	private int _logSegmentSize = MessageLog.DEFAULT_SEGMENT_SIZE;
+	private int _retainedLogSegments = MessageLog.DEFAULT_RETAINED_SEGMENTS;
+	private int _replayCount = DEFAULT_REPLAY_COUNT;
+	//0 serves no metrics endpoint
+	private int _metricsPort;
+	//the server coalesces its own writes, so Nagle's algorithm would only add delay
+	private boolean _tcpNoDelay = true;
+	//socket buffer sizes for each client, 0 leaves the system default
+	private int _sendBufferSize;
+	private int _receiveBufferSize;
+	private int _shutdownTimeout = DEFAULT_SHUTDOWN_TIMEOUT;
+	//0 sends no pings
+	private int _heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+	//0 never closes a quiet client
+	private int _idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	//null names the node after its port
+	private String _nodeName;
+	//other nodes of the cluster, empty when running alone
+	private ArrayList<InetSocketAddress> _peers = new ArrayList<InetSocketAddress>();
+	//messages and bytes each client may send per second, 0 for no limit
+	private int _messageRate;
+	private int _messageBurst = DEFAULT_MESSAGE_BURST;
+	private int _byteRate;
+	private int _byteBurst = DEFAULT_BYTE_BURST;
+	private FloodPolicy _floodPolicy = FloodPolicy.DELAY;
+	//0 never compresses
+	private int _compressThreshold = DEFAULT_COMPRESS_THRESHOLD;
+	//null serves plain text
+	private String _keyStore;
+	private String _keyStorePassword;
+
+	/**
+	 * reads a config from command line options. The key store
+	 * password is never an option, it is read from the file
+	 * named by -tlspassfile or else the TLS_PASSWORD_VARIABLE
+	 * environment variable.
+	 *
+	 * @param args - options as given to main
+	 * @return config with the options applied
+	 * @throws IllegalArgumentException - unknown or malformed option
+	 */
+	public static ChatServerConfig parse(String[] args) {
+		ChatServerConfig config = new ChatServerConfig();
+
+		try {
+			for(int i = 0; i < args.length; i++) {
+				if(args[i].equals("-port"))
+					config.setPort(Integer.parseInt(args[++i]));
+				else if(args[i].equals("-max"))
+					config.setMaximumClients(Integer.parseInt(args[++i]));
+				else if(args[i].equals("-mode"))
+					config.setIoMode(parseMode(args[++i]));
+				else if(args[i].equals("-threads"))
+					config.setIoThreads(Integer.parseInt(args[++i]));
+				else if(args[i].equals("-highwater"))
+					config.setHighWaterMark(Integer.parseInt(args[++i]));
+				else if(args[i].equals("-slow"))
+					config.setSlowConsumerPolicy(parsePolicy(args[++i]));
+				else if(args[i].equals("-log"))
+					config.setLogDirectory(args[++i]);
+				else if(args[i].equals("-replay"))
+					config.setReplayCount(Integer.parseInt(args[++i]));
+				else if(args[i].equals("-metrics"))
+					config.setMetricsPort(Integer.parseInt(args[++i]));
+				else if(args[i].equals("-sndbuf"))
+					config.setSendBufferSize(Integer.parseInt(args[++i]));
+				else if(args[i].equals("-rcvbuf"))
+					config.setReceiveBufferSize(Integer.parseInt(args[++i]));
+				else if(args[i].equals("-drain"))
+					config.setShutdownTimeout(Integer.parseInt(args[++i]));
+				else if(args[i].equals("-heartbeat"))
+					config.setHeartbeatInterval(Integer.parseInt(args[++i]));
+				else if(args[i].equals("-idle"))
+					config.setIdleTimeout(Integer.parseInt(args[++i]));
+				else if(args[i].equals("-node"))
+					config.setNodeName(args[++i]);
+				else if(args[i].equals("-peers"))
+					parsePeers(config, args[++i]);
+				else if(args[i].equals("-rate"))
+					config.setMessageRate(Integer.parseInt(args[++i]));
+				else if(args[i].equals("-burst"))
+					config.setMessageBurst(Integer.parseInt(args[++i]));
+				else if(args[i].equals("-byterate"))
+					config.setByteRate(Integer.parseInt(args[++i]));
+				else if(args[i].equals("-byteburst"))
+					config.setByteBurst(Integer.parseInt(args[++i]));
+				else if(args[i].equals("-flood"))
+					config.setFloodPolicy(parseFloodPolicy(args[++i]));
+				else if(args[i].equals("-compress"))
+					config.setCompressThreshold(Integer.parseInt(args[++i]));
+				else if(args[i].equals("-tls"))
+					config.setKeyStore(args[++i]);
+				else if(args[i].equals("-tlspassfile"))
+					config.setKeyStorePassword(readPassword(args[++i]));
+				else if(args[i].equals("-tlspass"))
+					throw new IllegalArgumentException("-tlspass is no longer taken, use -tlspassfile or set "
+							+ TLS_PASSWORD_VARIABLE);
+				else
+					throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+		catch(ArrayIndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Missing value for " + args[args.length - 1]);
+		}
+
+		if(config.getKeyStore() != null && config.getKeyStorePassword() == null)
+			config.setKeyStorePassword(System.getenv(TLS_PASSWORD_VARIABLE));
+
+		return config;
+	}
+
+	/**
+	 * @param file - file holding the key store password on its first line
+	 * @return the password
+	 */
+	private static String readPassword(String file) {
+		try {
+			String text = new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8);
+
+			int end = text.indexOf('\n');
+
+			if(end == -1)
+				end = text.length();
+
+			//a line written on Windows ends in a carriage return too
+			if(end > 0 && text.charAt(end - 1) == '\r')
+				end--;
+
+			return text.substring(0, end);
+		}
+		catch(IOException e) {
+			throw new IllegalArgumentException("Can't read password file " + file);
+		}
+	}
+
+	/**
+	 * @param name - selector or virtual
+	 * @return the matching I/O mode
+	 */
+	private static IoMode parseMode(String name) {
+		if(name.equals("selector"))
+			return IoMode.SELECTOR;
+		else if(name.equals("virtual"))
+			return IoMode.VIRTUAL_THREADS;
+		else
+			throw new IllegalArgumentException("Unknown mode " + name);
+	}
+
+	/**
+	 * @param name - drop or disconnect
+	 * @return the matching slow consumer policy
+	 */
+	private static SlowConsumerPolicy parsePolicy(String name) {
+		if(name.equals("drop"))
+			return SlowConsumerPolicy.DROP;
+		else if(name.equals("disconnect"))
+			return SlowConsumerPolicy.DISCONNECT;
+		else
+			throw new IllegalArgumentException("Unknown slow consumer policy " + name);
+	}
+
+	/**
+	 * @param name - delay, drop or kick
+	 * @return the matching flood policy
+	 */
+	private static FloodPolicy parseFloodPolicy(String name) {
+		if(name.equals("delay"))
+			return FloodPolicy.DELAY;
+		else if(name.equals("drop"))
+			return FloodPolicy.DROP;
+		else if(name.equals("kick"))
+			return FloodPolicy.KICK;
+		else
+			throw new IllegalArgumentException("Unknown flood policy " + name);
+	}
+
+	/**
+	 * @param config - config the peers are added to
+	 * @param list - comma separated host:port of every other node
+	 */
+	private static void parsePeers(ChatServerConfig config, String list) {
+		for(String peer : list.split(",")) {
+			int colon = peer.lastIndexOf(':');
+
+			if(colon <= 0)
+				throw new IllegalArgumentException("Peer " + peer + " is not host:port");
+
+			config.addPeer(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1)));
+		}
+	}
+
+	/**
+	 * sets the socket options chosen here on an accepted client.
+	 *
+	 * @param channel - the client's channel
+	 */
+	void configureSocket(SocketChannel channel) throws IOException {
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, this._tcpNoDelay);
+
+		if(this._sendBufferSize > 0)
+			channel.setOption(StandardSocketOptions.SO_SNDBUF, this._sendBufferSize);
+
+		if(this._receiveBufferSize > 0)
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, this._receiveBufferSize);
+	}
+
+	/**
+	 * makes the rate limiter for a newly connected client.
+	 *
+	 * @return limiter for one client, null if clients aren't limited
+	 */
+	RateLimiter newRateLimiter() {
+		if(this._messageRate <= 0 && this._byteRate <= 0)
+			return null;
+
+		return new RateLimiter(this._messageRate, this._messageBurst, this._byteRate, this._byteBurst,
+				this._floodPolicy);
+	}
+
+	/**
+	 * @return port clients connect on
+	 */
+	public int getPort() {
+		return this._port;
+	}
+
+	/**
+	 * @param port - port clients connect on
+	 */
+	public void setPort(int port) {
+		this._port = port;
+	}
+
+	/**
+	 * @return most clients allowed in the room at once, 0 for no limit
+	 */
+	public int getMaximumClients() {
+		return this._maximumClients;
+	}
+
+	/**
+	 * @param maximumClients - most clients allowed in the room at once, 0 for no limit
+	 */
+	public void setMaximumClients(int maximumClients) {
+		this._maximumClients = maximumClients;
+	}
+
+	/**
+	 * @return how the server's sockets are served
+	 */
+	public IoMode getIoMode() {
+		return this._ioMode;
+	}
+
+	/**
+	 * @param ioMode - how the server's sockets are served
+	 */
+	public void setIoMode(IoMode ioMode) {
+		this._ioMode = ioMode;
+	}
+
+	/**
+	 * @return I/O threads clients are spread over in selector mode
+	 */
+	public int getIoThreads() {
+		return this._ioThreads;
+	}
+
+	/**
+	 * @param ioThreads - I/O threads clients are spread over in selector mode, fewer than 1 counts as 1
+	 */
+	public void setIoThreads(int ioThreads) {
+		this._ioThreads = Math.max(1, ioThreads);
+	}
+
+	/**
+	 * @return bytes allowed to wait for a client before it counts as slow, 0 for no limit
+	 */
+	public int getHighWaterMark() {
+		return this._highWaterMark;
+	}
+
+	/**
+	 * @param highWaterMark - bytes allowed to wait for a client before it counts as slow, 0 for no limit
+	 */
+	public void setHighWaterMark(int highWaterMark) {
+		this._highWaterMark = highWaterMark;
+	}
+
+	/**
+	 * @return what happens to a client that has reached the high-water mark
+	 */
+	public SlowConsumerPolicy getSlowConsumerPolicy() {
+		return this._slowConsumerPolicy;
+	}
+
+	/**
+	 * @param slowConsumerPolicy - what happens to a client that has reached the high-water mark
+	 */
+	public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+		this._slowConsumerPolicy = slowConsumerPolicy;
+	}
+
+	/**
+	 * @return directory the message log is kept in, null if no history is kept
+	 */
+	public String getLogDirectory() {
+		return this._logDirectory;
+	}
+
+	/**
+	 * @param logDirectory - directory the message log is kept in, null to keep no history
+	 */
+	public void setLogDirectory(String logDirectory) {
+		this._logDirectory = logDirectory;
+	}
+
+	/**
+	 * @return bytes in each message log segment file
+	 */
+	public int getLogSegmentSize() {
+		return this._logSegmentSize;
+	}
+
+	/**
+	 * @param logSegmentSize - bytes in each message log segment file
+	 */
+	public void setLogSegmentSize(int logSegmentSize) {
+		this._logSegmentSize = logSegmentSize;
+	}
+
+	/**
+	 * @return message log segments kept before the oldest is deleted
+	 */
+	public int getRetainedLogSegments() {
+		return this._retainedLogSegments;
+	}
+
+	/**
+	 * @param retainedLogSegments - message log segments kept before the oldest is deleted
+	 */
+	public void setRetainedLogSegments(int retainedLogSegments) {
+		this._retainedLogSegments = retainedLogSegments;
+	}
+
+	/**
+	 * @return messages of a room sent to a client joining it, when a log is kept
+	 */
+	public int getReplayCount() {
+		return this._replayCount;
+	}
+
+	/**
+	 * @param replayCount - messages of a room sent to a client joining it, when a log is kept
+	 */
+	public void setReplayCount(int replayCount) {
+		this._replayCount = replayCount;
+	}
+
+	/**
+	 * @return port metrics are served on as text, 0 for none
+	 */
+	public int getMetricsPort() {
+		return this._metricsPort;
+	}
+
+	/**
+	 * @param metricsPort - port metrics are served on as text, 0 for none
+	 */
+	public void setMetricsPort(int metricsPort) {
+		this._metricsPort = metricsPort;
+	}
+
+	/**
+	 * @return whether Nagle's algorithm is turned off for clients
+	 */
+	public boolean getTcpNoDelay() {
+		return this._tcpNoDelay;
+	}
+
+	/**
+	 * @param tcpNoDelay - whether Nagle's algorithm is turned off for clients
+	 */
+	public void setTcpNoDelay(boolean tcpNoDelay) {
+		this._tcpNoDelay = tcpNoDelay;
+	}
+
+	/**
+	 * @return socket send buffer size for each client, 0 for the system default
+	 */
+	public int getSendBufferSize() {
+		return this._sendBufferSize;
+	}
+
+	/**
+	 * @param sendBufferSize - socket send buffer size for each client, 0 for the system default
+	 */
+	public void setSendBufferSize(int sendBufferSize) {
+		this._sendBufferSize = sendBufferSize;
+	}
+
+	/**
+	 * @return socket receive buffer size for each client, 0 for the system default
+	 */
+	public int getReceiveBufferSize() {
+		return this._receiveBufferSize;
+	}
+
+	/**
+	 * @param receiveBufferSize - socket receive buffer size for each client, 0 for the system default
+	 */
+	public void setReceiveBufferSize(int receiveBufferSize) {
+		this._receiveBufferSize = receiveBufferSize;
+	}
+
+	/**
+	 * @return milliseconds clients are given to be written what is queued once the server shuts down
+	 */
+	public int getShutdownTimeout() {
+		return this._shutdownTimeout;
+	}
+
+	/**
+	 * @param shutdownTimeout - milliseconds clients are given to be written what is queued once the server shuts down
+	 */
+	public void setShutdownTimeout(int shutdownTimeout) {
+		this._shutdownTimeout = shutdownTimeout;
+	}
+
+	/**
+	 * @return milliseconds a client may be quiet before it is pinged, 0 for never
+	 */
+	public int getHeartbeatInterval() {
+		return this._heartbeatInterval;
+	}
+
+	/**
+	 * @param heartbeatInterval - milliseconds a client may be quiet before it is pinged, 0 for never
+	 */
+	public void setHeartbeatInterval(int heartbeatInterval) {
+		this._heartbeatInterval = heartbeatInterval;
+	}
+
+	/**
+	 * @return milliseconds a client may be quiet before it is closed, 0 for never
+	 */
+	public int getIdleTimeout() {
+		return this._idleTimeout;
+	}
+
+	/**
+	 * should be a few heartbeat intervals, so a client has
+	 * been pinged more than once before it is closed.
+	 *
+	 * @param idleTimeout - milliseconds a client may be quiet before it is closed, 0 for never
+	 */
+	public void setIdleTimeout(int idleTimeout) {
+		this._idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * @return name the node gives itself when linking to other nodes
+	 */
+	public String getNodeName() {
+		return this._nodeName != null ? this._nodeName : "node-" + this._port;
+	}
+
+	/**
+	 * @param nodeName - name the node gives itself when linking to other nodes, null for one made from the port
+	 */
+	public void setNodeName(String nodeName) {
+		this._nodeName = nodeName;
+	}
+
+	/**
+	 * @return other nodes of the cluster, empty when running alone
+	 */
+	public List<InetSocketAddress> getPeers() {
+		return this._peers;
+	}
+
+	/**
+	 * adds another node of the cluster, which messages are forwarded to.
+	 *
+	 * @param host - name or address of the node
+	 * @param port - port the node accepts clients on
+	 */
+	public void addPeer(String host, int port) {
+		this._peers.add(InetSocketAddress.createUnresolved(host, port));
+	}
+
+	/**
+	 * @return messages each client may send per second, 0 for no limit
+	 */
+	public int getMessageRate() {
+		return this._messageRate;
+	}
+
+	/**
+	 * @param messageRate - messages each client may send per second, 0 for no limit
+	 */
+	public void setMessageRate(int messageRate) {
+		this._messageRate = messageRate;
+	}
+
+	/**
+	 * @return messages a client may send at once before its rate applies
+	 */
+	public int getMessageBurst() {
+		return this._messageBurst;
+	}
+
+	/**
+	 * @param messageBurst - messages a client may send at once before its rate applies
+	 */
+	public void setMessageBurst(int messageBurst) {
+		this._messageBurst = messageBurst;
+	}
+
+	/**
+	 * @return bytes of messages each client may send per second, 0 for no limit
+	 */
+	public int getByteRate() {
+		return this._byteRate;
+	}
+
+	/**
+	 * @param byteRate - bytes of messages each client may send per second, 0 for no limit
+	 */
+	public void setByteRate(int byteRate) {
+		this._byteRate = byteRate;
+	}
+
+	/**
+	 * @return bytes of messages a client may send at once before its byte rate applies
+	 */
+	public int getByteBurst() {
+		return this._byteBurst;
+	}
+
+	/**
+	 * @param byteBurst - bytes of messages a client may send at once before its byte rate applies
+	 */
+	public void setByteBurst(int byteBurst) {
+		this._byteBurst = byteBurst;
+	}
+
+	/**
+	 * @return what happens to a message a client sends past its rate limit
+	 */
+	public FloodPolicy getFloodPolicy() {
+		return this._floodPolicy;
+	}
+
+	/**
+	 * @param floodPolicy - what happens to a message a client sends past its rate limit
+	 */
+	public void setFloodPolicy(FloodPolicy floodPolicy) {
+		this._floodPolicy = floodPolicy;
+	}
+
+	/**
+	 * @return characters of text from which messages are sent compressed, 0 for never
+	 */
+	public int getCompressThreshold() {
+		return this._compressThreshold;
+	}
+
+	/**
+	 * @param compressThreshold - characters of text from which messages are sent compressed, 0 for never
+	 */
+	public void setCompressThreshold(int compressThreshold) {
+		this._compressThreshold = compressThreshold;
+	}
+
+	/**
+	 * @return key store holding the server's key and certificate, null to serve plain text
+	 */
+	public String getKeyStore() {
+		return this._keyStore;
+	}
+
+	/**
+	 * clients, and other nodes, then have to connect over TLS.
+	 * Only served in selector mode.
+	 *
+	 * @param keyStore - PKCS12 or JKS file holding the server's key and certificate, null to serve plain text
+	 */
+	public void setKeyStore(String keyStore) {
+		this._keyStore = keyStore;
+	}
+
+	/**
+	 * @return password of the key store and its key, null for none
+	 */
+	public String getKeyStorePassword() {
+		return this._keyStorePassword;
+	}
+
+	/**
+	 * @param keyStorePassword - password of the key store and its key, null for none
+	 */
+	public void setKeyStorePassword(String keyStorePassword) {
+		this._keyStorePassword = keyStorePassword;
+	}
+}//end ChatServerConfig class
@@ -0,0 +1,1304 @@
+/**
+ * The chatroom itself, without any window. Keeps track
+ * of who is connected and which room each client is in,
+ * and relays each client's messages to everyone else in
+ * the same room. The sockets belong to a ChatTransport,
+ * either a few Selector driven I/O threads or a virtual
+ * thread per client, which hands the core complete lines.
+ *
+ * Clients start in the lobby and move between rooms with
+ * commands sent as messages:
+ *
+ *   /join name   leaves the current room and joins, or opens, another
+ *   /leave       goes back to the lobby
+ *   /rooms       lists the open rooms and how many are in each
+ *   /msg name    sends the rest of the line to that client only
+ *
+ * A private message is looked up by username in the
+ * registry and queued for that one client, whatever room
+ * it is in. It is neither logged nor forwarded to other
+ * nodes, so it only reaches clients of the same node.
+ *
+ * A room other than the lobby closes once its last client
+ * leaves. Clients from before the binary protocol send
+ * their name with every line, so they can't give commands
+ * and stay in the lobby.
+ *
+ * When the config names a log directory every message is
+ * appended to a MessageLog, and a client joining a room is
+ * first sent that room's last few messages. Clients that
+ * speak version 2 of the protocol are sent each message with
+ * its offset in the log as its id and told which room they
+ * are in, so after a lost connection they can come back to
+ * the same room and be sent only the messages they missed.
+ *
+ * Several servers can run as nodes of one cluster, each
+ * linked to every other through a PeerLink. Messages from
+ * a node's own clients, and their joins and leaves, are
+ * forwarded to every other node, which relays and logs
+ * them as if they were its own, so a room spans every node
+ * and clients can be spread over the nodes by a load
+ * balancer. Forwarded messages are never forwarded again.
+ * Each node only counts its own clients in /rooms. A
+ * message id is an offset in one node's log, no use to a
+ * client the load balancer sends to another node, so nodes
+ * of a cluster give out none and a client coming back is
+ * sent its room's last few messages. Links from other nodes
+ * don't count toward the most clients allowed.
+ *
+ * Messages at least as long as the config's compression
+ * threshold are sent compressed to clients that speak
+ * version 3 of the protocol, compressed once for all of
+ * them. History replayed to such a client is compressed
+ * the same way.
+ *
+ * When the config names a key store every connection,
+ * links between nodes included, is made over TLS.
+ *
+ * Clients quiet for the heartbeat interval are pinged by
+ * their transport, and those quiet for the idle timeout
+ * are removed as if their connection had broken.
+ *
+ * Each client may be limited to a number of messages and
+ * bytes a second, checked by its session as they arrive.
+ * Messages past the limit are delayed, dropped or get the
+ * client removed, as the config's flood policy says.
+ *
+ * Shutting down stops accepting clients, tells everyone the
+ * room is closing and gives the transport the configured
+ * shutdown timeout to write what is queued before it closes
+ * every connection, however slow the clients.
+ *
+ * A message is relayed while the core is locked only as far
+ * as giving it its place in line, logged and made into a
+ * Relay. SelectorTransport's I/O threads each queue it for
+ * their own clients in the room, so relaying to a crowd
+ * spread over several threads is done by all of them at once
+ * rather than one after another under the lock. Notices,
+ * history and private messages for a single client are
+ * handed to its thread the same way, behind what was
+ * relayed to it before.
+ *
+ * Counters and timings are kept in a ChatServerMetrics,
+ * registered with JMX while the server runs and served as
+ * text when the config names a metrics port.
+ *
+ * Front ends observe the room through ChatServerListener,
+ * so the server can run on a machine without a display
+ * using the main method below.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ChatServerCore {
+	//room every client starts in, never closed
+	public static final String DEFAULT_ROOM = "lobby";
+
+	//longest room name accepted
+	private static final int MAX_ROOM_NAME = 32;
+	//most rooms named in the answer to /rooms
+	private static final int MAX_ROOMS_LISTED = 100;
+	//most recent messages looked through for a resuming client
+	private static final int MAX_RESUMED = 1000;
+
+	private final ChatServerConfig _config;
+	private final ChatTransport _transport;
+
+	//every connected client, limited to the maximum number of clients
+	private SessionRegistry _sessions;
+	//ids start after the one the server's own frames use
+	private AtomicInteger _nextSessionId = new AtomicInteger(ChatProtocol.SERVER_ID + 1);
+
+	//every open room by name, the lobby included
+	private HashMap<String, ChatRoom> _rooms = new HashMap<String, ChatRoom>();
+	private final ChatRoom _lobby = new ChatRoom(DEFAULT_ROOM);
+
+	//every message relayed, null if no history is kept
+	private MessageLog _log;
+
+	//key and certificate every connection is encrypted with, null for plain text
+	private volatile javax.net.ssl.SSLContext _sslContext;
+
+	//links to the other nodes of the cluster, empty when running alone
+	private ArrayList<PeerLink> _links = new ArrayList<PeerLink>();
+
+	private final ChatServerMetrics _metrics = new ChatServerMetrics(this);
+	//serves the metrics as text, null if no port was given
+	private MetricsEndpoint _metricsEndpoint;
+
+	private volatile boolean _running;
+
+	private CopyOnWriteArrayList<ChatServerListener> _listeners = new CopyOnWriteArrayList<ChatServerListener>();
+
+	private String _clientSentence = "";
+
+	//clients found unreachable during a relay made here, removed once it finishes
+	private ArrayList<Session> _lostSessions = new ArrayList<Session>();
+
+	/**
+	 * creates a server for the given port and client limit with
+	 * every other setting at its default. Nothing is opened until
+	 * start is called.
+	 *
+	 * @param port - port to accept clients on
+	 * @param maximumClients - most clients allowed in the room at once, 0 for no limit
+	 */
+	public ChatServerCore(int port, int maximumClients){
+		this(portAndLimit(port, maximumClients));
+	}
+
+	/**
+	 * creates a server with the given settings. Nothing is
+	 * opened until start is called.
+	 *
+	 * @param config - the server's settings
+	 */
+	public ChatServerCore(ChatServerConfig config){
+		this._config = config;
+
+		this._sessions = new SessionRegistry(config.getMaximumClients());
+		this._rooms.put(DEFAULT_ROOM, this._lobby);
+
+		if(config.getLogDirectory() != null)
+			this._log = new MessageLog(new File(config.getLogDirectory()), config.getLogSegmentSize(),
+					config.getRetainedLogSegments(), config.getReplayCount());
+
+		if(config.getMetricsPort() > 0)
+			this._metricsEndpoint = new MetricsEndpoint(this._metrics, config.getMetricsPort());
+
+		for(java.net.InetSocketAddress peer : config.getPeers())
+			this._links.add(new PeerLink(this, config.getNodeName(), peer));
+
+		if(config.getIoMode() == ChatServerConfig.IoMode.VIRTUAL_THREADS)
+			this._transport = new VirtualThreadTransport(this, config.getPort());
+		else
+			this._transport = new SelectorTransport(this, config.getPort(), config.getIoThreads());
+	}
+
+	/**
+	 * runs the server without a window.
+	 *
+	 * options are listed in ChatServerConfig.USAGE
+	 * a maximum of 0 lets any number of clients join
+	 */
+	public static void main(String[] args) {
+		ChatServerConfig config = null;
+
+		try {
+			config = ChatServerConfig.parse(args);
+		}
+		catch(RuntimeException e) {
+			System.err.println(e.getMessage());
+			System.err.println(ChatServerConfig.USAGE);
+			System.exit(2);
+		}
+
+		int port = config.getPort();
+
+		final ChatServerCore server = new ChatServerCore(config);
+
+		//prints the chatroom to the console in place of the window
+		server.addListener(new ChatServerListener(){
+			public void chatMessage(String line){
+				System.out.println(line);
+			}
+
+			public void serverError(Exception ex){
+				System.err.println("Unknown Exception: " + ex.toString());
+			}
+
+			public void serverStopped(){
+				System.out.println("Server stopped");
+			}
+		});
+
+		//tells clients the room is closing when the process is stopped
+		Runtime.getRuntime().addShutdownHook(new Thread(){
+			public void run(){
+				server.shutdown("Server has left the room.");
+
+				try {
+					//the transport closes everything once the timeout passes
+					server.awaitStop(server.getConfig().getShutdownTimeout() + 1000);
+				}
+				catch(InterruptedException e) {
+					//exiting anyway
+				}
+			}
+		});
+
+		try {
+			server.start();
+
+			if(config.getIoMode() == ChatServerConfig.IoMode.VIRTUAL_THREADS && !VirtualThreadTransport.hasVirtualThreads())
+				System.out.println("Virtual threads unavailable, using a platform thread per client");
+
+			System.out.println("Waiting on Connection at Port " + port);
+
+			if(config.getMetricsPort() > 0)
+				System.out.println("Metrics at http://localhost:" + config.getMetricsPort() + "/metrics");
+
+			//client threads may be daemons, so main waits for the server to stop
+			server.awaitStop(0);
+		}
+		catch(InterruptedException e) {
+			//exiting anyway
+		}
+		catch(java.net.BindException e) {
+			System.err.println("Port " + port + " Already in use");
+			System.exit(1);
+		}
+		catch(IOException e) {
+			System.err.println("Unknown Exception: " + e.toString());
+			System.exit(1);
+		}
+	}//end Main
+
+	/**
+	 * @return default settings with the given port and client limit
+	 */
+	private static ChatServerConfig portAndLimit(int port, int maximumClients) {
+		ChatServerConfig config = new ChatServerConfig();
+		config.setPort(port);
+		config.setMaximumClients(maximumClients);
+
+		return config;
+	}
+
+	/**
+	 * adds an observer of the chatroom.
+	 *
+	 * @param listener - listener to add
+	 */
+	public void addListener(ChatServerListener listener) {
+		this._listeners.add(listener);
+	}
+
+	/**
+	 * removes an observer of the chatroom.
+	 *
+	 * @param listener - listener to remove
+	 */
+	public void removeListener(ChatServerListener listener) {
+		this._listeners.remove(listener);
+	}
+
+	/**
+	 * @return the port clients connect on
+	 */
+	public int getPort() {
+		return this._config.getPort();
+	}
+
+	/**
+	 * @return counters and timings of the server
+	 */
+	public ChatServerMetrics getMetrics() {
+		return this._metrics;
+	}
+
+	/**
+	 * @return context connections are encrypted with, null for plain text
+	 */
+	javax.net.ssl.SSLContext getSslContext() {
+		return this._sslContext;
+	}
+
+	/**
+	 * @return whether the server is accepting clients
+	 */
+	public boolean isRunning() {
+		return this._running;
+	}
+
+	/**
+	 * opens the message log, if one is kept, and the metrics
+	 * endpoint, if one is served, then opens the port and
+	 * starts accepting clients. Links to other nodes are made
+	 * in the background once the port is open.
+	 *
+	 * @throws java.net.BindException - a port is already in use
+	 * @throws IOException - the message log or key store can't be opened
+	 */
+	public void start() throws IOException {
+		if(this._config.getKeyStore() != null)
+			this._sslContext = TlsConnection.newContext(this._config.getKeyStore(), this._config.getKeyStorePassword());
+
+		if(this._log != null)
+			this._log.open();
+
+		this._running = true;
+
+		try {
+			if(this._metricsEndpoint != null)
+				this._metricsEndpoint.start();
+
+			this._transport.start();
+		}
+		catch(IOException e) {
+			this._running = false;
+
+			if(this._metricsEndpoint != null)
+				this._metricsEndpoint.stop();
+
+			if(this._log != null)
+				this._log.close();
+
+			throw e;
+		}
+
+		for(PeerLink link : this._links)
+			link.start();
+
+		try {
+			this._metrics.register(this.getPort());
+		}
+		catch(javax.management.JMException e) {
+			//another server in this JVM on the same port, still readable through getMetrics
+			this.fireServerError(e);
+		}
+	}
+
+	/**
+	 * waits for the server's threads to finish after shutdown.
+	 *
+	 * @param millis - longest time to wait, 0 waits forever
+	 */
+	public void awaitStop(long millis) throws InterruptedException {
+		this._transport.awaitStop(millis);
+	}
+
+	/**
+	 * sends a message from the host to every client, whatever
+	 * room they are in. Safe to call from any thread.
+	 *
+	 * @param message - line to send, already prefixed with the host's name
+	 */
+	public synchronized void broadcast(String message) {
+		this._metrics.messageIn();
+
+		long id = this.logMessage(null, ChatProtocol.SERVER_ID, message);
+
+		this.relayMessage(ChatProtocol.MESSAGE, message, null, null, id);
+
+		this.forward(ChatProtocol.MESSAGE, null, message);
+	}
+
+	/**
+	 * tells every client the room is closing, disconnects
+	 * them once their queues drain and stops the transport,
+	 * which closes whatever is left after the shutdown
+	 * timeout. Safe to call from any thread.
+	 *
+	 * @param farewell - last line sent before clients are told to leave
+	 */
+	public void shutdown(String farewell) {
+		synchronized(this) {
+			if(!this._running)
+				return;
+
+			this._running = false;
+
+			this.relayMessage(ChatProtocol.NOTICE, farewell, null, null, ChatProtocol.NO_ID);
+			this.relayMessage(ChatProtocol.LEAVE, "", null, null, ChatProtocol.NO_ID);
+
+			//lets the last messages drain before each connection closes
+			while(this._sessions.size() > 0) {
+				Session session = this._sessions.get(0);
+
+				this._sessions.remove(session);
+				this.leaveRoom(session);
+				session.closeAfterFlush();
+			}
+		}
+
+		this.stopLinks();
+
+		this._transport.stop(this._config.getShutdownTimeout());
+	}
+
+	/**
+	 * @return the server's settings
+	 */
+	ChatServerConfig getConfig() {
+		return this._config;
+	}
+
+	/**
+	 * @return a new id for a session being accepted
+	 */
+	int nextSessionId() {
+		return this._nextSessionId.getAndIncrement();
+	}
+
+	/**
+	 * called by the transport for every accepted client.
+	 * A client that doesn't fit is still read until its hello
+	 * arrives, then told the room is full.
+	 *
+	 * @param session - the new client
+	 * @return false if the chatroom is full
+	 */
+	synchronized boolean sessionOpened(Session session) {
+		session.setHighWaterMark(this._config.getHighWaterMark());
+		session.setMetrics(this._metrics);
+		session.setRateLimiter(this._config.newRateLimiter());
+
+		if(!this._running)
+			return false;
+
+		return this._sessions.add(session);
+	}
+
+	/**
+	 * called by the transport for every frame a client sends.
+	 * Lines from old clients arrive here as the frames they stand for.
+	 *
+	 * @param session - the sending client
+	 * @param type - one of the ChatProtocol frame types
+	 * @param id - message id the frame carried, NO_ID for none
+	 * @param payload - the frame's payload
+	 */
+	synchronized void frameReceived(Session session, byte type, long id, String payload) {
+		//frame read before the client was closed
+		if(session.isClosing())
+			return;
+
+		switch(type) {
+			case ChatProtocol.HELLO:
+				//no room was left when the client connected
+				if(!session.isOpen())
+					this.rejectClient(session);
+				else if(!session.isJoined() && !session.isPeer())
+					this.connectClient(session, payload, id);
+				break;
+
+			case ChatProtocol.PEER:
+				//links from other nodes are let in however many clients there are
+				if(!session.isOpen() && !this._running)
+					this.rejectClient(session);
+				else if(session.isBinary() && !session.isJoined() && !session.isPeer())
+					this.connectPeer(session, payload);
+				break;
+
+			case ChatProtocol.NOTICE:
+				if(session.isPeer())
+					this.forwarded(type, payload);
+				break;
+
+			case ChatProtocol.LEAVE:
+				//old clients announce their own leaving before EXIT
+				if(session.isBinary())
+					this.clientLost(session);
+				else
+					this.removeClient(session);
+				break;
+
+			case ChatProtocol.MESSAGE:
+				if(session.isPeer()) {
+					this.forwarded(type, payload);
+					break;
+				}
+
+				//removed at shutdown, closing once what was relayed to it is written
+				if(!session.isJoined() || !session.isOpen())
+					break;
+
+				if(session.isBinary() && payload.startsWith("/")) {
+					this.runCommand(session, payload);
+					break;
+				}
+
+				this._metrics.messageIn();
+
+				//old clients send the line already prefixed with their name
+				String line = session.isBinary() ? session.getUsername() + ": " + payload : payload;
+
+				String room = session.getRoom().getName();
+
+				//only built when someone is listening
+				if(!this._listeners.isEmpty())
+					this.fireChatMessage(roomPrefix(room) + line);
+
+				long logged = this.logMessage(room, session.getId(), line);
+
+				this.relayMessage(ChatProtocol.MESSAGE, line, session, session.getRoom(), logged);
+
+				this.forward(ChatProtocol.MESSAGE, room, line);
+				break;
+
+			default:
+				//frames only the server sends are ignored
+				break;
+		}
+	}
+
+	/**
+	 * called by the transport when a client hangs up, its
+	 * connection breaks or it breaks the protocol, or a relay
+	 * finds it unreachable or too far behind.
+	 *
+	 * @param session - the client that is gone
+	 */
+	synchronized void sessionClosed(Session session) {
+		this.clientLost(session);
+	}
+
+	/**
+	 * called by the transport for a client quiet for longer
+	 * than the idle timeout, which is then treated as lost.
+	 *
+	 * @param session - the quiet client
+	 */
+	synchronized void sessionTimedOut(Session session) {
+		if(session.isClosed())
+			return;
+
+		this._metrics.timedOut();
+
+		this.clientLost(session);
+	}
+
+	/**
+	 * @return clients connected, joined or not
+	 */
+	synchronized int connectionCount() {
+		return this._sessions.size();
+	}
+
+	/**
+	 * @return rooms open, the lobby included
+	 */
+	synchronized int roomCount() {
+		return this._rooms.size();
+	}
+
+	/**
+	 * finds the most bytes queued for any one client. Walks
+	 * every session, so only called when the metrics are read.
+	 *
+	 * @return bytes queued for the client furthest behind
+	 */
+	synchronized long maxQueuedBytes() {
+		long most = 0;
+
+		for(int i = 0; i < this._sessions.size(); i++)
+			most = Math.max(most, this._sessions.get(i).getOutboundBytes());
+
+		return most;
+	}
+
+	/**
+	 * called by a session for a message its client sent past
+	 * the rate limit. Only removing the client locks the core,
+	 * so a client flooding the room doesn't hold up the relay.
+	 *
+	 * @param session - the client sending too fast
+	 * @param policy - what the session did with the message
+	 * @param first - whether the client should be told, once per flood
+	 */
+	void clientFlooding(Session session, ChatServerConfig.FloodPolicy policy, boolean first) {
+		switch(policy) {
+			case DELAY:
+				this._metrics.messageDelayed();
+				break;
+
+			case DROP:
+				this._metrics.messageLimited();
+
+				if(first)
+					this.sendTo(session, ChatProtocol.NOTICE, ChatProtocol.SERVER_ID,
+							"You are sending too fast, messages are being dropped");
+				break;
+
+			default:
+				synchronized(this) {
+					ChatRoom room = session.getRoom();
+
+					if(!this.removeClient(session))
+						return;
+
+					this._metrics.kicked();
+
+					this.announce(room, session.getUsername() + " was removed for flooding the room");
+				}
+				break;
+		}
+	}
+
+	/**
+	 * called by a link to another node when it is made or lost.
+	 *
+	 * @param link - link whose state changed
+	 * @param up - whether the link was made
+	 */
+	void peerLinked(PeerLink link, boolean up) {
+		this.fireChatMessage(up ? "Linked to node " + link : "Lost link to node " + link);
+	}
+
+	/**
+	 * called by the transport when it runs into an exception
+	 * it cannot handle on its own.
+	 *
+	 * @param ex - the unexpected exception
+	 */
+	void transportError(Exception ex) {
+		this.fireServerError(ex);
+	}
+
+	/**
+	 * called by the transport once everything has stopped.
+	 */
+	void transportStopped() {
+		synchronized(this) {
+			this._running = false;
+
+			//clients still left if the transport stopped on its own
+			while(this._sessions.size() > 0)
+				this.removeClient(this._sessions.get(0));
+
+			if(this._log != null)
+				this._log.close();
+		}
+
+		this.stopLinks();
+
+		this._metrics.unregister();
+
+		if(this._metricsEndpoint != null)
+			this._metricsEndpoint.stop();
+
+		for(ChatServerListener listener : this._listeners)
+			listener.serverStopped();
+	}
+
+	/**
+	 * queues a message for all clients in a room, or in every
+	 * room, except the original sender. The transport's I/O
+	 * threads are handed the message to queue for their own
+	 * clients if it has any, otherwise it is queued for every
+	 * client here. Clients found unreachable, or too far behind
+	 * under the disconnect policy, are removed once every other
+	 * client has been sent the message.
+	 *
+	 * @param type - MESSAGE, NOTICE or LEAVE
+	 * @param message - String to send
+	 * @param sender - the sending client. null if host is sender
+	 * @param room - room to send to, null for every client
+	 * @param id - id the message was logged with, NO_ID if it wasn't
+	 */
+	private void relayMessage(byte type, String message, Session sender, ChatRoom room, long id){
+		Relay relay = new Relay(type, message, sender, room, this.givesIds() ? id : ChatProtocol.NO_ID,
+				this.worthCompressing(message.length()), this._metrics,
+				this._config.getSlowConsumerPolicy() == ChatServerConfig.SlowConsumerPolicy.DISCONNECT);
+
+		if(this._transport.relay(relay))
+			return;
+
+		int queued = 0;
+		int count = room == null ? this._sessions.size() : room.size();
+
+		for(int i = 0; i < count; i++) {
+			if(relay.sendTo(room == null ? this._sessions.get(i) : room.get(i), this._lostSessions))
+				queued++;
+		}
+
+		relay.finished(queued);
+
+		while(!this._lostSessions.isEmpty())
+			this.clientLost(this._lostSessions.remove(this._lostSessions.size() - 1));
+	}
+
+	/**
+	 * sends a single frame to one client in its own protocol,
+	 * queued after everything relayed to it before. A client
+	 * too far behind to take it misses it, counted as dropped.
+	 *
+	 * @param session - client to send to
+	 * @param type - one of the frame types
+	 * @param sender - session id of the sender
+	 * @param payload - the frame's payload
+	 */
+	private void sendTo(final Session session, final byte type, final int sender, final String payload) {
+		session.afterRelays(new Runnable(){
+			public void run(){
+				if(!queueFrame(session, type, sender, payload) && !session.isClosed())
+					_metrics.messageDropped();
+			}
+		});
+	}
+
+	/**
+	 * queues a single frame for one client in its own protocol,
+	 * on the thread relaying to the client.
+	 *
+	 * @param session - client to send to
+	 * @param type - one of the frame types
+	 * @param sender - session id of the sender
+	 * @param payload - the frame's payload
+	 * @return false if the client is too far behind or unreachable and nothing was queued
+	 */
+	private boolean queueFrame(Session session, byte type, int sender, String payload) {
+		try {
+			if(session.isBinary())
+				return session.send(ChatProtocol.encodeFrame(type, sender, ChatProtocol.NO_ID, payload,
+						session.canCompress() && this.worthCompressing(payload.length())));
+			else
+				return session.send(ChatProtocol.encodeLine(ChatProtocol.legacyLine(type, payload)));
+		}
+		catch(IOException ex) {
+			//Called if client is unreachable, noticed by its transport
+			session.close();
+			return false;
+		}
+	}
+
+	/**
+	 * removes a client whose connection broke and lets
+	 * everyone else know they are gone.
+	 *
+	 * @param session - the unreachable client
+	 */
+	private void clientLost(Session session) {
+		ChatRoom room = session.getRoom();
+
+		//already removed, or never let in because the room was full
+		if(!this.removeClient(session)) {
+			session.close();
+			return;
+		}
+
+		//clients that never sent a username were never announced
+		if(session.isJoined() && room != null) {
+			this._metrics.lost();
+
+			//sends that a user has disconnect to the rest of the room
+			this.announce(room, session.getUsername() + " has left the room");
+		}
+	}
+
+	/**
+	 * removes a single client from the chatroom.
+	 *
+	 * @param session - the client to be removed
+	 * @return false if the client was already removed
+	 */
+	private boolean removeClient(Session session) {
+		if(!this._sessions.remove(session))
+			return false;
+
+		this.leaveRoom(session);
+		session.close();
+
+		return true;
+	}
+
+	/**
+	 * connects a single client once its username arrives.
+	 * Binary clients are sent ACCEPT with their id first. A
+	 * client resuming after a lost connection names the room
+	 * it was in and goes straight back there, and if it names
+	 * the last message it was sent it is sent only those it
+	 * missed since. Everyone else starts in the lobby.
+	 *
+	 * @param session - the client's session
+	 * @param hello - username sent by the client, followed by a room when resuming
+	 * @param after - id of the last message a resuming client was sent, NO_ID for none
+	 */
+	private void connectClient(Session session, String hello, long after) {
+		String username = hello;
+		String name = DEFAULT_ROOM;
+
+		int separator = session.canResume() ? hello.indexOf(ChatProtocol.ROOM_SEPARATOR) : -1;
+
+		if(separator != -1) {
+			username = hello.substring(0, separator);
+			name = hello.substring(separator + 1);
+
+			//rooms a client could never have joined
+			if(!isRoomName(name))
+				name = DEFAULT_ROOM;
+		}
+
+		this._sessions.setUsername(session, username);
+
+		if(session.isBinary())
+			this.sendTo(session, ChatProtocol.ACCEPT, session.getId(), username);
+
+		ChatRoom room = this.enterRoom(session, name);
+
+		this._metrics.accepted();
+
+		this.tellRoom(session);
+
+		this.replay(session, room, separator == -1 || !this.givesIds() ? ChatProtocol.NO_ID : after);
+
+		this._clientSentence = username + " joined the room";
+
+		this.announce(room, this._clientSentence);
+	}
+
+	/**
+	 * accepts a link from another node of the cluster. The
+	 * node is sent ACCEPT with this node's name and from then
+	 * on only forwards messages to it.
+	 *
+	 * @param session - the linking node's session
+	 * @param node - name the node gave itself
+	 */
+	private void connectPeer(Session session, String node) {
+		this._sessions.setPeer(session);
+
+		this.sendTo(session, ChatProtocol.ACCEPT, session.getId(), this._config.getNodeName());
+
+		this.fireChatMessage("Node " + node + " linked in");
+	}
+
+	/**
+	 * sends a message or notice that started on this node to
+	 * every other node of the cluster, encoded once for all.
+	 *
+	 * @param type - MESSAGE or NOTICE
+	 * @param room - room it was sent in, null for every room
+	 * @param line - the line as relayed
+	 */
+	private void forward(byte type, String room, String line) {
+		if(this._links.isEmpty())
+			return;
+
+		byte[] frame = ChatProtocol.frameBytes(type, ChatProtocol.SERVER_ID,
+				(room == null ? "" : room) + ChatProtocol.ROOM_SEPARATOR + line);
+
+		for(PeerLink link : this._links) {
+			if(link.forward(frame))
+				this._metrics.forwardedOut();
+			else
+				this._metrics.forwardDropped();
+		}
+	}
+
+	/**
+	 * relays a message or notice forwarded by another node to
+	 * this node's clients in its room, logging messages like
+	 * those sent here. Never forwarded again.
+	 *
+	 * @param type - MESSAGE or NOTICE
+	 * @param payload - room name, the separator and the line
+	 */
+	private void forwarded(byte type, String payload) {
+		int separator = payload.indexOf(ChatProtocol.ROOM_SEPARATOR);
+
+		if(separator == -1)
+			return;
+
+		String name = separator == 0 ? null : payload.substring(0, separator);
+		String line = payload.substring(separator + 1);
+
+		//no client here could have opened it
+		if(name != null && !isRoomName(name))
+			return;
+
+		this._metrics.forwardedIn();
+
+		//no one here is in the room, it is still logged for those who join it
+		ChatRoom room = name == null ? null : this._rooms.get(name);
+
+		this.fireChatMessage(roomPrefix(name) + line);
+
+		long id = ChatProtocol.NO_ID;
+
+		if(type == ChatProtocol.MESSAGE)
+			id = this.logMessage(name, ChatProtocol.SERVER_ID, line);
+
+		if(name == null || room != null)
+			this.relayMessage(type, line, null, room, id);
+	}
+
+	/**
+	 * stops every link to another node.
+	 */
+	private void stopLinks() {
+		for(PeerLink link : this._links)
+			link.stop();
+	}
+
+	/**
+	 * carries out a command a client sent in place of a message.
+	 *
+	 * @param session - client that sent it
+	 * @param command - the message, starting with a slash
+	 */
+	private void runCommand(Session session, String command) {
+		String[] words = command.trim().split("\\s+", 2);
+		String argument = words.length > 1 ? words[1] : "";
+
+		if(words[0].equals("/join"))
+			this.joinRoom(session, argument);
+		else if(words[0].equals("/leave"))
+			this.joinRoom(session, DEFAULT_ROOM);
+		else if(words[0].equals("/rooms"))
+			this.sendTo(session, ChatProtocol.NOTICE, ChatProtocol.SERVER_ID, this.listRooms());
+		else if(words[0].equals("/msg"))
+			this.directMessage(session, argument);
+		else
+			this.sendTo(session, ChatProtocol.NOTICE, ChatProtocol.SERVER_ID,
+					"Unknown command " + words[0] + ", try /join room, /leave, /rooms or /msg name message");
+	}
+
+	/**
+	 * sends a message to one client only. The client is found
+	 * through the registry's username index, so this costs one
+	 * lookup and one queued frame however many are connected.
+	 * A receiver too far behind to take it isn't sent it, and
+	 * the sender is told.
+	 *
+	 * @param session - client sending the message
+	 * @param argument - username of the receiver, then the message
+	 */
+	private void directMessage(final Session session, String argument) {
+		String[] words = argument.split("\\s+", 2);
+
+		if(words.length < 2 || words[0].isEmpty()) {
+			this.sendTo(session, ChatProtocol.NOTICE, ChatProtocol.SERVER_ID, "Usage: /msg name message");
+			return;
+		}
+
+		final Session receiver = this._sessions.getByUsername(words[0]);
+
+		if(receiver == null || receiver.isPeer() || receiver.isClosing()) {
+			this.sendTo(session, ChatProtocol.NOTICE, ChatProtocol.SERVER_ID, "No one called " + words[0] + " is here");
+			return;
+		}
+
+		this._metrics.messageIn();
+
+		final int sender = session.getId();
+		final String line = session.getUsername() + " (private): " + words[1];
+		final String username = receiver.getUsername();
+
+		receiver.afterRelays(new Runnable(){
+			public void run(){
+				if(queueFrame(receiver, ChatProtocol.MESSAGE, sender, line)) {
+					_metrics.messagesOut(1);
+				}
+				else if(!receiver.isClosed()) {
+					_metrics.messageDropped();
+
+					sendTo(session, ChatProtocol.NOTICE, ChatProtocol.SERVER_ID,
+							username + " is too far behind, your message was not delivered");
+				}
+			}
+		});
+	}
+
+	/**
+	 * moves a client into a room, opening it if no one is in it.
+	 * Both rooms are told, and the client is told where it is.
+	 *
+	 * @param session - client moving
+	 * @param name - room to move to
+	 */
+	private void joinRoom(Session session, String name) {
+		if(!isRoomName(name)) {
+			this.sendTo(session, ChatProtocol.NOTICE, ChatProtocol.SERVER_ID,
+					"Room names are 1 to " + MAX_ROOM_NAME + " characters, with no control characters");
+			return;
+		}
+
+		ChatRoom current = session.getRoom();
+
+		if(current != null && current.getName().equals(name)) {
+			this.sendTo(session, ChatProtocol.NOTICE, ChatProtocol.SERVER_ID, "You are already in room " + name);
+			return;
+		}
+
+		if(this.leaveRoom(session) != null)
+			this.announce(current, session.getUsername() + " has left the room");
+
+		ChatRoom room = this.enterRoom(session, name);
+
+		this.sendTo(session, ChatProtocol.NOTICE, ChatProtocol.SERVER_ID, "You are now in room " + name);
+		this.tellRoom(session);
+
+		this.replay(session, room, ChatProtocol.NO_ID);
+
+		this.announce(room, session.getUsername() + " joined the room");
+	}
+
+	/**
+	 * @param name - room wanted
+	 * @return the room by that name, opened if no one is in it
+	 */
+	private ChatRoom openRoom(String name) {
+		ChatRoom room = this._rooms.get(name);
+
+		if(room == null) {
+			room = new ChatRoom(name);
+			this._rooms.put(name, room);
+		}
+
+		return room;
+	}
+
+	/**
+	 * puts a client that is in no room into one, opening it if
+	 * no one is in it.
+	 *
+	 * @param session - client joining
+	 * @param name - room to join
+	 * @return the room joined
+	 */
+	private ChatRoom enterRoom(Session session, String name) {
+		ChatRoom room = this.openRoom(name);
+		room.add(session);
+
+		session.roomChanged(null, room);
+
+		return room;
+	}
+
+	/**
+	 * tells a client which room it is in, if it takes ROOM frames.
+	 *
+	 * @param session - client that just moved
+	 */
+	private void tellRoom(Session session) {
+		if(session.canResume())
+			this.sendTo(session, ChatProtocol.ROOM, ChatProtocol.SERVER_ID, session.getRoom().getName());
+	}
+
+	/**
+	 * appends a relayed message to the log, if one is kept.
+	 *
+	 * @param room - name of the room it was sent in, null for every room
+	 * @param sender - session id of the sender
+	 * @param line - the message as relayed
+	 * @return id the message was logged with, NO_ID if it wasn't
+	 */
+	private long logMessage(String room, int sender, String line) {
+		if(this._log == null)
+			return ChatProtocol.NO_ID;
+
+		try {
+			long offset = this._log.append(room, ChatProtocol.MESSAGE, sender, line);
+
+			return offset < 0 ? ChatProtocol.NO_ID : offset;
+		}
+		catch(IOException ex) {
+			//a new segment couldn't be made, the message is still relayed
+			this.fireServerError(ex);
+			return ChatProtocol.NO_ID;
+		}
+	}
+
+	/**
+	 * sends a client the last messages of a room it joined,
+	 * or when resuming the messages it missed, as far back as
+	 * the last MAX_RESUMED logged. Clients taking ids are
+	 * queued the logged frames themselves, other binary
+	 * clients the frames without their ids and old clients
+	 * lines, after everything relayed to the client before.
+	 *
+	 * @param session - client that joined
+	 * @param room - room it joined
+	 * @param after - id of the last message the client was sent, NO_ID for the room's last few
+	 */
+	private void replay(final Session session, ChatRoom room, long after) {
+		if(this._log == null)
+			return;
+
+		final ArrayList<ByteBuffer> frames;
+
+		if(after == ChatProtocol.NO_ID)
+			frames = this._log.recent(room.getName());
+		else
+			frames = this._log.readFrom(Math.max(after + 1, this._log.getNextOffset() - MAX_RESUMED),
+					room.getName(), MAX_RESUMED);
+
+		session.afterRelays(new Runnable(){
+			public void run(){
+				sendFrames(session, frames);
+			}
+		});
+	}
+
+	/**
+	 * queues logged frames for a client in its own protocol.
+	 *
+	 * @param session - client to send to
+	 * @param frames - frames as the log keeps them
+	 */
+	private void sendFrames(Session session, ArrayList<ByteBuffer> frames) {
+		try {
+			for(ByteBuffer frame : frames) {
+				long id = this.givesIds() ? ChatProtocol.frameId(frame) : ChatProtocol.NO_ID;
+
+				//the log keeps frames as they are, long ones are compressed on the way out
+				if(session.canCompress() && this.worthCompressing(frame.getInt(6)))
+					session.send(ChatProtocol.encodeFrame(frame.get(0), frame.getInt(2), id,
+							ChatProtocol.frameText(frame), true));
+				else if((session.canResume() && id != ChatProtocol.NO_ID) || (session.isBinary() && !ChatProtocol.hasId(frame)))
+					session.send(PooledBuffer.wrap(frame));
+				else if(session.isBinary())
+					session.send(ChatProtocol.encodeFrame(frame.get(0), frame.getInt(2), ChatProtocol.frameText(frame)));
+				else
+					session.send(ChatProtocol.encodeLine(ChatProtocol.frameText(frame)));
+			}
+		}
+		catch(IOException ex) {
+			//Called if client is unreachable, noticed by its transport
+			session.close();
+		}
+	}
+
+	/**
+	 * @return whether clients are sent message ids to resume from, never when clustered
+	 */
+	private boolean givesIds() {
+		return this._links.isEmpty();
+	}
+
+	/**
+	 * @param length - characters of text, or bytes when read from the log
+	 * @return whether text of that length is sent compressed to clients that take it
+	 */
+	private boolean worthCompressing(int length) {
+		int threshold = this._config.getCompressThreshold();
+
+		return threshold > 0 && length >= threshold;
+	}
+
+	/**
+	 * takes a client out of its room, closing the room if it
+	 * was the last one there and the room isn't the lobby.
+	 *
+	 * @param session - client leaving
+	 * @return room the client was in, null if none
+	 */
+	private ChatRoom leaveRoom(Session session) {
+		ChatRoom room = session.getRoom();
+
+		if(room == null)
+			return null;
+
+		room.remove(session);
+
+		session.roomChanged(room, null);
+
+		if(room.size() == 0 && room != this._lobby)
+			this._rooms.remove(room.getName());
+
+		return room;
+	}
+
+	/**
+	 * @return the open rooms and their sizes, as one line
+	 */
+	private String listRooms() {
+		StringBuilder list = new StringBuilder("Rooms:");
+
+		int listed = 0;
+		for(ChatRoom room : this._rooms.values()) {
+			if(listed == MAX_ROOMS_LISTED) {
+				list.append(" and ").append(this._rooms.size() - listed).append(" more");
+				break;
+			}
+
+			list.append(listed == 0 ? " " : ", ").append(room.getName()).append(" (").append(room.size()).append(')');
+			listed++;
+		}
+
+		return list.toString();
+	}
+
+	/**
+	 * shows a line about a room to the host and sends it to
+	 * everyone in the room.
+	 *
+	 * @param room - room the line is about
+	 * @param line - line to show
+	 */
+	private void announce(ChatRoom room, String line) {
+		this.fireChatMessage(roomPrefix(room.getName()) + line);
+
+		this.relayMessage(ChatProtocol.NOTICE, line, null, room, ChatProtocol.NO_ID);
+
+		this.forward(ChatProtocol.NOTICE, room.getName(), line);
+	}
+
+	/**
+	 * checks a room name a client asked for. Control characters
+	 * are refused, ROOM_SEPARATOR among them, as resuming clients
+	 * and linked servers send the room and a line split by it.
+	 *
+	 * @param name - name of the room
+	 * @return whether a client may open or join a room of that name
+	 */
+	private static boolean isRoomName(String name) {
+		if(name.isEmpty() || name.length() > MAX_ROOM_NAME)
+			return false;
+
+		for(int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+
+			if(c == ChatProtocol.ROOM_SEPARATOR || Character.isISOControl(c))
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @param room - name of the room, null for every room
+	 * @return what lines from a room start with in the host's log, nothing for the lobby
+	 */
+	private static String roomPrefix(String room) {
+		if(room == null || room.equals(DEFAULT_ROOM))
+			return "";
+
+		return "[" + room + "] ";
+	}
+
+	/**
+	 * tells a client there was no room for it and closes
+	 * the connection once the reply has been written.
+	 *
+	 * @param session - client to turn away
+	 */
+	private void rejectClient(Session session) {
+		this._metrics.rejected();
+
+		this.sendTo(session, ChatProtocol.REJECT, ChatProtocol.SERVER_ID, "Chat room is currently full");
+
+		session.closeAfterFlush();
+	}
+
+	/**
+	 * passes a chatroom line on to every listener.
+	 *
+	 * @param line - line to pass on
+	 */
+	private void fireChatMessage(String line) {
+		for(ChatServerListener listener : this._listeners)
+			listener.chatMessage(line);
+	}
+
+	/**
+	 * passes an unexpected exception on to every listener.
+	 *
+	 * @param ex - exception to pass on
+	 */
+	private void fireServerError(Exception ex) {
+		for(ChatServerListener listener : this._listeners)
+			listener.serverError(ex);
+	}
+}//end ChatServerCore class
@@ -0,0 +1,38 @@
+/**
+ * Observer of a ChatServerCore. Lets a front end such
+ * as the server window or a console log show what is
+ * happening in the chatroom without the server itself
+ * knowing anything about it.
+ *
+ * Methods are called on the server's I/O threads, so
+ * implementations should return quickly and hand any
+ * GUI work off to the event dispatch thread.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+public interface ChatServerListener {
+
+	/**
+	 * called for every line the chatroom shows, including
+	 * joins, leaves and relayed client messages.
+	 *
+	 * @param line - the line without its terminator
+	 */
+	void chatMessage(String line);
+
+	/**
+	 * called when the server runs into an exception
+	 * it cannot handle on its own.
+	 *
+	 * @param ex - the unexpected exception
+	 */
+	void serverError(Exception ex);
+
+	/**
+	 * called once the I/O threads have closed every
+	 * connection and stopped.
+	 */
+	void serverStopped();
+}
@@ -0,0 +1,351 @@
+/**
+ * Counters and timings kept by a ChatServerCore. Counting
+ * on the relay path is a LongAdder increment, which threads
+ * don't contend on, and a relay is timed with two reads of
+ * the clock. The bytes queued for clients are a running
+ * total kept the same way. Other gauges, such as the most
+ * queued for one client, are worked out from the core only
+ * when someone asks, so they cost nothing between scrapes.
+ *
+ * Read through JMX, registered by the core while it runs,
+ * or as plain text in the Prometheus exposition format
+ * from MetricsEndpoint.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class ChatServerMetrics implements ChatServerMetricsMBean {
+	private final ChatServerCore _core;
+
+	private final LongAdder _accepted = new LongAdder();
+	private final LongAdder _rejected = new LongAdder();
+	private final LongAdder _lost = new LongAdder();
+	private final LongAdder _evicted = new LongAdder();
+	private final LongAdder _messagesIn = new LongAdder();
+	private final LongAdder _messagesOut = new LongAdder();
+	private final LongAdder _messagesDropped = new LongAdder();
+	private final LongAdder _bytesIn = new LongAdder();
+	private final LongAdder _bytesOut = new LongAdder();
+	//added to as bytes are queued for clients, taken from as they are written or thrown away
+	private final LongAdder _queuedBytes = new LongAdder();
+	private final LongAdder _forwardedOut = new LongAdder();
+	private final LongAdder _forwardsDropped = new LongAdder();
+	private final LongAdder _forwardedIn = new LongAdder();
+	private final LongAdder _messagesDelayed = new LongAdder();
+	private final LongAdder _messagesLimited = new LongAdder();
+	private final LongAdder _kicked = new LongAdder();
+	private final LongAdder _timedOut = new LongAdder();
+
+	//nanoseconds each relay took to queue a message for everyone
+	private final LatencyHistogram _relayTimes = new LatencyHistogram();
+
+	//name registered with the platform MBean server, null while not registered
+	private ObjectName _name;
+
+	/**
+	 * @param core - server the gauges are read from
+	 */
+	ChatServerMetrics(ChatServerCore core) {
+		this._core = core;
+	}
+
+	void accepted() {
+		this._accepted.increment();
+	}
+
+	void rejected() {
+		this._rejected.increment();
+	}
+
+	void lost() {
+		this._lost.increment();
+	}
+
+	void evicted() {
+		this._evicted.increment();
+	}
+
+	void messageIn() {
+		this._messagesIn.increment();
+	}
+
+	/**
+	 * @param recipients - clients the message was queued for
+	 */
+	void messagesOut(int recipients) {
+		this._messagesOut.add(recipients);
+	}
+
+	void messageDropped() {
+		this._messagesDropped.increment();
+	}
+
+	void bytesIn(long bytes) {
+		this._bytesIn.add(bytes);
+	}
+
+	void bytesOut(long bytes) {
+		this._bytesOut.add(bytes);
+	}
+
+	/**
+	 * @param bytes - change in the bytes queued for a client, negative once they leave the queue
+	 */
+	void bytesQueued(long bytes) {
+		this._queuedBytes.add(bytes);
+	}
+
+	void forwardedOut() {
+		this._forwardedOut.increment();
+	}
+
+	void forwardDropped() {
+		this._forwardsDropped.increment();
+	}
+
+	void forwardedIn() {
+		this._forwardedIn.increment();
+	}
+
+	void messageDelayed() {
+		this._messagesDelayed.increment();
+	}
+
+	void messageLimited() {
+		this._messagesLimited.increment();
+	}
+
+	void kicked() {
+		this._kicked.increment();
+	}
+
+	void timedOut() {
+		this._timedOut.increment();
+	}
+
+	/**
+	 * @param nanos - time a relay took to queue a message for everyone
+	 */
+	void relayed(long nanos) {
+		this._relayTimes.record(nanos);
+	}
+
+	/**
+	 * registers with the platform MBean server, named after the port.
+	 */
+	void register(int port) throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("com.jmcnutt.chat:type=ChatServer,port=" + port);
+
+		server.registerMBean(this, name);
+		this._name = name;
+	}
+
+	/**
+	 * unregisters from the platform MBean server, if registered.
+	 */
+	void unregister() {
+		if(this._name == null)
+			return;
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(this._name);
+		}
+		catch(JMException e) {
+			//already gone
+		}
+
+		this._name = null;
+	}
+
+	@Override
+	public int getConnections() {
+		return this._core.connectionCount();
+	}
+
+	@Override
+	public int getRooms() {
+		return this._core.roomCount();
+	}
+
+	@Override
+	public long getAccepted() {
+		return this._accepted.sum();
+	}
+
+	@Override
+	public long getRejected() {
+		return this._rejected.sum();
+	}
+
+	@Override
+	public long getLost() {
+		return this._lost.sum();
+	}
+
+	@Override
+	public long getEvicted() {
+		return this._evicted.sum();
+	}
+
+	@Override
+	public long getMessagesIn() {
+		return this._messagesIn.sum();
+	}
+
+	@Override
+	public long getMessagesOut() {
+		return this._messagesOut.sum();
+	}
+
+	@Override
+	public long getMessagesDropped() {
+		return this._messagesDropped.sum();
+	}
+
+	@Override
+	public long getBytesIn() {
+		return this._bytesIn.sum();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return this._bytesOut.sum();
+	}
+
+	@Override
+	public long getQueuedBytes() {
+		return this._queuedBytes.sum();
+	}
+
+	@Override
+	public long getMaxQueuedBytes() {
+		return this._core.maxQueuedBytes();
+	}
+
+	@Override
+	public long getForwardedOut() {
+		return this._forwardedOut.sum();
+	}
+
+	@Override
+	public long getForwardsDropped() {
+		return this._forwardsDropped.sum();
+	}
+
+	@Override
+	public long getForwardedIn() {
+		return this._forwardedIn.sum();
+	}
+
+	@Override
+	public long getMessagesDelayed() {
+		return this._messagesDelayed.sum();
+	}
+
+	@Override
+	public long getMessagesLimited() {
+		return this._messagesLimited.sum();
+	}
+
+	@Override
+	public long getKicked() {
+		return this._kicked.sum();
+	}
+
+	@Override
+	public long getTimedOut() {
+		return this._timedOut.sum();
+	}
+
+	@Override
+	public long getRelays() {
+		return this._relayTimes.getCount();
+	}
+
+	@Override
+	public double getRelayMicros50() {
+		return this._relayTimes.getPercentile(0.50) / 1e3;
+	}
+
+	@Override
+	public double getRelayMicros99() {
+		return this._relayTimes.getPercentile(0.99) / 1e3;
+	}
+
+	@Override
+	public double getRelayMicros999() {
+		return this._relayTimes.getPercentile(0.999) / 1e3;
+	}
+
+	@Override
+	public double getRelayMicrosMax() {
+		return this._relayTimes.getPercentile(1.0) / 1e3;
+	}
+
+	/**
+	 * @return every metric in the Prometheus text exposition format
+	 */
+	String toText() {
+		StringBuilder text = new StringBuilder(2048);
+
+		gauge(text, "chat_connections", "Clients connected now", this.getConnections());
+		gauge(text, "chat_rooms", "Rooms open now", this.getRooms());
+		gauge(text, "chat_queued_bytes", "Bytes queued for clients and not yet written", this.getQueuedBytes());
+		gauge(text, "chat_max_queued_bytes", "Most bytes queued for a single client", this.getMaxQueuedBytes());
+
+		counter(text, "chat_accepted_total", "Clients let into the room", this.getAccepted());
+		counter(text, "chat_rejected_total", "Clients turned away because the room was full", this.getRejected());
+		counter(text, "chat_lost_total", "Joined clients that left or were removed", this.getLost());
+		counter(text, "chat_evicted_total", "Clients removed for being too far behind", this.getEvicted());
+		counter(text, "chat_messages_in_total", "Messages received from clients and the host", this.getMessagesIn());
+		counter(text, "chat_messages_out_total", "Messages queued for clients", this.getMessagesOut());
+		counter(text, "chat_messages_dropped_total", "Messages slow clients missed", this.getMessagesDropped());
+		counter(text, "chat_bytes_in_total", "Bytes read from clients", this.getBytesIn());
+		counter(text, "chat_bytes_out_total", "Bytes written to clients", this.getBytesOut());
+		counter(text, "chat_forwarded_out_total", "Messages and notices sent to other nodes", this.getForwardedOut());
+		counter(text, "chat_forwards_dropped_total", "Messages and notices other nodes missed", this.getForwardsDropped());
+		counter(text, "chat_forwarded_in_total", "Messages and notices received from other nodes", this.getForwardedIn());
+		counter(text, "chat_messages_delayed_total", "Times a client was held back for sending too fast", this.getMessagesDelayed());
+		counter(text, "chat_messages_limited_total", "Messages dropped for being sent too fast", this.getMessagesLimited());
+		counter(text, "chat_kicked_total", "Clients removed for sending too fast", this.getKicked());
+		counter(text, "chat_timed_out_total", "Clients removed for being quiet past the idle timeout", this.getTimedOut());
+
+		text.append("# HELP chat_relay_seconds Time to queue a message for a whole room\n");
+		text.append("# TYPE chat_relay_seconds summary\n");
+		quantile(text, "0.5", this._relayTimes.getPercentile(0.50));
+		quantile(text, "0.99", this._relayTimes.getPercentile(0.99));
+		quantile(text, "0.999", this._relayTimes.getPercentile(0.999));
+		quantile(text, "1", this._relayTimes.getPercentile(1.0));
+		text.append("chat_relay_seconds_count ").append(this.getRelays()).append('\n');
+
+		return text.toString();
+	}
+
+	private static void gauge(StringBuilder text, String name, String help, long value) {
+		metric(text, name, "gauge", help, value);
+	}
+
+	private static void counter(StringBuilder text, String name, String help, long value) {
+		metric(text, name, "counter", help, value);
+	}
+
+	private static void metric(StringBuilder text, String name, String type, String help, long value) {
+		text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		text.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void quantile(StringBuilder text, String quantile, long nanos) {
+		text.append("chat_relay_seconds{quantile=\"").append(quantile).append("\"} ")
+				.append(nanos / 1e9).append('\n');
+	}
+}//end ChatServerMetrics class
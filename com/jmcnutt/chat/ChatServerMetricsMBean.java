@@ -0,0 +1,136 @@
+/**
+ * What a ChatServerCore exposes through JMX. Counters
+ * count from when the server was made, gauges are read
+ * when asked for and times are in microseconds.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+public interface ChatServerMetricsMBean {
+
+	/**
+	 * @return clients connected now, joined or not
+	 */
+	int getConnections();
+
+	/**
+	 * @return rooms open now, the lobby included
+	 */
+	int getRooms();
+
+	/**
+	 * @return clients let into the room
+	 */
+	long getAccepted();
+
+	/**
+	 * @return clients turned away because the room was full
+	 */
+	long getRejected();
+
+	/**
+	 * @return joined clients that left, broke their connection or were removed
+	 */
+	long getLost();
+
+	/**
+	 * @return clients removed for being too far behind
+	 */
+	long getEvicted();
+
+	/**
+	 * @return messages received from clients and the host
+	 */
+	long getMessagesIn();
+
+	/**
+	 * @return messages queued for clients, counted once per client
+	 */
+	long getMessagesOut();
+
+	/**
+	 * @return messages a slow client missed under the drop policy
+	 */
+	long getMessagesDropped();
+
+	/**
+	 * @return bytes read from clients
+	 */
+	long getBytesIn();
+
+	/**
+	 * @return bytes written to clients
+	 */
+	long getBytesOut();
+
+	/**
+	 * @return bytes queued for clients and not yet written
+	 */
+	long getQueuedBytes();
+
+	/**
+	 * @return most bytes queued for a single client
+	 */
+	long getMaxQueuedBytes();
+
+	/**
+	 * @return messages and notices sent to other nodes, counted once per node
+	 */
+	long getForwardedOut();
+
+	/**
+	 * @return messages and notices not sent to another node because its link was down or behind
+	 */
+	long getForwardsDropped();
+
+	/**
+	 * @return messages and notices received from other nodes
+	 */
+	long getForwardedIn();
+
+	/**
+	 * @return times a client was held back for sending past its rate limit
+	 */
+	long getMessagesDelayed();
+
+	/**
+	 * @return messages dropped for being sent past the rate limit
+	 */
+	long getMessagesLimited();
+
+	/**
+	 * @return clients removed for sending past the rate limit
+	 */
+	long getKicked();
+
+	/**
+	 * @return clients removed for being quiet past the idle timeout
+	 */
+	long getTimedOut();
+
+	/**
+	 * @return messages relayed, each timed in the relay percentiles
+	 */
+	long getRelays();
+
+	/**
+	 * @return median time to queue a message for a whole room, in microseconds
+	 */
+	double getRelayMicros50();
+
+	/**
+	 * @return 99th percentile time to queue a message for a whole room, in microseconds
+	 */
+	double getRelayMicros99();
+
+	/**
+	 * @return 99.9th percentile time to queue a message for a whole room, in microseconds
+	 */
+	double getRelayMicros999();
+
+	/**
+	 * @return longest time to queue a message for a whole room, in microseconds
+	 */
+	double getRelayMicrosMax();
+}
@@ -0,0 +1,49 @@
+/**
+ * The part of the server that owns the sockets. A
+ * transport accepts clients, turns their bytes into
+ * lines for ChatServerCore and closes everything when
+ * stopped, leaving the chatroom logic to the core.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.io.IOException;
+
+interface ChatTransport {
+
+	/**
+	 * opens the port and begins accepting clients.
+	 *
+	 * @throws java.net.BindException - port already in use
+	 */
+	void start() throws IOException;
+
+	/**
+	 * stops accepting clients straight away, then closes every
+	 * connection once what is queued for it has been written
+	 * or the timeout has passed, whichever comes first. The
+	 * core is told once everything has stopped.
+	 *
+	 * @param millis - longest time given to connections to drain
+	 */
+	void stop(long millis);
+
+	/**
+	 * hands a message being relayed to the transport's I/O
+	 * threads, each of which queues it for its own clients.
+	 * Called with the core locked, in the order messages are
+	 * relayed.
+	 *
+	 * @param relay - the message and where it goes
+	 * @return false if the transport has no threads of its own running, the core queues it for every client itself
+	 */
+	boolean relay(Relay relay);
+
+	/**
+	 * waits for the transport's threads to finish after stop.
+	 *
+	 * @param millis - longest time to wait, 0 waits forever
+	 */
+	void awaitStop(long millis) throws InterruptedException;
+}
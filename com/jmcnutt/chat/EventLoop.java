@@ -0,0 +1,696 @@
+/**
+ * One of SelectorTransport's I/O threads. Owns a Selector
+ * and every client the transport handed to it, reading
+ * from and writing to them on its thread alone, so clients
+ * on different loops are served by different cores.
+ *
+ * Writes are not made as messages are queued. Every
+ * client given bytes during a pass of the loop is flushed
+ * once the pass has handled all the ready keys, so a
+ * burst of messages read in one pass reaches each client
+ * in a single write rather than one each.
+ *
+ * The loop's thread keeps a cache of BufferPool buffers
+ * for reading and framing, and ready keys are handed to
+ * it by the selector one at a time rather than through
+ * the selected key set, so a pass allocates nothing.
+ *
+ * Every message relayed, by any loop or by the host, is
+ * handed to the loop as a Relay through its lock-free task
+ * queue, in the order the core relayed them. The loop
+ * queues each for its own clients in the room, found in its
+ * own lists of room members, which the core's moves reach
+ * through the same queue, so a client is sent what was
+ * relayed to a room while it was there and no more. What
+ * the core sends one client alone, a notice, its history or
+ * a private message, comes through the same queue, so it
+ * never overtakes a relay. The loops fan a message out to their shares of a room at the
+ * same time, on their own cores, and the core's lock is
+ * only held while the message takes its place in line.
+ *
+ * Bytes queued for a client by another thread hand the
+ * session to the loop through a second lock-free queue. The loop is only woken for the
+ * first piece of work handed over since it last looked,
+ * not once for every client, so a message fanned out by
+ * other threads costs one wakeup.
+ *
+ * A client held back for sending too fast is not read
+ * from until its wait is over. The loop wakes for the
+ * first such client due, so no timer thread is needed.
+ *
+ * Every client is watched for silence on the loop's own
+ * TimerWheel, checked once a tick, so heartbeats for
+ * thousands of clients cost no timer thread or scheduled
+ * task each.
+ *
+ * Once told to stop the loop runs on until every client's
+ * channel has been closed after its last bytes, or the
+ * drain deadline passes.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+class EventLoop implements Runnable {
+	//tasks run between writes when many are waiting, so a backlog doesn't pile up in the queues
+	private static final int TASKS_PER_FLUSH = 64;
+
+	private final ChatServerCore _core;
+	private final SelectorTransport _transport;
+	//position among the transport's loops, picks the loop's views of pooled buffers
+	private final int _index;
+	private final String _name;
+
+	private Selector _selector;
+
+	//work handed to the loop by other threads
+	private final MpscQueue<Runnable> _pendingTasks = new MpscQueue<Runnable>();
+	//sessions given bytes by other threads, to be flushed by the loop
+	private final MpscQueue<NioSession> _pendingFlushes = new MpscQueue<NioSession>();
+	//set once the loop has been woken for work handed over, cleared before it takes the work
+	private final AtomicBoolean _wakeupPending = new AtomicBoolean();
+
+	//sessions to flush at the end of this pass, loop thread only
+	private ArrayList<NioSession> _dirty = new ArrayList<NioSession>();
+	//clients held back for sending too fast, loop thread only
+	private ArrayList<NioSession> _heldBack = new ArrayList<NioSession>();
+	//clients watched for silence, loop thread only
+	private final TimerWheel _idleWheel;
+	//the loop's own clients in each room with any of them, loop thread only
+	private final HashMap<ChatRoom, Members> _rooms = new HashMap<ChatRoom, Members>();
+	//clients a relay found unreachable, removed once the loop's part is done, loop thread only
+	private final ArrayList<Session> _lost = new ArrayList<Session>();
+	//handed each ready key by the selector
+	private final Consumer<SelectionKey> _keyHandler = new Consumer<SelectionKey>(){
+		public void accept(SelectionKey key){
+			handleKey(key);
+		}
+	};
+	private volatile boolean _running;
+	private Thread _thread;
+	//set once stopped, the loop ends when every channel is closed or the deadline passes, loop thread only
+	private boolean _draining;
+	private long _drainDeadline;
+
+	/**
+	 * the loop's own clients in one room, packed into one array
+	 * like ChatRoom's members. Loop thread only.
+	 */
+	private static final class Members {
+		private NioSession[] _sessions = new NioSession[4];
+		private int _size;
+
+		/**
+		 * @param session - client in none of the loop's lists
+		 */
+		void add(NioSession session) {
+			if(this._size == this._sessions.length)
+				this._sessions = Arrays.copyOf(this._sessions, this._sessions.length * 2);
+
+			session._memberSlot = this._size;
+			this._sessions[this._size++] = session;
+		}
+
+		/**
+		 * @param session - client to take out, moving the last into its slot
+		 */
+		void remove(NioSession session) {
+			int slot = session._memberSlot;
+
+			if(slot == -1 || this._sessions[slot] != session)
+				return;
+
+			NioSession last = this._sessions[--this._size];
+			this._sessions[slot] = last;
+			last._memberSlot = slot;
+
+			this._sessions[this._size] = null;
+			session._memberSlot = -1;
+		}
+	}
+
+	/**
+	 * @param core - chatroom frames are handed to
+	 * @param transport - transport told when the loop ends
+	 * @param index - position among the transport's loops
+	 * @param name - name of the loop's thread
+	 */
+	EventLoop(ChatServerCore core, SelectorTransport transport, int index, String name) {
+		this._core = core;
+		this._transport = transport;
+		this._index = index;
+		this._name = name;
+		this._idleWheel = Session.newIdleWheel(core.getConfig());
+	}
+
+	/**
+	 * opens the loop's selector.
+	 */
+	void open() throws IOException {
+		this._selector = Selector.open();
+	}
+
+	/**
+	 * closes the selector of a loop that never started.
+	 */
+	void close() {
+		this.closeAll();
+	}
+
+	/**
+	 * starts the loop's thread.
+	 */
+	void start() {
+		this._running = true;
+
+		this._thread = new Thread(this, this._name);
+		this._thread.start();
+	}
+
+	/**
+	 * starts closing every client once what is queued for it has
+	 * been written or the timeout has passed.
+	 *
+	 * @param millis - longest time given to clients to drain
+	 */
+	void stop(final long millis) {
+		this.execute(new Runnable(){
+			public void run(){
+				startDraining(millis);
+			}
+		});
+	}
+
+	/**
+	 * @param millis - longest time to wait for the thread, 0 waits forever
+	 */
+	void awaitStop(long millis) throws InterruptedException {
+		if(this._thread != null)
+			this._thread.join(millis);
+	}
+
+	/**
+	 * hands an accepted client to the loop, which starts
+	 * reading from it.
+	 *
+	 * @param session - the client's session, already known to the core
+	 * @param channel - the client's non-blocking channel
+	 */
+	void register(final NioSession session, final SocketChannel channel) {
+		this.execute(new Runnable(){
+			public void run(){
+				try {
+					session.setKey(channel.register(_selector, SelectionKey.OP_READ, session));
+					session.watchIdle(_idleWheel, _core);
+
+					//anything queued before the key existed is written at the end of the pass
+					markDirty(session);
+				}
+				catch(ClosedChannelException ex) {
+					//client was closed before the loop got to it
+					_core.sessionClosed(session);
+				}
+			}
+		});
+	}
+
+	/**
+	 * the loop's thread. Waits on the selector for incoming
+	 * data, handling each client as soon as it is ready.
+	 */
+	public void run(){
+		BufferPool.useThreadCache();
+
+		while(this._running) {
+			try {
+				//0 waits until something is ready, each ready client is handled before it returns,
+				//work the loop handed itself since it last took any is done without waiting
+				if(this._pendingTasks.isEmpty())
+					this._selector.select(this._keyHandler, this.selectTimeout());
+				else
+					this._selector.selectNow(this._keyHandler);
+
+				//cleared before taking the work, so work handed over from now on wakes the loop again
+				this._wakeupPending.set(false);
+
+				this.runPendingTasks();
+
+				if(!this._running)
+					break;
+
+				this.releaseHeldBack();
+
+				//pings and closes quiet clients, pings are flushed below
+				this._idleWheel.advance(System.nanoTime());
+
+				this.flushDirty();
+
+				if(this._draining && (this.drained() || System.nanoTime() - this._drainDeadline >= 0))
+					break;
+			}//end try
+			catch(IOException ex) {
+				//activates if the selector fails, the server can't go on without the loop's clients
+				this._core.transportError(ex);
+				this._transport.stop(0);
+				break;
+			}
+			catch(Exception ex){
+				this._core.transportError(ex);
+			}
+		}//end while loop
+
+		this._running = false;
+
+		//whatever is still queued, written as far as the sockets take it
+		this.flushDirty();
+		this.closeAll();
+
+		this._transport.loopStopped();
+	}//end run method
+
+	/**
+	 * reads from or writes to a client the selector found ready.
+	 *
+	 * @param key - the client's key
+	 */
+	private void handleKey(SelectionKey key) {
+		if(!key.isValid())
+			return;
+
+		if(key.isReadable())
+			this.readInput((NioSession)key.attachment());
+
+		//reading may have removed the client
+		if(key.isValid() && key.isWritable())
+			this.flushOutput((NioSession)key.attachment());
+	}
+
+	/**
+	 * hands the loop a message the core is relaying, which it
+	 * queues for its own clients in the room once it has done
+	 * the same for every message relayed before.
+	 *
+	 * @param relay - the message and where it goes
+	 */
+	void relay(final Relay relay) {
+		this.execute(new Runnable(){
+			public void run(){
+				fanOut(relay);
+			}
+		});
+	}
+
+	/**
+	 * moves one of the loop's clients between the loop's lists
+	 * of room members, after every message relayed before.
+	 *
+	 * @param session - client moving
+	 * @param left - room it left, null if none
+	 * @param joined - room it joined, null if none
+	 */
+	void roomChanged(final NioSession session, final ChatRoom left, final ChatRoom joined) {
+		this.execute(new Runnable(){
+			public void run(){
+				moveMember(session, left, joined);
+			}
+		});
+	}
+
+	/**
+	 * runs a task for one of the loop's clients, like sending
+	 * it a notice or closing it, after every message relayed
+	 * before.
+	 *
+	 * @param task - work to run on the loop's thread
+	 */
+	void afterRelays(Runnable task) {
+		this.execute(task);
+	}
+
+	/**
+	 * @return position among the transport's loops, from 0
+	 */
+	int getIndex() {
+		return this._index;
+	}
+
+	/**
+	 * @return whether the calling thread is the loop's thread
+	 */
+	boolean isIoThread() {
+		return Thread.currentThread() == this._thread;
+	}
+
+	/**
+	 * has a session's queue written at the end of the loop's
+	 * current pass. Called with the session's queue lock held
+	 * when its first buffer is queued.
+	 *
+	 * @param session - session with bytes to write
+	 */
+	void flushLater(NioSession session) {
+		if(Thread.currentThread() == this._thread) {
+			this.markDirty(session);
+		}
+		else {
+			//already waiting in the queue, flushed once the loop takes it
+			if(session._flushOffered.compareAndSet(false, true)) {
+				this._pendingFlushes.offer(session._flushLink);
+				this.wakeup();
+			}
+		}
+	}
+
+	/**
+	 * wakes the loop unless it has been woken since it last
+	 * took the work handed over.
+	 */
+	private void wakeup() {
+		if(this._wakeupPending.compareAndSet(false, true))
+			this._selector.wakeup();
+	}
+
+	/**
+	 * @return milliseconds until the drain deadline, the first held back client is due
+	 * or the idle wheel's next tick, 0 for none of them
+	 */
+	private long selectTimeout() {
+		long now = System.nanoTime();
+		long timeout = this._draining ? millisUntil(this._drainDeadline, now) : 0;
+
+		if(!this._idleWheel.isEmpty()) {
+			long due = millisUntil(this._idleWheel.nextTick(), now);
+
+			if(timeout == 0 || due < timeout)
+				timeout = due;
+		}
+
+		for(int i = 0; i < this._heldBack.size(); i++) {
+			long due = millisUntil(this._heldBack.get(i)._resumeAt, now);
+
+			if(timeout == 0 || due < timeout)
+				timeout = due;
+		}
+
+		return timeout;
+	}
+
+	/**
+	 * @return milliseconds from now until deadline, rounded up and at least 1
+	 */
+	private static long millisUntil(long deadline, long now) {
+		return Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - now + 999999));
+	}
+
+	/**
+	 * stops reading from a client until its wait is over.
+	 *
+	 * @param session - client sending too fast
+	 * @param nanos - time until its next message is allowed
+	 */
+	private void holdBack(NioSession session, long nanos) {
+		session._resumeAt = System.nanoTime() + nanos;
+		session.setReadPaused(true);
+
+		this._heldBack.add(session);
+	}
+
+	/**
+	 * hands on what every held back client whose wait is over
+	 * had left in its read buffer, and starts reading from it
+	 * again unless it has to wait some more.
+	 */
+	private void releaseHeldBack() {
+		long now = System.nanoTime();
+
+		//backwards, clients held back again are added at the end and not looked at twice
+		for(int i = this._heldBack.size() - 1; i >= 0; i--) {
+			NioSession session = this._heldBack.get(i);
+
+			if(!session.isClosed() && session._resumeAt - now > 0)
+				continue;
+
+			this._heldBack.set(i, this._heldBack.get(this._heldBack.size() - 1));
+			this._heldBack.remove(this._heldBack.size() - 1);
+
+			if(session.isClosed())
+				continue;
+
+			session.setReadPaused(false);
+
+			if(this.processInput(session) && session.hasBufferedInput())
+				this.readInput(session);
+		}
+	}
+
+	/**
+	 * adds a session to those flushed at the end of the pass, once.
+	 */
+	private void markDirty(NioSession session) {
+		if(!session._flushQueued) {
+			session._flushQueued = true;
+			this._dirty.add(session);
+		}
+	}
+
+	/**
+	 * writes every session given bytes during the pass, or by
+	 * other threads since it began. Sessions dirtied while
+	 * flushing, by a relay about a lost client, are flushed too.
+	 */
+	private void flushDirty() {
+		NioSession pending;
+		while((pending = this._pendingFlushes.poll()) != null) {
+			pending._flushOffered.set(false);
+			this.markDirty(pending);
+		}
+
+		for(int i = 0; i < this._dirty.size(); i++) {
+			NioSession session = this._dirty.get(i);
+			session._flushQueued = false;
+
+			if(!session.isClosed())
+				this.flushOutput(session);
+		}
+
+		this._dirty.clear();
+	}
+
+	/**
+	 * queues a relayed message for each of the loop's clients
+	 * in its room, or in every room, then removes those found
+	 * unreachable.
+	 *
+	 * @param relay - the message and where it goes
+	 */
+	private void fanOut(Relay relay) {
+		int queued = 0;
+
+		if(relay.getRoom() == null) {
+			for(Members members : this._rooms.values())
+				queued += this.sendTo(members, relay);
+		}
+		else {
+			Members members = this._rooms.get(relay.getRoom());
+
+			if(members != null)
+				queued += this.sendTo(members, relay);
+		}
+
+		relay.finished(queued);
+
+		while(!this._lost.isEmpty())
+			this._core.sessionClosed(this._lost.remove(this._lost.size() - 1));
+	}
+
+	/**
+	 * @return clients of the room the message was queued for
+	 */
+	private int sendTo(Members members, Relay relay) {
+		int queued = 0;
+
+		for(int i = 0; i < members._size; i++) {
+			if(relay.sendTo(members._sessions[i], this._lost))
+				queued++;
+		}
+
+		return queued;
+	}
+
+	/**
+	 * takes a client out of the members of the room it left,
+	 * forgetting the room once none of the loop's clients are
+	 * in it, and adds it to those of the room it joined.
+	 */
+	private void moveMember(NioSession session, ChatRoom left, ChatRoom joined) {
+		if(left != null) {
+			Members members = this._rooms.get(left);
+
+			if(members != null) {
+				members.remove(session);
+
+				if(members._size == 0)
+					this._rooms.remove(left);
+			}
+		}
+
+		if(joined != null) {
+			Members members = this._rooms.get(joined);
+
+			if(members == null) {
+				members = new Members();
+				this._rooms.put(joined, members);
+			}
+
+			members.add(session);
+		}
+	}
+
+	/**
+	 * starts waiting for every client's queue to drain. Runs
+	 * on the loop's thread.
+	 *
+	 * @param millis - longest time to wait
+	 */
+	private void startDraining(long millis) {
+		this._draining = true;
+		this._drainDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	/**
+	 * @return whether every channel has been closed
+	 */
+	private boolean drained() {
+		for(SelectionKey key : this._selector.keys()) {
+			if(key.isValid())
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * hands a task to the loop's thread. The loop's own thread
+	 * doesn't wake it, it looks before it next waits.
+	 *
+	 * @param task - work to run on the loop's thread
+	 */
+	private void execute(Runnable task) {
+		this._pendingTasks.offer(task);
+
+		if(Thread.currentThread() != this._thread)
+			this.wakeup();
+	}
+
+	/**
+	 * runs everything handed over by other threads since the last wakeup
+	 */
+	private void runPendingTasks() {
+		int tasks = 0;
+
+		Runnable task;
+		while((task = this._pendingTasks.poll()) != null) {
+			task.run();
+
+			//a long run of relays is written as it goes, not queued whole before the first write
+			if(++tasks % TASKS_PER_FLUSH == 0)
+				this.flushDirty();
+		}
+	}
+
+	/**
+	 * reads whatever a client has sent and hands every
+	 * complete frame to the core. A TLS client may have
+	 * sent more than its read buffer held, which is read
+	 * on until none is left.
+	 *
+	 * @param session - the readable client
+	 */
+	private void readInput(NioSession session) {
+		do {
+			try {
+				if(session.read() == -1) {
+					this._core.sessionClosed(session);
+					return;
+				}
+			}
+			catch(IOException ex) {
+				//Called if client is unreachable
+				this._core.sessionClosed(session);
+				return;
+			}
+		}
+		while(this.processInput(session) && session.hasBufferedInput());
+	}
+
+	/**
+	 * hands every complete frame a client has sent to the core,
+	 * holding the client back if it is sending too fast.
+	 *
+	 * @param session - client with bytes in its read buffer
+	 * @return false if the client was held back or closed
+	 */
+	private boolean processInput(NioSession session) {
+		try {
+			long wait = session.processInbound(this._core);
+
+			if(wait > 0) {
+				this.holdBack(session, wait);
+				return false;
+			}
+
+			return !session.isClosing();
+		}
+		catch(IOException ex) {
+			//Called if client broke the protocol
+			this._core.sessionClosed(session);
+			return false;
+		}
+	}
+
+	/**
+	 * writes what is queued for a client, at the end of a pass
+	 * or once its channel can take more bytes.
+	 *
+	 * @param session - client to write to
+	 */
+	private void flushOutput(NioSession session) {
+		try {
+			session.writeOutbound();
+		}
+		catch(IOException ex) {
+			//Called if client is unreachable
+			this._core.sessionClosed(session);
+		}
+	}
+
+	/**
+	 * closes every channel still registered and the selector.
+	 */
+	private void closeAll() {
+		if(this._selector == null)
+			return;
+
+		try {
+			for(SelectionKey key : this._selector.keys())
+				key.channel().close();
+
+			this._selector.close();
+		}
+		catch(IOException e){
+			//catch required to close socket
+		}
+	}
+}//end EventLoop class
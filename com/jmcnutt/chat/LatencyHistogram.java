@@ -0,0 +1,114 @@
+/**
+ * Counts latencies in nanoseconds into buckets whose width
+ * grows with the value, so any latency from a nanosecond to
+ * hours fits in a fixed array of counters and percentiles
+ * come out within about 6% of the true value. Each power of
+ * two is split into SUB_BUCKETS equal parts.
+ *
+ * Recording is a single atomic increment and never
+ * allocates, so many threads can record at once.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+class LatencyHistogram {
+	//parts each power of two is split into, a power of two itself
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	//enough buckets for any positive long
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * counts one latency.
+	 *
+	 * @param nanos - latency in nanoseconds, negative counts as 0
+	 */
+	void record(long nanos) {
+		this._counts.incrementAndGet(bucketOf(Math.max(nanos, 0)));
+	}
+
+	/**
+	 * adds every count to another histogram and clears this one.
+	 * Latencies recorded meanwhile end up in one or the other.
+	 *
+	 * @param other - histogram to add to
+	 */
+	void moveTo(LatencyHistogram other) {
+		for(int i = 0; i < BUCKETS; i++) {
+			long count = this._counts.getAndSet(i, 0);
+
+			if(count != 0)
+				other._counts.addAndGet(i, count);
+		}
+	}
+
+	/**
+	 * @return number of latencies recorded
+	 */
+	long getCount() {
+		long count = 0;
+
+		for(int i = 0; i < BUCKETS; i++)
+			count += this._counts.get(i);
+
+		return count;
+	}
+
+	/**
+	 * @param fraction - from 0 to 1, 0.99 for the 99th percentile
+	 * @return highest latency in the bucket holding the percentile, 0 if empty
+	 */
+	long getPercentile(double fraction) {
+		long count = this.getCount();
+
+		if(count == 0)
+			return 0;
+
+		//rank of the latency wanted, counting from 1
+		long rank = Math.max(1, (long)Math.ceil(fraction * count));
+
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += this._counts.get(i);
+
+			if(seen >= rank)
+				return highestIn(i);
+		}
+
+		//counts grew while walking, the top bucket holds the rest
+		return highestIn(BUCKETS - 1);
+	}
+
+	/**
+	 * @return index of the bucket a value falls in
+	 */
+	private static int bucketOf(long value) {
+		if(value < SUB_BUCKETS)
+			return (int)value;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return highest value that falls in a bucket
+	 */
+	private static long highestIn(int bucket) {
+		if(bucket < SUB_BUCKETS)
+			return bucket;
+
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+
+		//wraps round for the top bucket, which still ends at Long.MAX_VALUE
+		return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+}//end LatencyHistogram class
@@ -0,0 +1,615 @@
+/**
+ * Every message relayed by the server, appended to files
+ * on disk so the chat history survives a restart. The log
+ * is a series of segment files, each mapped into memory
+ * whole, named by the offset of their first message.
+ * Offsets count messages from the start of the log and
+ * are never reused. Once a segment is full a new one is
+ * started, and the oldest are deleted past the retained
+ * number.
+ *
+ * Each record holds a message already encoded as the
+ * frame clients are sent, carrying its offset as its
+ * message id:
+ *
+ *   length   4 bytes, bytes in the rest of the record
+ *   offset   8 bytes, the message's offset
+ *   room     2 byte length and UTF-8 name, length 0 for every room
+ *   frame    ChatProtocol frame, header and payload
+ *
+ * The length is written last, so a record cut short by a
+ * crash reads as the end of the log. Records are in the
+ * page cache as soon as they are appended, so they survive
+ * the process dying; close forces them to disk.
+ *
+ * A sparse index of every segment, one entry about every
+ * INDEX_INTERVAL bytes, finds a message by offset without
+ * scanning the whole segment, and the positions of the last
+ * few messages in every room are kept so a joining client
+ * can be sent them straight from the mapped segments. Both
+ * are rebuilt by scanning the segments when the log opens.
+ *
+ * Not thread safe, ChatServerCore only uses it while holding its lock.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+class MessageLog {
+	//bytes in a segment file
+	static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+	//segments kept before the oldest is deleted
+	static final int DEFAULT_RETAINED_SEGMENTS = 8;
+
+	//bytes of records between two index entries
+	private static final int INDEX_INTERVAL = 4096;
+	//length and offset in front of the room name
+	private static final int RECORD_HEADER_SIZE = 4 + 8;
+	//room key for messages sent to every room
+	private static final String ALL_ROOMS = "";
+
+	private static final String SUFFIX = ".log";
+
+	/**
+	 * one mapped segment file and its index
+	 */
+	private static final class Segment {
+		final long baseOffset;
+		final File file;
+		final MappedByteBuffer buffer;
+
+		//position the next record is written at
+		int end;
+
+		//pairs of offset from baseOffset and position, in order
+		int[] index = new int[64];
+		int indexSize;
+		int lastIndexed = -INDEX_INTERVAL;
+
+		//set once the file is deleted, its records are skipped
+		boolean deleted;
+
+		Segment(long baseOffset, File file, MappedByteBuffer buffer) {
+			this.baseOffset = baseOffset;
+			this.file = file;
+			this.buffer = buffer;
+		}
+
+		/**
+		 * adds an index entry if the record is far enough past the last one.
+		 */
+		void indexRecord(long offset, int position) {
+			if(position - this.lastIndexed < INDEX_INTERVAL)
+				return;
+
+			if(this.indexSize * 2 == this.index.length)
+				this.index = Arrays.copyOf(this.index, this.index.length * 2);
+
+			this.index[this.indexSize * 2] = (int)(offset - this.baseOffset);
+			this.index[this.indexSize * 2 + 1] = position;
+			this.indexSize++;
+			this.lastIndexed = position;
+		}
+
+		/**
+		 * @return position of the last indexed record at or before the offset
+		 */
+		int floorPosition(long offset) {
+			int relative = (int)(offset - this.baseOffset);
+			int low = 0;
+			int high = this.indexSize - 1;
+			int found = 0;
+
+			while(low <= high) {
+				int middle = (low + high) >>> 1;
+
+				if(this.index[middle * 2] <= relative) {
+					found = this.index[middle * 2 + 1];
+					low = middle + 1;
+				}
+				else {
+					high = middle - 1;
+				}
+			}
+
+			return found;
+		}
+	}
+
+	/**
+	 * where the last few messages of a room are, oldest
+	 * overwritten first
+	 */
+	private static final class Recent {
+		final Segment[] segments;
+		final int[] positions;
+		final long[] offsets;
+
+		//next slot written and number of slots filled
+		int next;
+		int size;
+
+		Recent(int capacity) {
+			this.segments = new Segment[capacity];
+			this.positions = new int[capacity];
+			this.offsets = new long[capacity];
+		}
+
+		void add(Segment segment, int position, long offset) {
+			this.segments[this.next] = segment;
+			this.positions[this.next] = position;
+			this.offsets[this.next] = offset;
+
+			this.next = (this.next + 1) % this.segments.length;
+			this.size = Math.min(this.size + 1, this.segments.length);
+		}
+
+		/**
+		 * @param age - 0 for the newest message
+		 * @return slot holding that message
+		 */
+		int slot(int age) {
+			return (this.next - 1 - age + this.segments.length) % this.segments.length;
+		}
+	}
+
+	private final File _directory;
+	private final int _segmentSize;
+	private final int _retainedSegments;
+	private final int _replayCount;
+
+	//oldest first, the last one is written to
+	private ArrayList<Segment> _segments = new ArrayList<Segment>();
+	private long _nextOffset;
+
+	private HashMap<String, Recent> _recent = new HashMap<String, Recent>();
+
+	//reused for every append, replacing what can't be encoded like String.getBytes
+	private final CharsetEncoder _encoder = StandardCharsets.UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	/**
+	 * creates a log kept in the given directory. Nothing is
+	 * read or written until open is called.
+	 *
+	 * @param directory - directory holding the segment files
+	 * @param segmentSize - bytes in each segment file
+	 * @param retainedSegments - segments kept before the oldest is deleted
+	 * @param replayCount - messages of each room kept ready for replay
+	 */
+	MessageLog(File directory, int segmentSize, int retainedSegments, int replayCount) {
+		this._directory = directory;
+		this._segmentSize = segmentSize;
+		this._retainedSegments = Math.max(1, retainedSegments);
+		this._replayCount = replayCount;
+	}
+
+	/**
+	 * maps the segments already in the directory, rebuilding
+	 * their indexes and the recent messages of every room, or
+	 * starts the first segment of an empty log.
+	 *
+	 * @throws IOException - the directory or a segment can't be read or created
+	 */
+	void open() throws IOException {
+		if(!this._directory.isDirectory() && !this._directory.mkdirs())
+			throw new IOException("Can't create log directory " + this._directory);
+
+		File[] files = this._directory.listFiles();
+
+		if(files == null)
+			throw new IOException("Can't read log directory " + this._directory);
+
+		//names are zero padded offsets, so name order is offset order
+		Arrays.sort(files);
+
+		for(File file : files) {
+			String name = file.getName();
+
+			if(!name.endsWith(SUFFIX))
+				continue;
+
+			long baseOffset;
+			try {
+				baseOffset = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+			}
+			catch(NumberFormatException e) {
+				//not one of ours
+				continue;
+			}
+
+			//created just before the process died, nothing in it
+			if(file.length() == 0) {
+				file.delete();
+				continue;
+			}
+
+			Segment segment = new Segment(baseOffset, file, map(file, (int)file.length()));
+			this._segments.add(segment);
+
+			this._nextOffset = Math.max(this._nextOffset, baseOffset);
+			this.scan(segment);
+		}
+
+		if(this._segments.isEmpty())
+			this.roll();
+		else
+			this.deleteOldSegments();
+	}
+
+	/**
+	 * forces every appended record to disk and lets go of the segments.
+	 */
+	void close() {
+		for(Segment segment : this._segments) {
+			if(!segment.deleted)
+				segment.buffer.force();
+		}
+
+		this._segments.clear();
+		this._recent.clear();
+	}
+
+	/**
+	 * @return offset the next message appended will get
+	 */
+	long getNextOffset() {
+		return this._nextOffset;
+	}
+
+	/**
+	 * appends a message, encoded as the frame clients are sent.
+	 *
+	 * @param room - room the message was sent in, null for every room
+	 * @param type - one of the frame types
+	 * @param sender - session id of the sender
+	 * @param payload - the frame's payload
+	 * @return the message's offset, -1 if it is too large for a segment
+	 * @throws IOException - a new segment couldn't be created
+	 */
+	long append(String room, byte type, int sender, String payload) throws IOException {
+		String key = room == null ? ALL_ROOMS : room;
+		byte[] roomName = key.getBytes(StandardCharsets.UTF_8);
+
+		Segment segment = this.current();
+
+		if(!this.write(segment, key, roomName, type, sender, payload)) {
+			//already in a fresh segment, it will never fit
+			if(segment.end == 0)
+				return -1;
+
+			this.roll();
+			segment = this.current();
+
+			if(!this.write(segment, key, roomName, type, sender, payload))
+				return -1;
+		}
+
+		return this._nextOffset++;
+	}
+
+	/**
+	 * the last messages sent in a room, and to every room,
+	 * oldest first. Each is a read-only view of the mapped
+	 * segment holding it, ready to be queued for a client.
+	 *
+	 * @param room - room being joined
+	 * @return up to the replay count of frames
+	 */
+	ArrayList<ByteBuffer> recent(String room) {
+		Recent inRoom = this._recent.get(room);
+		Recent everywhere = this._recent.get(ALL_ROOMS);
+
+		int roomAge = 0;
+		int everywhereAge = 0;
+
+		ArrayList<ByteBuffer> frames = new ArrayList<ByteBuffer>();
+
+		//merges the two newest first, by offset
+		while(frames.size() < this._replayCount) {
+			boolean fromRoom = inRoom != null && roomAge < inRoom.size;
+			boolean fromEverywhere = everywhere != null && everywhereAge < everywhere.size;
+
+			if(!fromRoom && !fromEverywhere)
+				break;
+
+			Recent recent;
+			int slot;
+
+			if(fromRoom && (!fromEverywhere ||
+					inRoom.offsets[inRoom.slot(roomAge)] > everywhere.offsets[everywhere.slot(everywhereAge)])) {
+				recent = inRoom;
+				slot = inRoom.slot(roomAge++);
+			}
+			else {
+				recent = everywhere;
+				slot = everywhere.slot(everywhereAge++);
+			}
+
+			//older than anything still on disk
+			if(recent.segments[slot].deleted)
+				break;
+
+			frames.add(frameAt(recent.segments[slot], recent.positions[slot]));
+		}
+
+		//collected newest first
+		for(int i = 0, j = frames.size() - 1; i < j; i++, j--)
+			frames.set(i, frames.set(j, frames.get(i)));
+
+		return frames;
+	}
+
+	/**
+	 * messages from an offset onwards, in order, for a single
+	 * room and every room. Finds the first through the index.
+	 *
+	 * @param offset - offset of the first message wanted
+	 * @param room - room the messages were sent in
+	 * @param max - most messages returned
+	 * @return read-only views of the frames, empty if none are left
+	 */
+	ArrayList<ByteBuffer> readFrom(long offset, String room, int max) {
+		byte[] roomName = room.getBytes(StandardCharsets.UTF_8);
+
+		ArrayList<ByteBuffer> frames = new ArrayList<ByteBuffer>();
+
+		for(Segment segment : this._segments) {
+			if(frames.size() >= max)
+				break;
+
+			//every message in the segment is before the offset
+			if(segment != this.current() && this.nextBase(segment) <= offset)
+				continue;
+
+			int position = segment.baseOffset < offset ? segment.floorPosition(offset) : 0;
+
+			while(frames.size() < max && position < segment.end) {
+				int length = segment.buffer.getInt(position);
+
+				if(segment.buffer.getLong(position + 4) >= offset && inRoom(segment, position, roomName))
+					frames.add(frameAt(segment, position));
+
+				position += 4 + length;
+			}
+		}
+
+		return frames;
+	}
+
+	/**
+	 * @return base offset of the segment after the given one
+	 */
+	private long nextBase(Segment segment) {
+		int next = this._segments.indexOf(segment) + 1;
+
+		return next < this._segments.size() ? this._segments.get(next).baseOffset : this._nextOffset;
+	}
+
+	/**
+	 * @return segment being written to
+	 */
+	private Segment current() {
+		return this._segments.get(this._segments.size() - 1);
+	}
+
+	/**
+	 * writes one record at the end of a segment.
+	 *
+	 * @param key - room the record is kept under for replay
+	 * @param room - the same name encoded
+	 * @return false if the record doesn't fit, nothing is written
+	 */
+	private boolean write(Segment segment, String key, byte[] room, byte type, int sender, String payload) {
+		ByteBuffer buffer = segment.buffer;
+		int start = segment.end;
+
+		int frameStart = start + RECORD_HEADER_SIZE + 2 + room.length;
+
+		if(frameStart + ChatProtocol.HEADER_SIZE + 8 > buffer.capacity())
+			return false;
+
+		buffer.limit(buffer.capacity());
+		buffer.position(start + 4);
+		buffer.putLong(this._nextOffset);
+		buffer.putShort((short)room.length);
+		buffer.put(room);
+
+		buffer.put(type);
+		buffer.put(ChatProtocol.FLAG_ID);
+		buffer.putInt(sender);
+		//payload length, filled in once encoded
+		buffer.putInt(0);
+		buffer.putLong(this._nextOffset);
+
+		this._encoder.reset();
+		CoderResult result = this._encoder.encode(CharBuffer.wrap(payload), buffer, true);
+
+		if(!result.isOverflow())
+			result = this._encoder.flush(buffer);
+
+		if(result.isOverflow()) {
+			//anything written past end is overwritten by the next record
+			buffer.putInt(start, 0);
+			return false;
+		}
+
+		int end = buffer.position();
+
+		buffer.putInt(frameStart + 6, end - frameStart - ChatProtocol.HEADER_SIZE);
+
+		//written last, the record only counts once this is in place
+		buffer.putInt(start, end - start - 4);
+
+		//a zero length after the last record marks the end, in case the file was reused
+		if(end + 4 <= buffer.capacity())
+			buffer.putInt(end, 0);
+
+		segment.end = end;
+		this.recordAdded(segment, start, this._nextOffset, key);
+
+		return true;
+	}
+
+	/**
+	 * indexes a record and remembers it as the newest in its room.
+	 */
+	private void recordAdded(Segment segment, int position, long offset, String room) {
+		segment.indexRecord(offset, position);
+
+		if(this._replayCount <= 0)
+			return;
+
+		Recent recent = this._recent.get(room);
+
+		if(recent == null) {
+			recent = new Recent(this._replayCount);
+			this._recent.put(room, recent);
+		}
+
+		recent.add(segment, position, offset);
+	}
+
+	/**
+	 * reads every complete record of a segment opened from disk.
+	 */
+	private void scan(Segment segment) {
+		ByteBuffer buffer = segment.buffer;
+		int position = 0;
+
+		while(position + 4 <= buffer.capacity()) {
+			int length = buffer.getInt(position);
+
+			//zero past the last record, or a record cut short
+			if(length <= 0 || position + 4 + length > buffer.capacity())
+				break;
+
+			long offset = buffer.getLong(position + 4);
+			this.recordAdded(segment, position, offset, roomAt(segment, position));
+
+			this._nextOffset = offset + 1;
+			position += 4 + length;
+		}
+
+		segment.end = position;
+	}
+
+	/**
+	 * starts a new segment for the next offset, deleting the
+	 * oldest past the retained number.
+	 */
+	private void roll() throws IOException {
+		File file = new File(this._directory, String.format("%020d", this._nextOffset) + SUFFIX);
+
+		Segment segment = new Segment(this._nextOffset, file, map(file, this._segmentSize));
+		this._segments.add(segment);
+
+		this.deleteOldSegments();
+	}
+
+	/**
+	 * deletes segments past the retained number, and forgets
+	 * rooms whose recent messages were all in them.
+	 */
+	private void deleteOldSegments() {
+		while(this._segments.size() > this._retainedSegments) {
+			Segment oldest = this._segments.remove(0);
+			oldest.deleted = true;
+
+			//the mapping stays valid for views already handed out
+			oldest.file.delete();
+		}
+
+		Iterator<Recent> rooms = this._recent.values().iterator();
+		while(rooms.hasNext()) {
+			Recent recent = rooms.next();
+
+			if(recent.segments[recent.slot(0)].deleted)
+				rooms.remove();
+		}
+	}
+
+	/**
+	 * @return the room name of the record at a position
+	 */
+	private static String roomAt(Segment segment, int position) {
+		ByteBuffer buffer = segment.buffer;
+		int length = buffer.getShort(position + RECORD_HEADER_SIZE);
+
+		byte[] name = new byte[length];
+		for(int i = 0; i < length; i++)
+			name[i] = buffer.get(position + RECORD_HEADER_SIZE + 2 + i);
+
+		return new String(name, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return whether the record at a position was sent in the
+	 * given room or to every room, compared without decoding
+	 */
+	private static boolean inRoom(Segment segment, int position, byte[] room) {
+		ByteBuffer buffer = segment.buffer;
+		int length = buffer.getShort(position + RECORD_HEADER_SIZE);
+
+		if(length == 0)
+			return true;
+
+		if(length != room.length)
+			return false;
+
+		for(int i = 0; i < length; i++) {
+			if(buffer.get(position + RECORD_HEADER_SIZE + 2 + i) != room[i])
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return read-only view of the frame in the record at a position
+	 */
+	private static ByteBuffer frameAt(Segment segment, int position) {
+		ByteBuffer buffer = segment.buffer;
+
+		int length = buffer.getInt(position);
+		int frameStart = position + RECORD_HEADER_SIZE + 2 + buffer.getShort(position + RECORD_HEADER_SIZE);
+
+		ByteBuffer frame = buffer.duplicate();
+		frame.limit(position + 4 + length);
+		frame.position(frameStart);
+
+		return frame.slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * maps a segment file, creating it at the given size if new.
+	 */
+	private static MappedByteBuffer map(File file, int size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+		try {
+			//the mapping stays valid after the file is closed
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+		finally {
+			raf.close();
+		}
+	}
+}//end MessageLog class
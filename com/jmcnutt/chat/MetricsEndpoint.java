@@ -0,0 +1,99 @@
+/**
+ * Serves a server's metrics as plain text over HTTP, so
+ * a scraper such as Prometheus, or curl, can read them
+ * from http://host:port/metrics. Requests are answered
+ * one at a time on a single daemon thread, apart from the
+ * chat server's own threads.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+class MetricsEndpoint implements HttpHandler {
+	private static final String PATH = "/metrics";
+
+	private final ChatServerMetrics _metrics;
+	private final int _port;
+
+	private HttpServer _server;
+	private ExecutorService _executor;
+
+	/**
+	 * @param metrics - metrics to serve
+	 * @param port - port to serve them on
+	 */
+	MetricsEndpoint(ChatServerMetrics metrics, int port) {
+		this._metrics = metrics;
+		this._port = port;
+	}
+
+	/**
+	 * opens the port and starts answering requests.
+	 *
+	 * @throws java.net.BindException - port already in use
+	 */
+	void start() throws IOException {
+		this._server = HttpServer.create(new InetSocketAddress(this._port), 0);
+		this._server.createContext(PATH, this);
+
+		this._executor = Executors.newSingleThreadExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable task){
+				Thread thread = new Thread(task, "ChatServer-Metrics");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		this._server.setExecutor(this._executor);
+		this._server.start();
+	}
+
+	/**
+	 * closes the port without waiting for requests in progress.
+	 */
+	void stop() {
+		if(this._server == null)
+			return;
+
+		this._server.stop(0);
+		this._executor.shutdown();
+		this._server = null;
+	}
+
+	/**
+	 * answers a single request with every metric.
+	 */
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		try {
+			if(!exchange.getRequestMethod().equals("GET")) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+
+			byte[] body = this._metrics.toText().getBytes(StandardCharsets.UTF_8);
+
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		}
+		finally {
+			exchange.close();
+		}
+	}
+}//end MetricsEndpoint class
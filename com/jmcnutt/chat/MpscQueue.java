@@ -0,0 +1,126 @@
+/**
+ * A queue any number of threads add to and only one thread
+ * takes from, used to hand work to the thread that owns it,
+ * such as an EventLoop, from every other thread.
+ *
+ * Adding swaps the new link in as the tail in one atomic
+ * step and then links the old tail to it, so producers
+ * never retry against each other the way a compare and
+ * set loop does, and never take a lock. Taking needs no
+ * atomic step at all, as only the one consumer moves the
+ * head. A link added but not yet linked is not seen until
+ * its producer links it a moment later, so a poll may miss
+ * it; every producer wakes the consumer after adding, so it
+ * is taken on the consumer's next pass.
+ *
+ * Every element travels in a Link. A producer handing over
+ * the same element again and again, like a session to be
+ * flushed, can keep a Link of its own and offer that, so
+ * handing it over allocates nothing. Such a link must not
+ * be offered again until it has been taken. The queue
+ * keeps a stub link of its own, put back in behind the last
+ * element whenever that is taken, so a link taken is never
+ * still referred to by the queue.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+final class MpscQueue<E> {
+	//holds no element, keeps the queue from ever running out of links
+	private final Link<E> _stub = new Link<E>(null);
+	//last link added, swapped by producers
+	private final AtomicReference<Link<E>> _tail;
+	//first link, the stub or the next element to take, consumer only
+	private Link<E> _head;
+
+	/**
+	 * a single element and the link to the one added after it
+	 */
+	static final class Link<E> {
+		final E value;
+		volatile Link<E> next;
+
+		/**
+		 * @param value - element the link carries
+		 */
+		Link(E value) {
+			this.value = value;
+		}
+	}
+
+	MpscQueue() {
+		this._head = this._stub;
+		this._tail = new AtomicReference<Link<E>>(this._stub);
+	}
+
+	/**
+	 * adds an element at the tail in a new link. Safe from any thread.
+	 *
+	 * @param value - element to add, not null
+	 */
+	void offer(E value) {
+		this.offer(new Link<E>(value));
+	}
+
+	/**
+	 * adds a link at the tail. Safe from any thread.
+	 *
+	 * @param link - link carrying the element, not in the queue already
+	 */
+	void offer(Link<E> link) {
+		link.next = null;
+
+		this._tail.getAndSet(link).next = link;
+	}
+
+	/**
+	 * @return whether nothing is linked in to take. Only called by the consumer.
+	 */
+	boolean isEmpty() {
+		return this._head == this._stub && this._stub.next == null;
+	}
+
+	/**
+	 * takes the element at the head. Only called by the consumer.
+	 *
+	 * @return the oldest element, null if none is linked yet
+	 */
+	E poll() {
+		Link<E> head = this._head;
+		Link<E> next = head.next;
+
+		//the stub carries nothing, step over it
+		if(head == this._stub) {
+			if(next == null)
+				return null;
+
+			this._head = next;
+			head = next;
+			next = next.next;
+		}
+
+		if(next != null) {
+			this._head = next;
+			return head.value;
+		}
+
+		//a producer has swapped in a link after it, but not linked it yet
+		if(this._tail.get() != head)
+			return null;
+
+		//the last link, the stub goes in behind it so the queue keeps a link once it is taken
+		this.offer(this._stub);
+
+		next = head.next;
+
+		if(next != null) {
+			this._head = next;
+			return head.value;
+		}
+
+		return null;
+	}
+}//end MpscQueue class
@@ -0,0 +1,250 @@
+/**
+ * A session accepted by SelectorTransport and served by
+ * one of its EventLoops. Holds the client's non-blocking
+ * channel. Bytes queued during a pass of the loop are written together
+ * once the pass ends, while the socket takes them, and
+ * the rest wait for the channel to become writable
+ * again. The queue goes out in gathering writes straight
+ * from the pooled direct buffers, through the loop's own
+ * views of them, so a frame sent to a whole room is never
+ * copied for each client. A client held back for sending
+ * too fast isn't read from until its loop lets it go.
+ *
+ * The client's loop keeps its own list of who is in each
+ * room, told of every move through its task queue, and
+ * queues what is relayed to the room for the client there.
+ * What the core sends the client alone, and closing once
+ * the queue drains, are handed to the loop the same way,
+ * after whatever it still has to relay to the client.
+ *
+ * A client connecting over TLS has its bytes unwrapped
+ * as they are read and its queue wrapped as it is written
+ * by a TlsConnection, on the client's loop like the rest.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+class NioSession extends Session {
+	//most queued buffers handed to a single gathering write
+	private static final int WRITE_BATCH = 16;
+
+	//batch array for each thread that writes, so flushing doesn't allocate
+	private static final ThreadLocal<ByteBuffer[]> WRITE_BATCHES = new ThreadLocal<ByteBuffer[]>(){
+		protected ByteBuffer[] initialValue(){
+			return new ByteBuffer[WRITE_BATCH];
+		}
+	};
+
+	private final SocketChannel _channel;
+	private final EventLoop _loop;
+	//null for a plain text client
+	private final TlsConnection _tls;
+
+	//set while the loop has the session waiting to be flushed, loop thread only
+	boolean _flushQueued;
+	//handed to the loop by other threads to have the session flushed, so that allocates nothing
+	final MpscQueue.Link<NioSession> _flushLink = new MpscQueue.Link<NioSession>(this);
+	//set while the link is in the loop's queue, it is only ever in once
+	final AtomicBoolean _flushOffered = new AtomicBoolean();
+
+	//set once the channel is registered with the selector
+	private volatile SelectionKey _key;
+
+	//set while the client is held back, guarded by the queue lock
+	private boolean _readPaused;
+	//nanoTime the client is held back until, loop thread only
+	long _resumeAt;
+
+	//position among the loop's members of the client's room, loop thread only
+	int _memberSlot = -1;
+
+	/**
+	 * @param id - id unique to this session
+	 * @param channel - the client's channel
+	 * @param loop - I/O thread that reads the client and flushes its queue
+	 * @param tls - encrypts the client's bytes, null for none
+	 */
+	NioSession(int id, SocketChannel channel, EventLoop loop, TlsConnection tls) {
+		super(id);
+
+		this._channel = channel;
+		this._loop = loop;
+		this._tls = tls;
+	}
+
+	/**
+	 * @return the client's channel
+	 */
+	SocketChannel getChannel() {
+		return this._channel;
+	}
+
+	/**
+	 * reads whatever the client has sent into the read buffer,
+	 * unwrapping it first if the client uses TLS.
+	 *
+	 * @return bytes added to the read buffer, -1 once the client hangs up
+	 */
+	int read() throws IOException {
+		if(this._tls == null) {
+			int read = this._channel.read(this.readBuffer());
+			this.bytesRead(read);
+
+			return read;
+		}
+
+		int read = this._tls.read(this.readBuffer());
+		this.bytesRead(read);
+
+		//the handshake has more to send than the socket took, or just finished with bytes queued
+		if(this._tls.hasPendingOutput() || (!this._tls.isHandshaking() && this.hasOutbound()))
+			this._loop.flushLater(this);
+
+		return read;
+	}
+
+	/**
+	 * @return whether bytes already read are waiting for room in the read buffer
+	 */
+	boolean hasBufferedInput() {
+		return this._tls != null && this._tls.hasBufferedInput();
+	}
+
+	/**
+	 * @param key - key the channel was registered with
+	 */
+	void setKey(SelectionKey key) {
+		this._key = key;
+	}
+
+	/**
+	 * stops or starts reading from the client.
+	 *
+	 * @param paused - whether the client is held back
+	 */
+	void setReadPaused(boolean paused) {
+		synchronized(this.outboundLock()) {
+			this._readPaused = paused;
+
+			this.updateInterest();
+		}
+	}
+
+	/**
+	 * tells the loop, which moves the client between its own
+	 * lists of room members once it has relayed everything
+	 * relayed before the move.
+	 */
+	@Override
+	void roomChanged(ChatRoom left, ChatRoom joined) {
+		this._loop.roomChanged(this, left, joined);
+	}
+
+	/**
+	 * hands the task to the loop, which runs it once it has
+	 * queued everything relayed to the client before.
+	 */
+	@Override
+	void afterRelays(Runnable task) {
+		this._loop.afterRelays(task);
+	}
+
+	/**
+	 * leaves the write to the end of the loop's pass, so
+	 * everything relayed to the client in the meantime goes out
+	 * in one write.
+	 */
+	@Override
+	void outboundReady() {
+		this._loop.flushLater(this);
+	}
+
+	/**
+	 * writes as much of the queue as the socket will take without
+	 * blocking, several buffers at a time with gathering writes,
+	 * then asks the selector to report when the channel is writable
+	 * again if anything is left. Only called on the loop's thread.
+	 */
+	void writeOutbound() throws IOException {
+		ByteBuffer[] batch = WRITE_BATCHES.get();
+		int slot = this._loop.getIndex();
+
+		synchronized(this.outboundLock()) {
+			//left from the last write or sent by the handshake meanwhile
+			boolean full = this._tls != null && !this._tls.flush();
+
+			try {
+				while(!full && this.hasOutbound()) {
+					int count = this.gatherOutbound(batch, slot);
+
+					if(this._tls != null)
+						this.outboundWritten(this._tls.write(batch, count));
+					else
+						this.outboundWritten(this._channel.write(batch, 0, count));
+
+					//socket send buffer is full
+					if(batch[count - 1].hasRemaining())
+						full = true;
+
+					//wrapped but not all written, or waiting on the handshake
+					if(this._tls != null && (this._tls.hasPendingOutput() || this._tls.isHandshaking()))
+						full = true;
+				}
+			}
+			finally {
+				Arrays.fill(batch, null);
+			}
+
+			this.updateInterest();
+		}
+	}
+
+	/**
+	 * asks the selector to report the channel readable unless the
+	 * client is held back, and writable while anything is left to
+	 * write. Called with the queue lock held.
+	 */
+	private void updateInterest() {
+		SelectionKey key = this._key;
+
+		//key is cancelled once the channel closes
+		if(key != null && key.isValid()) {
+			int ops = this._readPaused ? 0 : SelectionKey.OP_READ;
+
+			//nothing queued can go out until the handshake is done, reading finishes it
+			boolean waiting = this._tls != null && this._tls.isHandshaking() && !this._tls.hasPendingOutput();
+
+			if((this.hasOutbound() && !waiting) || (this._tls != null && this._tls.hasPendingOutput()))
+				ops |= SelectionKey.OP_WRITE;
+
+			if(key.interestOps() != ops) {
+				key.interestOps(ops);
+
+				//may be called off the loop's thread while it is waiting
+				key.selector().wakeup();
+			}
+		}
+	}
+
+	@Override
+	void closeConnection() {
+		//only the client's own loop may use the engine, other threads just close the channel
+		if(this._tls != null && this._loop.isIoThread())
+			this._tls.close();
+
+		try {
+			this._channel.close();
+		}
+		catch(IOException ex) {
+			//closing a socket requires IOException throw or handle
+		}
+	}
+}//end NioSession class
@@ -0,0 +1,325 @@
+/**
+ * This node's link to one other node of a cluster. Every
+ * message relayed by a client of this node, and every join
+ * and leave, is queued here and written to the other node,
+ * which relays it to its own clients in the same room but
+ * never forwards it again. With every node linked to every
+ * other, each message crosses each link once.
+ *
+ * The link is written by a thread of its own, so the core
+ * never waits on another node. Frames queued while the
+ * last write is in progress go out together in the next
+ * one. Once it has accepted the link the other node only
+ * writes PING, when the link has been quiet, so a second
+ * thread reads for it to close its end, answering each
+ * PING through the queue, and notices a node gone even
+ * while there is nothing to forward. While the other node can't be
+ * reached nothing is queued, and the link tries again
+ * after a random wait that doubles with every failure,
+ * like a client does. When the server uses TLS so do
+ * its links, with the server's own context, so nodes
+ * sharing a key store trust each other.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadLocalRandom;
+
+class PeerLink implements Runnable {
+	//most frames waiting for the other node, more are dropped
+	private static final int MAX_QUEUED = 10000;
+	//milliseconds allowed to connect and be answered
+	private static final int CONNECT_TIMEOUT = 5000;
+	//most milliseconds the first retry waits, doubled for each after
+	private static final int RETRY_DELAY = 250;
+	//most milliseconds any retry waits
+	private static final int MAX_RETRY_DELAY = 10000;
+	//bytes of frames buffered before they are written regardless
+	private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+	//answer to the other node's PING, the same every time
+	private static final byte[] PONG_FRAME = ChatProtocol.frameBytes(ChatProtocol.PONG, ChatProtocol.SERVER_ID, "");
+
+	private final ChatServerCore _core;
+	//name this node gives itself in the PEER frame
+	private final String _node;
+	private final InetSocketAddress _address;
+
+	//frames waiting for the other node, also guards the fields below
+	private final ArrayDeque<byte[]> _queue = new ArrayDeque<byte[]>();
+	private boolean _connected;
+	private boolean _running;
+
+	private Thread _thread;
+	private volatile Socket _socket;
+
+	/**
+	 * @param core - server reporting drops and link changes
+	 * @param node - this node's name
+	 * @param address - host and client port of the other node
+	 */
+	PeerLink(ChatServerCore core, String node, InetSocketAddress address) {
+		this._core = core;
+		this._node = node;
+		this._address = address;
+	}
+
+	/**
+	 * starts connecting to the other node in the background.
+	 */
+	void start() {
+		synchronized(this._queue) {
+			this._running = true;
+		}
+
+		this._thread = new Thread(this, "ChatServer-Peer-" + this);
+		this._thread.setDaemon(true);
+		this._thread.start();
+	}
+
+	/**
+	 * closes the link, dropping whatever is still queued.
+	 */
+	void stop() {
+		synchronized(this._queue) {
+			this._running = false;
+			this._connected = false;
+			this._queue.clear();
+			this._queue.notify();
+		}
+
+		Socket socket = this._socket;
+
+		if(socket != null)
+			closeSocket(socket);
+	}
+
+	/**
+	 * queues a frame for the other node.
+	 *
+	 * @param frame - frame to write, not changed afterwards
+	 * @return false if the link is down or too far behind and the frame was dropped
+	 */
+	boolean forward(byte[] frame) {
+		synchronized(this._queue) {
+			if(!this._connected || this._queue.size() >= MAX_QUEUED)
+				return false;
+
+			this._queue.add(frame);
+
+			//the writer only waits on an empty queue
+			if(this._queue.size() == 1)
+				this._queue.notify();
+		}
+
+		return true;
+	}
+
+	/**
+	 * the link's thread. Connects, then writes whatever is
+	 * queued until the link breaks, and starts over.
+	 */
+	public void run() {
+		int failures = 0;
+
+		while(this.isRunning()) {
+			Socket socket = null;
+			boolean linked = false;
+
+			try {
+				socket = this.newSocket();
+				this._socket = socket;
+
+				DataOutputStream out = this.connect(socket);
+
+				linked = true;
+				failures = 0;
+				this._core.peerLinked(this, true);
+
+				this.writeQueued(out);
+			}
+			catch(IOException ex) {
+				//the other node is down or went away
+			}
+
+			if(socket != null)
+				closeSocket(socket);
+
+			synchronized(this._queue) {
+				this._connected = false;
+				this._queue.clear();
+			}
+
+			if(linked)
+				this._core.peerLinked(this, false);
+
+			if(!this.isRunning())
+				break;
+
+			try {
+				long ceiling = Math.min(MAX_RETRY_DELAY, (long)RETRY_DELAY << Math.min(failures++, 20));
+				Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+			}
+			catch(InterruptedException ex) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return an unconnected socket, speaking TLS if the server does
+	 */
+	private Socket newSocket() throws IOException {
+		javax.net.ssl.SSLContext context = this._core.getSslContext();
+
+		return context != null ? context.getSocketFactory().createSocket() : new Socket();
+	}
+
+	/**
+	 * opens the socket and introduces this node, waiting for
+	 * the other node to accept the link.
+	 *
+	 * @return stream to write frames to
+	 */
+	private DataOutputStream connect(Socket socket) throws IOException {
+		socket.setTcpNoDelay(true);
+		//looked up on every attempt, a node may come back at a new address
+		socket.connect(new InetSocketAddress(this._address.getHostString(), this._address.getPort()), CONNECT_TIMEOUT);
+		socket.setSoTimeout(CONNECT_TIMEOUT);
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(),
+				OUTPUT_BUFFER_SIZE));
+		out.write(ChatProtocol.preamble(ChatProtocol.VERSION));
+		out.write(ChatProtocol.frameBytes(ChatProtocol.PEER, ChatProtocol.SERVER_ID, this._node));
+		out.flush();
+
+		DataInputStream in = new DataInputStream(socket.getInputStream());
+
+		byte[] preamble = new byte[ChatProtocol.PREAMBLE_SIZE];
+		in.readFully(preamble);
+
+		//links need the version that knows PEER frames
+		if(ChatProtocol.readPreamble(ByteBuffer.wrap(preamble)) < ChatProtocol.RESUME_VERSION)
+			throw new ProtocolException("Peer speaks an older protocol");
+
+		ChatProtocol.Frame answer = ChatProtocol.readFrame(in);
+
+		if(answer.type != ChatProtocol.ACCEPT)
+			throw new ProtocolException("Peer refused the link: " + answer.payload);
+
+		socket.setSoTimeout(0);
+
+		synchronized(this._queue) {
+			if(!this._running)
+				throw new IOException("Link stopped");
+
+			this._connected = true;
+		}
+
+		this.watch(socket, in);
+
+		return out;
+	}
+
+	/**
+	 * starts a thread that waits for the other node to close
+	 * its end, answering its pings meanwhile, then closes the
+	 * link and wakes the writer.
+	 */
+	private void watch(final Socket socket, final DataInputStream in) {
+		Thread watcher = new Thread(new Runnable(){
+			public void run(){
+				try {
+					//only pings are sent after ACCEPT, reading only ends when the link does
+					while(true) {
+						if(ChatProtocol.readFrame(in).type == ChatProtocol.PING)
+							forward(PONG_FRAME);
+					}
+				}
+				catch(IOException ex) {
+					//link broke or was closed by the writer
+				}
+
+				synchronized(_queue) {
+					//a late watcher of a link already replaced leaves the new one alone
+					if(_socket == socket) {
+						_connected = false;
+						_queue.notify();
+					}
+				}
+
+				closeSocket(socket);
+			}
+		}, "ChatServer-PeerWatch-" + this);
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	/**
+	 * writes frames as they are queued, everything queued
+	 * at once in one flush, until the link stops or breaks.
+	 */
+	private void writeQueued(DataOutputStream out) throws IOException {
+		ArrayDeque<byte[]> batch = new ArrayDeque<byte[]>();
+
+		while(true) {
+			synchronized(this._queue) {
+				while(this._running && this._connected && this._queue.isEmpty()) {
+					try {
+						this._queue.wait();
+					}
+					catch(InterruptedException ex) {
+						return;
+					}
+				}
+
+				if(!this._running || !this._connected)
+					return;
+
+				batch.addAll(this._queue);
+				this._queue.clear();
+			}
+
+			for(byte[] frame : batch)
+				out.write(frame);
+
+			out.flush();
+			batch.clear();
+		}
+	}
+
+	/**
+	 * @return whether the link should keep trying
+	 */
+	private boolean isRunning() {
+		synchronized(this._queue) {
+			return this._running;
+		}
+	}
+
+	private static void closeSocket(Socket socket) {
+		try {
+			socket.close();
+		}
+		catch(IOException ex){
+			//closing a socket requires IOException throw or handle
+		}
+	}
+
+	/**
+	 * @return the other node's address, as shown in the host's log
+	 */
+	@Override
+	public String toString() {
+		return this._address.getHostString() + ":" + this._address.getPort();
+	}
+}//end PeerLink class
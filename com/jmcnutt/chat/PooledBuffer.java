@@ -0,0 +1,153 @@
+/**
+ * Bytes shared by everyone holding a reference to them,
+ * handed back to the BufferPool once the last reference is
+ * released. A frame relayed to a room is encoded into one
+ * PooledBuffer, every receiving session retains it while
+ * it is queued and releases it once written, so the frame
+ * is written to many clients from one copy and reused for
+ * another frame afterwards.
+ *
+ * The bytes are those from the buffer's position to its
+ * limit when it is first shared, and nobody moves either
+ * after that. Readers use absolute gets or copies, or a
+ * view of their own. Each EventLoop writes its clients'
+ * frames from a view kept for it, made the first time it
+ * writes the buffer and kept as long as the buffer, so
+ * however many clients a frame is written to, the bytes
+ * are never copied and the views never allocated again.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+final class PooledBuffer {
+	private final ByteBuffer _buffer;
+	//size class the buffer goes back to, -1 for one the pool doesn't keep
+	private final int _sizeClass;
+
+	//references still held, back to the pool at 0
+	private final AtomicInteger _references = new AtomicInteger();
+
+	//views of the bytes by loop index, each only moved by its loop
+	private volatile ByteBuffer[] _views = new ByteBuffer[0];
+
+	/**
+	 * @param buffer - the bytes
+	 * @param sizeClass - size class of the pool it belongs to, -1 for none
+	 */
+	PooledBuffer(ByteBuffer buffer, int sizeClass) {
+		this._buffer = buffer;
+		this._sizeClass = sizeClass;
+	}
+
+	/**
+	 * wraps bytes that never go back to the pool, such as
+	 * frames read from the message log or sent to every client.
+	 *
+	 * @param buffer - bytes from position to limit
+	 * @return a buffer with one reference, left to the garbage collector once released
+	 */
+	static PooledBuffer wrap(ByteBuffer buffer) {
+		PooledBuffer wrapped = new PooledBuffer(buffer, -1);
+		wrapped._references.set(1);
+
+		return wrapped;
+	}
+
+	/**
+	 * @return the bytes, from position to limit
+	 */
+	ByteBuffer buffer() {
+		return this._buffer;
+	}
+
+	/**
+	 * a view of the bytes for one event loop to write from.
+	 * Only that loop's thread may use it, and only until it
+	 * asks for the view again.
+	 *
+	 * @param slot - index of the loop
+	 * @param skip - bytes at the start already written
+	 * @return the view, from the bytes' position plus skip to their limit
+	 */
+	ByteBuffer view(int slot, int skip) {
+		ByteBuffer[] views = this._views;
+		ByteBuffer view = slot < views.length ? views[slot] : null;
+
+		if(view == null)
+			view = this.newView(slot);
+
+		view.clear();
+		view.limit(this._buffer.limit());
+		view.position(this._buffer.position() + skip);
+
+		return view;
+	}
+
+	/**
+	 * makes a loop's view, growing the array for a loop with a
+	 * higher index than any before. Locked, so two loops making
+	 * theirs at once keep both.
+	 */
+	private synchronized ByteBuffer newView(int slot) {
+		ByteBuffer[] views = this._views;
+
+		if(slot >= views.length)
+			views = Arrays.copyOf(views, slot + 1);
+
+		views[slot] = this._buffer.duplicate();
+		this._views = views;
+
+		return views[slot];
+	}
+
+	/**
+	 * @return number of bytes shared
+	 */
+	int remaining() {
+		return this._buffer.remaining();
+	}
+
+	/**
+	 * @return size class the buffer goes back to, -1 for none
+	 */
+	int sizeClass() {
+		return this._sizeClass;
+	}
+
+	/**
+	 * takes another reference, for another holder.
+	 *
+	 * @return this buffer
+	 */
+	PooledBuffer retain() {
+		this._references.incrementAndGet();
+
+		return this;
+	}
+
+	/**
+	 * gives up a reference. Once the last is given up the bytes
+	 * may be handed out again and must not be read any more.
+	 */
+	void release() {
+		int left = this._references.decrementAndGet();
+
+		if(left == 0)
+			BufferPool.recycle(this);
+		else if(left < 0)
+			throw new IllegalStateException("Buffer released more often than retained");
+	}
+
+	/**
+	 * called by the pool when it hands the buffer out again.
+	 */
+	void reset() {
+		this._buffer.clear();
+		this._references.set(1);
+	}
+}//end PooledBuffer class
@@ -0,0 +1,136 @@
+/**
+ * Limits how fast a single client may send messages, with
+ * one token bucket for messages and another for their bytes.
+ * A client may send a burst of messages at once, then only
+ * as fast as the buckets refill.
+ *
+ * Neither bucket keeps a count of tokens or a thread to
+ * refill it. Each keeps only the time at which it will next
+ * be full, and taking tokens moves that time later by how
+ * long they take to refill. A bucket lacks the tokens when
+ * that would put the time further off than a whole burst
+ * takes to refill. Taking tokens is a read of the clock and
+ * a compare and set, so nothing ever waits on a lock.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+class RateLimiter {
+	private final Bucket _messages;
+	//null when bytes aren't limited
+	private final Bucket _bytes;
+
+	private final ChatServerConfig.FloodPolicy _policy;
+
+	/**
+	 * @param messagesPerSecond - messages a client may send each second, 0 for no limit
+	 * @param messageBurst - messages a client may send at once
+	 * @param bytesPerSecond - bytes a client may send each second, 0 for no limit
+	 * @param byteBurst - bytes a client may send at once
+	 * @param policy - what happens to a message sent past the limit
+	 */
+	RateLimiter(int messagesPerSecond, int messageBurst, int bytesPerSecond, int byteBurst,
+			ChatServerConfig.FloodPolicy policy) {
+		this._messages = messagesPerSecond > 0 ? new Bucket(messagesPerSecond, messageBurst) : null;
+		this._bytes = bytesPerSecond > 0 ? new Bucket(bytesPerSecond, byteBurst) : null;
+		this._policy = policy;
+	}
+
+	/**
+	 * @return what happens to a message sent past the limit
+	 */
+	ChatServerConfig.FloodPolicy getPolicy() {
+		return this._policy;
+	}
+
+	/**
+	 * takes a message's tokens from both buckets, or from
+	 * neither if either lacks them.
+	 *
+	 * @param bytes - size of the message
+	 * @return 0 if the message may be sent, otherwise nanoseconds until it may
+	 */
+	long acquire(int bytes) {
+		long now = System.nanoTime();
+
+		if(this._messages != null) {
+			long wait = this._messages.take(1, now);
+
+			if(wait > 0)
+				return wait;
+		}
+
+		if(this._bytes != null) {
+			long wait = this._bytes.take(bytes, now);
+
+			if(wait > 0) {
+				//the message isn't sent, so it doesn't count against the client
+				if(this._messages != null)
+					this._messages.giveBack(1);
+
+				return wait;
+			}
+		}
+
+		return 0;
+	}
+
+	/**
+	 * a single token bucket
+	 */
+	private static final class Bucket {
+		//nanoseconds for one token to refill
+		private final long _interval;
+		//nanoseconds for a whole burst to refill
+		private final long _capacity;
+		private final int _burst;
+
+		//nanoTime at which the bucket is next full
+		private final AtomicLong _full;
+
+		/**
+		 * @param perSecond - tokens refilled each second
+		 * @param burst - most tokens held at once
+		 */
+		Bucket(int perSecond, int burst) {
+			this._interval = Math.max(1, TimeUnit.SECONDS.toNanos(1) / perSecond);
+			this._burst = Math.max(1, burst);
+			this._capacity = this._interval * this._burst;
+			this._full = new AtomicLong(System.nanoTime());
+		}
+
+		/**
+		 * @param tokens - tokens wanted, no more than a whole burst is ever asked for
+		 * @param now - the current nanoTime
+		 * @return 0 if the tokens were taken, otherwise nanoseconds until they will be there
+		 */
+		long take(int tokens, long now) {
+			//a message larger than the burst is let through once the bucket is full
+			long cost = this._interval * Math.min(tokens, this._burst);
+
+			while(true) {
+				long full = this._full.get();
+
+				//a bucket full since some time ago is only full from now
+				long next = (full - now < 0 ? now : full) + cost;
+
+				if(next - now > this._capacity)
+					return next - now - this._capacity;
+
+				if(this._full.compareAndSet(full, next))
+					return 0;
+			}
+		}
+
+		/**
+		 * puts back tokens just taken.
+		 */
+		void giveBack(int tokens) {
+			this._full.addAndGet(-this._interval * Math.min(tokens, this._burst));
+		}
+	}//end Bucket class
+}//end RateLimiter class
@@ -0,0 +1,214 @@
+/**
+ * A message on its way to every client in a room, or in
+ * every room. The core makes one for each message it relays,
+ * while holding its lock and in the order the messages are
+ * relayed, then hands it to the transport. SelectorTransport
+ * passes it to each of its EventLoops, and every loop queues
+ * it for its own clients, so a message to a crowd spread
+ * over several loops is fanned out by all of them at once
+ * and the core is only locked while the message is given
+ * its place in line.
+ *
+ * The message is encoded at most once per protocol, once
+ * more for clients taking ids if it has one and once more
+ * compressed if it is long enough, by whichever thread first
+ * has a client needing it, into buffers from the BufferPool.
+ * Every client is queued a reference to the same bytes,
+ * which go back to the pool once every thread has done its
+ * part and the last client has written them.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+final class Relay {
+	//the ways the message is encoded, by index into _encoded
+	private static final int FRAME = 0;
+	private static final int ID_FRAME = 1;
+	private static final int LINE = 2;
+	private static final int DEFLATED = 3;
+
+	private final byte _type;
+	private final String _message;
+	//null if the host is the sender
+	private final Session _sender;
+	private final int _senderId;
+	//null for every client
+	private final ChatRoom _room;
+	private final long _id;
+	private final boolean _compress;
+
+	private final ChatServerMetrics _metrics;
+	//whether clients too far behind are removed rather than miss the message
+	private final boolean _disconnectSlow;
+
+	//encoded by the first thread with a client needing each, the relay's own references
+	private final AtomicReferenceArray<PooledBuffer> _encoded = new AtomicReferenceArray<PooledBuffer>(4);
+	//threads yet to finish their part
+	private final AtomicInteger _parts = new AtomicInteger(1);
+	private final long _started = System.nanoTime();
+
+	/**
+	 * @param type - MESSAGE, NOTICE or LEAVE
+	 * @param message - String to send
+	 * @param sender - the sending client. null if host is sender
+	 * @param room - room to send to, null for every client
+	 * @param id - id the message was logged with, NO_ID if it wasn't
+	 * @param compress - whether clients that take compressed frames are sent one
+	 * @param metrics - counts what was queued and times the relay
+	 * @param disconnectSlow - whether clients too far behind are removed
+	 */
+	Relay(byte type, String message, Session sender, ChatRoom room, long id, boolean compress,
+			ChatServerMetrics metrics, boolean disconnectSlow) {
+		this._type = type;
+		this._message = message;
+		this._sender = sender;
+		this._senderId = sender == null ? ChatProtocol.SERVER_ID : sender.getId();
+		this._room = room;
+		this._id = id;
+		this._compress = compress;
+		this._metrics = metrics;
+		this._disconnectSlow = disconnectSlow;
+	}
+
+	/**
+	 * @return room the message goes to, null for every client
+	 */
+	ChatRoom getRoom() {
+		return this._room;
+	}
+
+	/**
+	 * sets how many threads share the fan-out, each calling
+	 * finished once. Only called before the relay is handed on.
+	 *
+	 * @param parts - threads queueing the message, 1 unless split
+	 */
+	void split(int parts) {
+		this._parts.set(parts);
+	}
+
+	/**
+	 * queues the message for one client in its own protocol,
+	 * unless the client sent it or hasn't joined. Clients found
+	 * unreachable, or too far behind under the disconnect policy,
+	 * are added to lost for the caller to remove.
+	 *
+	 * @param session - client to send to
+	 * @param lost - clients to remove once the caller's part is done
+	 * @return whether the message was queued
+	 */
+	boolean sendTo(Session session, ArrayList<Session> lost) {
+		if(session == this._sender || !session.isJoined())
+			return false;
+
+		//try block to prevent broken connection from interrupting message sending
+		try {
+			if(session.send(this.encodedFor(session).retain()))
+				return true;
+
+			//queue at the high-water mark, the client isn't keeping up
+			if(this._disconnectSlow) {
+				this._metrics.evicted();
+				lost.add(session);
+			}
+			else {
+				this._metrics.messageDropped();
+			}
+		}
+		//Called if client is unreachable
+		catch(IOException ex) {
+			lost.add(session);
+		}
+
+		return false;
+	}
+
+	/**
+	 * called by each thread sharing the fan-out once it has
+	 * queued the message for all its clients. The last one
+	 * gives back the relay's own references.
+	 *
+	 * @param queued - clients the thread queued the message for
+	 */
+	void finished(int queued) {
+		this._metrics.messagesOut(queued);
+
+		if(this._parts.decrementAndGet() != 0)
+			return;
+
+		//the clients hold theirs until written
+		for(int i = 0; i < this._encoded.length(); i++) {
+			PooledBuffer encoded = this._encoded.get(i);
+
+			if(encoded != null)
+				encoded.release();
+		}
+
+		this._metrics.relayed(System.nanoTime() - this._started);
+	}
+
+	/**
+	 * @param session - client the message is sent to
+	 * @return the message encoded for the client's protocol
+	 */
+	private PooledBuffer encodedFor(Session session) {
+		//clients that take compressed frames take ids too
+		if(this._compress && session.canCompress())
+			return this.encoded(DEFLATED);
+		else if(this._id != ChatProtocol.NO_ID && session.canResume())
+			return this.encoded(ID_FRAME);
+		else if(session.isBinary())
+			return this.encoded(FRAME);
+		else
+			return this.encoded(LINE);
+	}
+
+	/**
+	 * @param kind - one of the encodings
+	 * @return the message encoded that way, encoded now if no thread has yet
+	 */
+	private PooledBuffer encoded(int kind) {
+		PooledBuffer encoded = this._encoded.get(kind);
+
+		if(encoded != null)
+			return encoded;
+
+		//threads needing it at once wait for the first rather than encode it again
+		synchronized(this) {
+			encoded = this._encoded.get(kind);
+
+			if(encoded == null) {
+				encoded = this.encode(kind);
+				this._encoded.set(kind, encoded);
+			}
+
+			return encoded;
+		}
+	}
+
+	/**
+	 * @param kind - one of the encodings
+	 * @return the message encoded that way, in a buffer of its own
+	 */
+	private PooledBuffer encode(int kind) {
+		switch(kind) {
+			case DEFLATED:
+				return ChatProtocol.encodeFrame(this._type, this._senderId, this._id, this._message, true);
+
+			case ID_FRAME:
+				return ChatProtocol.encodeFrame(this._type, this._senderId, this._id, this._message);
+
+			case FRAME:
+				return ChatProtocol.encodeFrame(this._type, this._senderId, this._message);
+
+			default:
+				return ChatProtocol.encodeLine(ChatProtocol.legacyLine(this._type, this._message));
+		}
+	}
+}//end Relay class
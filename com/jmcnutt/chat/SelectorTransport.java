@@ -0,0 +1,211 @@
+/**
+ * Serves clients from a few I/O threads, each an EventLoop
+ * driven by a Selector of its own. One more thread accepts
+ * clients on a ServerSocketChannel and hands each to the
+ * next loop in turn, which reads and writes that client
+ * for as long as it is connected. With a loop for each
+ * core the reading, splitting into frames and writing of
+ * different clients happens side by side.
+ *
+ * Messages cross loops through the core. The loop that
+ * reads a message relays it under the core's lock, which
+ * only gives it its place in line and hands it to every
+ * loop through the loop's lock-free task queue. Each loop
+ * then queues it for, and writes it to, its own clients in
+ * the room, so the fan-out to a crowd runs on every loop at
+ * once rather than on one thread under the lock.
+ *
+ * When the server has a TLS context every client is
+ * served through its own TlsConnection, on its loop.
+ *
+ * Once stopped the server channel is closed at once, and
+ * each loop runs on until every one of its clients' channels
+ * has been closed after its last bytes, or the drain
+ * deadline passes. The core is told once the last loop ends.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class SelectorTransport implements ChatTransport, Runnable {
+	private final ChatServerCore _core;
+	private final int _port;
+
+	private ServerSocketChannel _serverChannel;
+
+	private final EventLoop[] _loops;
+	//loops still running, the core is told when the last one ends
+	private final AtomicInteger _runningLoops = new AtomicInteger();
+	//loop the next client goes to, accept thread only
+	private int _nextLoop;
+
+	private volatile boolean _running;
+	private volatile long _drainMillis;
+	private Thread _acceptThread;
+
+	/**
+	 * @param core - chatroom frames are handed to
+	 * @param port - port to accept clients on
+	 * @param ioThreads - loops clients are spread over
+	 */
+	SelectorTransport(ChatServerCore core, int port, int ioThreads) {
+		this._core = core;
+		this._port = port;
+		this._loops = new EventLoop[Math.max(1, ioThreads)];
+
+		for(int i = 0; i < this._loops.length; i++)
+			this._loops[i] = new EventLoop(core, this, i, "ChatServer-IO-" + i);
+	}
+
+	@Override
+	public void start() throws IOException {
+		try {
+			for(EventLoop loop : this._loops)
+				loop.open();
+
+			this._serverChannel = ServerSocketChannel.open();
+			this._serverChannel.bind(new InetSocketAddress(this._port));
+		}
+		catch(IOException e) {
+			this.closeServerChannel();
+
+			for(EventLoop loop : this._loops)
+				loop.close();
+
+			throw e;
+		}
+
+		this._running = true;
+		this._runningLoops.set(this._loops.length);
+
+		for(EventLoop loop : this._loops)
+			loop.start();
+
+		this._acceptThread = new Thread(this, "ChatServer-Accept");
+		this._acceptThread.start();
+	}
+
+	@Override
+	public void stop(long millis) {
+		if(!this._running)
+			return;
+
+		this._drainMillis = millis;
+		this._running = false;
+
+		//wakes the accept thread, which stops the loops once it is done
+		this.closeServerChannel();
+	}
+
+	@Override
+	public boolean relay(Relay relay) {
+		//not started yet, or every loop has ended
+		if(this._runningLoops.get() == 0)
+			return false;
+
+		relay.split(this._loops.length);
+
+		for(EventLoop loop : this._loops)
+			loop.relay(relay);
+
+		return true;
+	}
+
+	@Override
+	public void awaitStop(long millis) throws InterruptedException {
+		long deadline = System.nanoTime() + millis * 1000000L;
+
+		if(this._acceptThread != null)
+			this._acceptThread.join(millis);
+
+		for(EventLoop loop : this._loops) {
+			long left = millis == 0 ? 0 : Math.max(1, (deadline - System.nanoTime()) / 1000000L);
+
+			loop.awaitStop(left);
+		}
+	}
+
+	/**
+	 * the accept thread. Hands every new client to the next
+	 * loop until the server channel closes, then tells every
+	 * loop to drain, after the last client it was handed.
+	 */
+	public void run(){
+		while(this._running) {
+			this.acceptClient();
+		}
+
+		for(EventLoop loop : this._loops)
+			loop.stop(this._drainMillis);
+	}
+
+	/**
+	 * called by each loop as it ends. The core is told
+	 * once every loop has.
+	 */
+	void loopStopped() {
+		if(this._runningLoops.decrementAndGet() == 0)
+			this._core.transportStopped();
+	}
+
+	/**
+	 * waits for a connection and hands its session to a loop.
+	 * A client turned away because the room is full is still
+	 * read until it says hello, so it can be told why in its
+	 * own protocol.
+	 */
+	private void acceptClient() {
+		SocketChannel channel = null;
+
+		try {
+			channel = this._serverChannel.accept();
+
+			channel.configureBlocking(false);
+			this._core.getConfig().configureSocket(channel);
+
+			javax.net.ssl.SSLContext context = this._core.getSslContext();
+
+			EventLoop loop = this._loops[this._nextLoop];
+			this._nextLoop = (this._nextLoop + 1) % this._loops.length;
+
+			NioSession session = new NioSession(this._core.nextSessionId(), channel, loop,
+					context != null ? new TlsConnection(context, channel) : null);
+
+			this._core.sessionOpened(session);
+
+			loop.register(session, channel);
+		}
+		catch(IOException ex) {
+			//server channel closed by stop, or client hung up before it could be set up
+			if(channel != null) {
+				try {
+					channel.close();
+				}
+				catch(IOException e) {
+					//closing a socket requires IOException throw or handle
+				}
+			}
+			//the channel closed on its own, the server can't accept anyone
+			else if(this._running && !this._serverChannel.isOpen()) {
+				this._core.transportError(ex);
+				this.stop(0);
+			}
+		}
+	}
+
+	private void closeServerChannel() {
+		try {
+			if(this._serverChannel != null)
+				this._serverChannel.close();
+		}
+		catch(IOException e){
+			//catch required to close socket
+		}
+	}
+}//end SelectorTransport class
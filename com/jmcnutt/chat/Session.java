@@ -0,0 +1,872 @@
+/**
+ * A single client connected to the server. Holds the
+ * username the client joined with, its place in the
+ * registry, the bytes read from it that don't yet make
+ * a whole frame and a bounded queue of bytes waiting to
+ * be written to it. The transport that accepted the
+ * client decides how bytes are read and how the queue is
+ * drained, so relaying to a client never waits on the
+ * client itself.
+ *
+ * Which protocol the client speaks is worked out from
+ * the first bytes it sends, see ChatProtocol.
+ *
+ * Messages are checked against the client's RateLimiter
+ * as they are decoded, on the thread that read them and
+ * before the core is locked, so a client sending too
+ * fast costs the rest of the room nothing. Under the
+ * delay policy the message is left in the read buffer
+ * and the transport stops reading from the client until
+ * it is allowed.
+ *
+ * A client that has been quiet for the heartbeat interval
+ * is sent PING, and one quiet for the idle timeout is
+ * closed, so a client that vanished without a word frees
+ * its place. Clients from before PING can't answer it and
+ * are only closed for being quiet before they join. PING
+ * and PONG are answered and dropped here, without the core.
+ *
+ * Buffers come from the BufferPool. On the selector the read
+ * buffer is only borrowed once bytes arrive and kept while
+ * part of a frame is waiting in it, so idle clients hold
+ * none. A blocking client needs one to block in read with,
+ * so it holds one while it waits. The queue holds
+ * PooledBuffers shared with every other client sent the same
+ * frame, each released once it has been written.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+abstract class Session {
+	//initial size of the read buffer, grows for longer frames
+	private static final int READ_BUFFER_SIZE = 1024;
+	//buffers the queue has room for at first, a power of two, doubles as needed
+	private static final int OUTBOUND_SIZE = 8;
+
+	//buckets of a wheel watching for quiet clients
+	private static final int IDLE_WHEEL_SIZE = 512;
+
+	//the same for every client, never released, each client is sent a reference of its own
+	private static final PooledBuffer PING_FRAME = ChatProtocol.encodeFrame(ChatProtocol.PING, ChatProtocol.SERVER_ID, "");
+	private static final PooledBuffer PONG_FRAME = ChatProtocol.encodeFrame(ChatProtocol.PONG, ChatProtocol.SERVER_ID, "");
+
+	/**
+	 * protocol a client speaks
+	 */
+	enum Protocol {
+		//nothing read from the client yet
+		UNKNOWN,
+		//newline terminated lines from an old client
+		TEXT,
+		//frames as described in ChatProtocol
+		BINARY
+	}
+
+	private final int _id;
+
+	private volatile Protocol _protocol = Protocol.UNKNOWN;
+	//binary protocol version agreed with the client
+	private byte _version;
+
+	//holds bytes received from the client until a whole frame or line arrives, null while empty
+	private PooledBuffer _readBuffer;
+
+	//set once the connection is closed, for any reason
+	private volatile boolean _closed;
+	//set once the connection is to close after its queue drains, before that is handed to the transport
+	private volatile boolean _closing;
+
+	//null until the client sends one
+	private String _username;
+
+	//set when the connection is another node of the cluster rather than a client
+	private boolean _peer;
+
+	//position in the registry, -1 once removed
+	int _slot = -1;
+
+	//room the client is in and its position there, null and -1 when in none
+	ChatRoom _room;
+	int _roomSlot = -1;
+
+	//guards the queue and the fields below it
+	private final Object _outboundLock = new Object();
+	//buffers waiting to be written to the client, a ring of _outboundCount from _outboundHead
+	private PooledBuffer[] _outbound = new PooledBuffer[OUTBOUND_SIZE];
+	private int _outboundHead;
+	private int _outboundCount;
+	//bytes of the front buffer already written
+	private int _frontWritten;
+	//only changed with the lock held, read without it
+	private volatile long _outboundBytes;
+
+	//queued bytes past which the client counts as slow, 0 for no limit
+	private int _highWaterMark;
+
+	//set when the connection should close once the queue drains
+	private boolean _closeAfterFlush;
+
+	//counts bytes read and written, null if not counted
+	private ChatServerMetrics _metrics;
+
+	//limits how fast the client sends messages, null for no limit
+	private RateLimiter _rateLimiter;
+	//set once a message is held back or dropped for the rate limit, until one gets through
+	private boolean _flooding;
+
+	//nanoTime bytes last arrived from the client, or it connected
+	private volatile long _lastHeard = System.nanoTime();
+
+	/**
+	 * @param id - id unique to this session
+	 */
+	Session(int id) {
+		this._id = id;
+	}
+
+	/**
+	 * @return id unique to this session, sent as the sender of its frames
+	 */
+	int getId() {
+		return this._id;
+	}
+
+	/**
+	 * @return whether the client speaks the binary protocol
+	 */
+	boolean isBinary() {
+		return this._protocol == Protocol.BINARY;
+	}
+
+	/**
+	 * @return whether the client takes message ids and ROOM frames, and can resume
+	 */
+	boolean canResume() {
+		return this.isBinary() && this._version >= ChatProtocol.RESUME_VERSION;
+	}
+
+	/**
+	 * @return whether the client takes compressed frames
+	 */
+	boolean canCompress() {
+		return this.isBinary() && this._version >= ChatProtocol.COMPRESS_VERSION;
+	}
+
+	/**
+	 * @return whether the client answers PING
+	 */
+	boolean canPing() {
+		return this.isBinary() && this._version >= ChatProtocol.HEARTBEAT_VERSION;
+	}
+
+	/**
+	 * @return whether the connection has been closed
+	 */
+	boolean isClosed() {
+		return this._closed;
+	}
+
+	/**
+	 * @return whether the connection is closed or closes once its queue drains
+	 */
+	boolean isClosing() {
+		return this._closed || this._closing;
+	}
+
+	/**
+	 * @return the client's username, null if not joined yet
+	 */
+	String getUsername() {
+		return this._username;
+	}
+
+	/**
+	 * only the registry sets usernames so its index stays correct
+	 *
+	 * @param username - the client's username
+	 */
+	void setUsername(String username) {
+		this._username = username;
+	}
+
+	/**
+	 * @return whether the connection is a link from another node
+	 */
+	boolean isPeer() {
+		return this._peer;
+	}
+
+	/**
+	 * marks the connection as a link from another node, which is
+	 * never sent what is relayed and never joins a room. Only the
+	 * registry marks links so it can leave them out of its limit.
+	 */
+	void setPeer() {
+		this._peer = true;
+	}
+
+	/**
+	 * @return whether the client has sent its username
+	 */
+	boolean isJoined() {
+		return this._username != null;
+	}
+
+	/**
+	 * @return room the client is in, null if it hasn't joined one
+	 */
+	ChatRoom getRoom() {
+		return this._room;
+	}
+
+	/**
+	 * called by the core, with its lock held, whenever the
+	 * client joins or leaves a room. Nothing to do unless the
+	 * transport keeps its own track of who is in each room.
+	 *
+	 * @param left - room the client left, null if it joined one
+	 * @param joined - room the client joined, null if it left one
+	 */
+	void roomChanged(ChatRoom left, ChatRoom joined) {
+	}
+
+	/**
+	 * runs a task that queues bytes for the client once
+	 * everything relayed to it before has been queued, so what
+	 * the core sends the client alone never overtakes a relay.
+	 * Run straight away unless the transport relays on threads
+	 * of its own.
+	 *
+	 * @param task - queues bytes for the client
+	 */
+	void afterRelays(Runnable task) {
+		task.run();
+	}
+
+	/**
+	 * @return whether the session is still in the registry
+	 */
+	boolean isOpen() {
+		return this._slot != -1;
+	}
+
+	/**
+	 * returns the read buffer ready for more bytes, taking one
+	 * from the pool if the client has none, or a larger one if
+	 * a frame has filled it. Only called by the reading thread.
+	 */
+	ByteBuffer readBuffer() {
+		if(this._readBuffer == null) {
+			this._readBuffer = BufferPool.allocate(READ_BUFFER_SIZE);
+		}
+		//a frame longer than the buffer, make room for the rest of it
+		else if(!this._readBuffer.buffer().hasRemaining()) {
+			PooledBuffer larger = BufferPool.allocate(this._readBuffer.buffer().capacity() * 2);
+			this._readBuffer.buffer().flip();
+			larger.buffer().put(this._readBuffer.buffer());
+			this._readBuffer.release();
+			this._readBuffer = larger;
+		}
+
+		return this._readBuffer.buffer();
+	}
+
+	/**
+	 * decodes every complete frame or line in the read buffer and
+	 * hands each to the core, keeping whatever is left for the
+	 * next read. Stops early if what the client sent closes it, or
+	 * if the client is held back for sending too fast, in which
+	 * case the transport calls again once the wait is over
+	 * without reading anything more meanwhile. The read buffer
+	 * goes back to the pool once nothing is left in it.
+	 *
+	 * @param core - chatroom the client belongs to
+	 * @return 0 once everything complete is handed over, otherwise nanoseconds to wait
+	 * @throws java.net.ProtocolException - the client broke the protocol
+	 */
+	long processInbound(ChatServerCore core) throws IOException {
+		if(this._readBuffer == null)
+			return 0;
+
+		ByteBuffer buffer = this._readBuffer.buffer();
+		buffer.flip();
+
+		try {
+			if(this._protocol == Protocol.UNKNOWN && !this.negotiate(buffer))
+				return 0;
+
+			if(this._protocol == Protocol.BINARY)
+				return this.decodeFrames(buffer, core);
+			else
+				return this.decodeLines(buffer, core);
+		}
+		finally {
+			buffer.compact();
+
+			//no part of a frame is waiting, the next read takes a buffer again
+			if(buffer.position() == 0) {
+				this._readBuffer.release();
+				this._readBuffer = null;
+			}
+		}
+	}
+
+	/**
+	 * works out the client's protocol from its first bytes. Binary
+	 * clients are answered with a preamble naming the version used.
+	 *
+	 * @param buffer - bytes read so far
+	 * @return false if more bytes are needed to decide
+	 */
+	private boolean negotiate(ByteBuffer buffer) throws IOException {
+		if(!buffer.hasRemaining())
+			return false;
+
+		//old clients start with their username, which never starts with a zero byte
+		if(buffer.get(buffer.position()) != ChatProtocol.MAGIC[0]) {
+			this._protocol = Protocol.TEXT;
+			return true;
+		}
+
+		if(buffer.remaining() < ChatProtocol.PREAMBLE_SIZE)
+			return false;
+
+		byte version = ChatProtocol.readPreamble(buffer);
+
+		if(version < 1)
+			throw new java.net.ProtocolException("Unsupported protocol version " + version);
+
+		//both sides speak the lower of the two versions
+		this._version = (byte)Math.min(version, ChatProtocol.VERSION);
+		this._protocol = Protocol.BINARY;
+
+		this.send(PooledBuffer.wrap(ByteBuffer.wrap(ChatProtocol.preamble(this._version))));
+
+		return true;
+	}
+
+	/**
+	 * hands every complete frame to the core.
+	 *
+	 * @return 0, or nanoseconds to wait with the next message left in the buffer
+	 */
+	private long decodeFrames(ByteBuffer buffer, ChatServerCore core) throws IOException {
+		while(!this.isClosing()) {
+			int start = buffer.position();
+
+			ChatProtocol.Frame frame = ChatProtocol.decodeFrame(buffer);
+
+			if(frame == null)
+				break;
+
+			//reading it was all a heartbeat needed, the core never sees one
+			if(frame.type == ChatProtocol.PING) {
+				this.sendQuietly(PONG_FRAME);
+				continue;
+			}
+
+			if(frame.type == ChatProtocol.PONG)
+				continue;
+
+			if(frame.type == ChatProtocol.MESSAGE) {
+				long wait = this.limit(core, buffer.position() - start);
+
+				if(wait > 0) {
+					buffer.position(start);
+					return wait;
+				}
+
+				if(wait < 0)
+					continue;
+			}
+
+			core.frameReceived(this, frame.type, frame.id, frame.payload);
+		}
+
+		return 0;
+	}
+
+	/**
+	 * hands every complete line to the core as the frame it
+	 * stands for. The first line is the username and EXIT leaves.
+	 * A line may be no longer than a frame's payload, so a client
+	 * that never ends one can't keep growing its read buffer.
+	 *
+	 * @return 0, or nanoseconds to wait with the next line left in the buffer
+	 * @throws java.net.ProtocolException - the line waiting for its newline is too long
+	 */
+	private long decodeLines(ByteBuffer buffer, ChatServerCore core) throws IOException {
+		int start = buffer.position();
+		for(int i = start; i < buffer.limit() && !this.isClosing(); i++) {
+			if(buffer.get(i) == '\n') {
+				if(this.isJoined()) {
+					long wait = this.limit(core, i + 1 - start);
+
+					if(wait > 0) {
+						buffer.position(start);
+						return wait;
+					}
+
+					if(wait < 0) {
+						start = i + 1;
+						continue;
+					}
+				}
+
+				int end = i;
+
+				//strips the carriage return like readLine would
+				if(end > start && buffer.get(end - 1) == '\r')
+					end--;
+
+				String line = new String(buffer.array(), buffer.arrayOffset() + start, end - start,
+						StandardCharsets.ISO_8859_1);
+				start = i + 1;
+
+				if(!this.isJoined())
+					core.frameReceived(this, ChatProtocol.HELLO, ChatProtocol.NO_ID, line);
+				else if(line.equals(ChatProtocol.LEGACY_EXIT))
+					core.frameReceived(this, ChatProtocol.LEAVE, ChatProtocol.NO_ID, "");
+				else
+					core.frameReceived(this, ChatProtocol.MESSAGE, ChatProtocol.NO_ID, line);
+			}
+		}
+
+		buffer.position(start);
+
+		if(!this.isClosing() && buffer.remaining() > ChatProtocol.MAX_PAYLOAD)
+			throw new java.net.ProtocolException("Line of over " + ChatProtocol.MAX_PAYLOAD + " bytes is too long");
+
+		return 0;
+	}
+
+	/**
+	 * takes a message's tokens from the client's rate limit. A
+	 * message past the limit is held back, thrown away or gets
+	 * the client removed, as the flood policy says.
+	 *
+	 * @param core - chatroom told of dropped messages and removed clients
+	 * @param bytes - size of the message as sent
+	 * @return 0 to hand the message on, -1 if it is gone, or nanoseconds to hold it back
+	 */
+	private long limit(ChatServerCore core, int bytes) {
+		//links from other nodes carry everyone's messages
+		if(this._rateLimiter == null || this._peer || !this.isJoined())
+			return 0;
+
+		long wait = this._rateLimiter.acquire(bytes);
+
+		if(wait == 0) {
+			this._flooding = false;
+			return 0;
+		}
+
+		switch(this._rateLimiter.getPolicy()) {
+			case DELAY:
+				//a held back message is checked again until it gets through, it is only counted once
+				if(!this._flooding)
+					core.clientFlooding(this, ChatServerConfig.FloodPolicy.DELAY, true);
+
+				this._flooding = true;
+				return wait;
+
+			case DROP:
+				core.clientFlooding(this, ChatServerConfig.FloodPolicy.DROP, !this._flooding);
+				this._flooding = true;
+				return -1;
+
+			default:
+				core.clientFlooding(this, ChatServerConfig.FloodPolicy.KICK, true);
+				return -1;
+		}
+	}
+
+	/**
+	 * @param rateLimiter - limits how fast the client sends messages, null for no limit
+	 */
+	void setRateLimiter(RateLimiter rateLimiter) {
+		this._rateLimiter = rateLimiter;
+	}
+
+	/**
+	 * @param highWaterMark - queued bytes past which the client counts as slow, 0 for no limit
+	 */
+	void setHighWaterMark(int highWaterMark) {
+		this._highWaterMark = highWaterMark;
+	}
+
+	/**
+	 * @param metrics - counts the bytes read from and written to the client
+	 */
+	void setMetrics(ChatServerMetrics metrics) {
+		this._metrics = metrics;
+	}
+
+	/**
+	 * counts bytes the transport read into the read buffer.
+	 *
+	 * @param read - number of bytes read
+	 */
+	void bytesRead(int read) {
+		if(read > 0)
+			this._lastHeard = System.nanoTime();
+
+		if(this._metrics != null && read > 0)
+			this._metrics.bytesIn(read);
+	}
+
+	/**
+	 * makes a wheel for watching clients for silence, with
+	 * ticks a small part of the shortest time watched for.
+	 *
+	 * @param config - config naming the heartbeat interval and idle timeout
+	 * @return an empty wheel starting now
+	 */
+	static TimerWheel newIdleWheel(ChatServerConfig config) {
+		int heartbeat = config.getHeartbeatInterval();
+		int idleTimeout = config.getIdleTimeout();
+
+		int shortest = heartbeat > 0 && (idleTimeout <= 0 || heartbeat < idleTimeout) ? heartbeat : idleTimeout;
+		long tick = shortest > 0 ? Math.min(1000, Math.max(10, shortest / 8)) : 1000;
+
+		return new TimerWheel(TimeUnit.MILLISECONDS.toNanos(tick), IDLE_WHEEL_SIZE, System.nanoTime());
+	}
+
+	/**
+	 * starts watching the client for silence on a transport's
+	 * timer wheel, if the config asks for heartbeats or an idle
+	 * timeout. Called on the thread that owns the wheel.
+	 *
+	 * @param wheel - wheel of the thread serving the client
+	 * @param core - told when the client is closed for being quiet
+	 */
+	void watchIdle(final TimerWheel wheel, final ChatServerCore core) {
+		final long heartbeat = TimeUnit.MILLISECONDS.toNanos(core.getConfig().getHeartbeatInterval());
+		final long idleTimeout = TimeUnit.MILLISECONDS.toNanos(core.getConfig().getIdleTimeout());
+
+		if(heartbeat <= 0 && idleTimeout <= 0)
+			return;
+
+		TimerWheel.Timeout check = new TimerWheel.Timeout(){
+			void expire(long now){
+				long next = checkIdle(core, now, heartbeat, idleTimeout);
+
+				if(next != 0)
+					wheel.schedule(this, next);
+			}
+		};
+
+		wheel.schedule(check, this._lastHeard + (heartbeat > 0 ? heartbeat : idleTimeout));
+	}
+
+	/**
+	 * pings the client if it has been quiet for the heartbeat
+	 * interval and closes it if it has been quiet for the idle
+	 * timeout.
+	 *
+	 * @param now - the current nanoTime
+	 * @param heartbeat - nanoseconds of silence before a PING, 0 for none
+	 * @param idleTimeout - nanoseconds of silence before closing, 0 for never
+	 * @return nanoTime to check again, 0 if there is no need to
+	 */
+	private long checkIdle(ChatServerCore core, long now, long heartbeat, long idleTimeout) {
+		if(this.isClosing())
+			return 0;
+
+		long heard = this._lastHeard;
+		long quiet = now - heard;
+
+		boolean answers = this.canPing();
+		//a quiet client that can't be pinged may just have nothing to say, unless it never said hello
+		boolean timed = idleTimeout > 0 && (answers || (!this.isJoined() && !this.isPeer()));
+
+		if(timed && quiet >= idleTimeout) {
+			core.sessionTimedOut(this);
+			return 0;
+		}
+
+		long next = timed ? heard + idleTimeout : 0;
+
+		if(heartbeat > 0 && answers) {
+			long ping = heard + heartbeat;
+
+			if(quiet >= heartbeat) {
+				this.sendQuietly(PING_FRAME);
+
+				//pinged again every interval until it answers or times out
+				ping = now + heartbeat;
+			}
+
+			if(next == 0 || ping - next < 0)
+				next = ping;
+		}
+		//yet to say which version it speaks
+		else if(heartbeat > 0 && next == 0 && !this.isJoined() && !this.isPeer()) {
+			next = now + heartbeat;
+		}
+
+		return next;
+	}
+
+	/**
+	 * queues one of the heartbeat frames, a client too far
+	 * behind to take it is left to time out.
+	 */
+	private void sendQuietly(PooledBuffer frame) {
+		try {
+			this.send(frame.retain());
+		}
+		catch(IOException ex) {
+			//client is unreachable, noticed by its transport
+		}
+	}
+
+	/**
+	 * @return bytes waiting to be written to the client
+	 */
+	long getOutboundBytes() {
+		return this._outboundBytes;
+	}
+
+	/**
+	 * queues bytes for the client unless its queue has reached
+	 * the high-water mark. The caller's reference is handed over
+	 * and released once the bytes are written, or straight away
+	 * if they aren't queued, so clients sharing the same bytes
+	 * should each be given a reference of their own with retain.
+	 *
+	 * @param buffer - bytes to send from position to limit
+	 * @return false if the client is too far behind and nothing was queued
+	 */
+	boolean send(PooledBuffer buffer) throws IOException {
+		synchronized(this._outboundLock) {
+			//nothing more is written once closed, the client is about to be removed
+			if(this._closed) {
+				buffer.release();
+				return true;
+			}
+
+			if(this._highWaterMark > 0 && this._outboundBytes + buffer.remaining() > this._highWaterMark) {
+				buffer.release();
+				return false;
+			}
+
+			boolean wasEmpty = this._outboundCount == 0;
+
+			if(this._outboundCount == this._outbound.length)
+				this.growOutbound();
+
+			this._outbound[(this._outboundHead + this._outboundCount) & (this._outbound.length - 1)] = buffer;
+			this._outboundCount++;
+			this._outboundBytes += buffer.remaining();
+
+			if(this._metrics != null)
+				this._metrics.bytesQueued(buffer.remaining());
+
+			//the transport only needs waking for the first buffer
+			if(wasEmpty)
+				this.outboundReady();
+		}
+
+		return true;
+	}
+
+	/**
+	 * closes the connection once everything queued has been
+	 * written, or straight away if nothing is queued. Whatever
+	 * was relayed to the client before is queued first.
+	 */
+	final void closeAfterFlush() {
+		this._closing = true;
+
+		this.afterRelays(new Runnable(){
+			public void run(){
+				closeOnceFlushed();
+			}
+		});
+	}
+
+	/**
+	 * closes the connection once the queue drains.
+	 */
+	private void closeOnceFlushed() {
+		synchronized(this._outboundLock) {
+			if(this._outboundCount == 0)
+				this.close();
+			else
+				this._closeAfterFlush = true;
+		}
+	}
+
+	/**
+	 * lock the transport must hold while draining the queue.
+	 */
+	Object outboundLock() {
+		return this._outboundLock;
+	}
+
+	/**
+	 * @return whether anything is waiting to be written
+	 */
+	boolean hasOutbound() {
+		return this._outboundCount != 0;
+	}
+
+	/**
+	 * fills an array with views of the queued buffers, from the
+	 * first byte not yet written, for a gathering write. A
+	 * buffer queued twice, like PONG, ends the batch before its
+	 * second time, as both would share the loop's one view of it.
+	 * Nothing leaves the queue until outboundWritten is told
+	 * the bytes went out.
+	 *
+	 * @param batch - array filled from index 0
+	 * @param slot - index of the loop writing, whose views are used
+	 * @return number of views filled in, 0 if the queue is empty
+	 */
+	int gatherOutbound(ByteBuffer[] batch, int slot) {
+		int mask = this._outbound.length - 1;
+		int count = 0;
+
+		while(count < this._outboundCount && count < batch.length) {
+			PooledBuffer queued = this._outbound[(this._outboundHead + count) & mask];
+
+			for(int i = 0; i < count; i++) {
+				if(this._outbound[(this._outboundHead + i) & mask] == queued)
+					return count;
+			}
+
+			batch[count] = queued.view(slot, count == 0 ? this._frontWritten : 0);
+			count++;
+		}
+
+		return count;
+	}
+
+	/**
+	 * copies as much of the queue as fits into a buffer, from
+	 * the first byte not yet written, so it can be handed to a
+	 * single write. Nothing leaves the queue until
+	 * outboundWritten is told the bytes went out, so the queue
+	 * only looks empty once everything has.
+	 *
+	 * @param target - buffer filled from its position
+	 * @return number of bytes copied, 0 if the queue is empty
+	 */
+	int copyOutbound(ByteBuffer target) {
+		int copied = 0;
+		int skip = this._frontWritten;
+
+		for(int i = 0; i < this._outboundCount && target.hasRemaining(); i++) {
+			ByteBuffer bytes = this._outbound[(this._outboundHead + i) & (this._outbound.length - 1)].buffer();
+
+			int start = bytes.position() + skip;
+			int length = Math.min(bytes.limit() - start, target.remaining());
+
+			target.put(target.position(), bytes, start, length);
+			target.position(target.position() + length);
+
+			copied += length;
+			skip = 0;
+		}
+
+		return copied;
+	}
+
+	/**
+	 * takes bytes gathered or copied off the queue once they
+	 * are written, releasing every buffer written in full.
+	 * Closes the connection if it was waiting on the queue to drain.
+	 *
+	 * @param written - number of bytes written
+	 */
+	void outboundWritten(long written) {
+		long queued = this._outboundBytes;
+
+		if(this._metrics != null)
+			this._metrics.bytesOut(written);
+
+		//the queue is emptied if the client closes while its bytes are being written
+		while(written > 0 && this._outboundCount > 0) {
+			PooledBuffer front = this._outbound[this._outboundHead];
+			int left = front.remaining() - this._frontWritten;
+
+			if(written < left) {
+				this._frontWritten += (int)written;
+				this._outboundBytes -= written;
+				break;
+			}
+
+			written -= left;
+			this._outboundBytes -= left;
+
+			this._outbound[this._outboundHead] = null;
+			this._outboundHead = (this._outboundHead + 1) & (this._outbound.length - 1);
+			this._outboundCount--;
+			this._frontWritten = 0;
+
+			front.release();
+		}
+
+		if(this._metrics != null)
+			this._metrics.bytesQueued(this._outboundBytes - queued);
+
+		if(this._outboundCount == 0 && this._closeAfterFlush)
+			this.close();
+	}
+
+	/**
+	 * doubles the room in the queue, keeping its order.
+	 */
+	private void growOutbound() {
+		PooledBuffer[] larger = new PooledBuffer[this._outbound.length * 2];
+
+		for(int i = 0; i < this._outboundCount; i++)
+			larger[i] = this._outbound[(this._outboundHead + i) & (this._outbound.length - 1)];
+
+		this._outbound = larger;
+		this._outboundHead = 0;
+	}
+
+	/**
+	 * closes the client's connection straight away, giving back
+	 * whatever was still queued for it.
+	 */
+	final void close() {
+		this._closed = true;
+
+		this.closeConnection();
+
+		synchronized(this._outboundLock) {
+			while(this._outboundCount > 0) {
+				this._outbound[this._outboundHead].release();
+				this._outbound[this._outboundHead] = null;
+				this._outboundHead = (this._outboundHead + 1) & (this._outbound.length - 1);
+				this._outboundCount--;
+			}
+
+			if(this._metrics != null)
+				this._metrics.bytesQueued(-this._outboundBytes);
+
+			this._frontWritten = 0;
+			this._outboundBytes = 0;
+		}
+	}
+
+	/**
+	 * called with the queue lock held when the first buffer is
+	 * queued. The transport starts draining the queue.
+	 */
+	abstract void outboundReady() throws IOException;
+
+	/**
+	 * closes the transport's connection to the client.
+	 */
+	abstract void closeConnection();
+}//end Session class
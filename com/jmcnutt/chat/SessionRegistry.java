@@ -0,0 +1,164 @@
+/**
+ * Every session connected to the server. Sessions are
+ * kept densely packed in one growing array so a broadcast
+ * walks only live clients, and are indexed by id and by
+ * username so lookups don't scan. Adding and removing
+ * are both constant time; removal moves the last session
+ * into the freed slot. Links from other nodes are kept
+ * like clients but don't count toward the limit.
+ *
+ * Not thread safe, ChatServerCore only uses it while holding its lock.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+class SessionRegistry {
+	//starting size of the session array
+	private static final int INITIAL_CAPACITY = 16;
+
+	//most sessions allowed at once, 0 for no limit
+	private final int _limit;
+
+	private Session[] _sessions = new Session[INITIAL_CAPACITY];
+	private int _size;
+	//sessions that are links from other nodes, left out of the limit
+	private int _peers;
+
+	private HashMap<Integer, Session> _byId = new HashMap<Integer, Session>();
+	private HashMap<String, Session> _byUsername = new HashMap<String, Session>();
+
+	/**
+	 * @param limit - most sessions allowed at once, 0 for no limit
+	 */
+	SessionRegistry(int limit) {
+		this._limit = limit;
+	}
+
+	/**
+	 * @return whether another session would go over the limit
+	 */
+	boolean isFull() {
+		return this._limit > 0 && this._size - this._peers >= this._limit;
+	}
+
+	/**
+	 * @return number of sessions connected
+	 */
+	int size() {
+		return this._size;
+	}
+
+	/**
+	 * @param slot - position from 0 to size() - 1
+	 * @return the session at that position
+	 */
+	Session get(int slot) {
+		return this._sessions[slot];
+	}
+
+	/**
+	 * @param id - id of the session
+	 * @return the session, null if there is none
+	 */
+	Session getById(int id) {
+		return this._byId.get(id);
+	}
+
+	/**
+	 * @param username - username the session joined with
+	 * @return the session, null if no one has that name
+	 */
+	Session getByUsername(String username) {
+		return this._byUsername.get(username);
+	}
+
+	/**
+	 * adds a session unless the registry is full.
+	 *
+	 * @param session - session to add
+	 * @return false if the limit has been reached
+	 */
+	boolean add(Session session) {
+		if(this.isFull())
+			return false;
+
+		this.insert(session);
+
+		return true;
+	}
+
+	/**
+	 * marks a session as a link from another node, adding it
+	 * if it was turned away for the limit when it connected.
+	 *
+	 * @param session - session that linked
+	 */
+	void setPeer(Session session) {
+		session.setPeer();
+		this._peers++;
+
+		if(session._slot == -1)
+			this.insert(session);
+	}
+
+	/**
+	 * adds a session at the end of the array.
+	 */
+	private void insert(Session session) {
+		if(this._size == this._sessions.length)
+			this._sessions = Arrays.copyOf(this._sessions, this._sessions.length * 2);
+
+		session._slot = this._size;
+		this._sessions[this._size++] = session;
+		this._byId.put(session.getId(), session);
+	}
+
+	/**
+	 * sets a session's username and indexes it. If the name
+	 * is already taken lookups find the newest holder, so a
+	 * client that comes back before its lost connection is
+	 * noticed is still found once the old one is removed.
+	 *
+	 * @param session - session that joined
+	 * @param username - name it joined with
+	 */
+	void setUsername(Session session, String username) {
+		session.setUsername(username);
+
+		this._byUsername.put(username, session);
+	}
+
+	/**
+	 * removes a session, moving the last session into its slot.
+	 *
+	 * @param session - session to remove
+	 * @return false if the session was already removed
+	 */
+	boolean remove(Session session) {
+		int slot = session._slot;
+
+		if(slot == -1)
+			return false;
+
+		Session last = this._sessions[--this._size];
+		this._sessions[slot] = last;
+		last._slot = slot;
+
+		this._sessions[this._size] = null;
+		session._slot = -1;
+
+		this._byId.remove(session.getId());
+
+		if(session.isPeer())
+			this._peers--;
+
+		if(session.getUsername() != null && this._byUsername.get(session.getUsername()) == session)
+			this._byUsername.remove(session.getUsername());
+
+		return true;
+	}
+}//end SessionRegistry class
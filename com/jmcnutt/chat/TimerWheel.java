@@ -0,0 +1,187 @@
+/**
+ * A hashed timer wheel, for timeouts on tens of thousands
+ * of connections at once. Time is cut into ticks and each
+ * tick maps onto one of a ring of buckets, so scheduling
+ * or cancelling a timeout is a link into or out of one
+ * bucket's list whatever the number of timeouts, and each
+ * tick only looks at the timeouts in its own bucket. A
+ * deadline further off than one turn of the ring waits in
+ * its bucket for the turns it still has to go.
+ *
+ * A timeout never fires early, and at most one tick late.
+ * Nothing is locked, the wheel belongs to the one thread
+ * that schedules on it and advances it.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+final class TimerWheel {
+	private final long _tickNanos;
+	private final Timeout[] _buckets;
+	private final int _mask;
+	//nanoTime tick 0 started at
+	private final long _start;
+
+	//last tick whose bucket has been expired
+	private long _tick;
+	//timeouts scheduled
+	private int _size;
+
+	/**
+	 * something to be done once its deadline has passed.
+	 * A timeout is in at most one bucket, scheduling it
+	 * again moves it.
+	 */
+	abstract static class Timeout {
+		private Timeout _next;
+		private Timeout _prev;
+		//-1 while not scheduled
+		private int _bucket = -1;
+		//turns of the ring still to go before it fires
+		private long _rounds;
+
+		/**
+		 * called by advance once the deadline has passed.
+		 * May schedule the timeout again.
+		 *
+		 * @param now - the nanoTime advance was given
+		 */
+		abstract void expire(long now);
+
+		/**
+		 * @return whether the timeout is waiting in the wheel
+		 */
+		final boolean isScheduled() {
+			return this._bucket != -1;
+		}
+	}
+
+	/**
+	 * @param tickNanos - length of a tick
+	 * @param buckets - buckets in the ring, rounded up to a power of two
+	 * @param now - the current nanoTime, when the first tick starts
+	 */
+	TimerWheel(long tickNanos, int buckets, long now) {
+		int size = Integer.highestOneBit(Math.max(1, buckets - 1)) << 1;
+
+		this._tickNanos = Math.max(1, tickNanos);
+		this._buckets = new Timeout[size];
+		this._mask = size - 1;
+		this._start = now;
+	}
+
+	/**
+	 * schedules a timeout, moving it if it is already scheduled.
+	 *
+	 * @param timeout - what to do
+	 * @param deadline - nanoTime from which it is done
+	 */
+	void schedule(Timeout timeout, long deadline) {
+		this.cancel(timeout);
+
+		//the first tick starting at or after the deadline, never one already expired
+		long ticks = deadline - this._start <= 0 ? 0 : (deadline - this._start + this._tickNanos - 1) / this._tickNanos;
+		long target = Math.max(this._tick + 1, ticks);
+
+		timeout._rounds = (target - this._tick - 1) / this._buckets.length;
+
+		this.link(timeout, (int)(target & this._mask));
+		this._size++;
+	}
+
+	/**
+	 * takes a timeout out of the wheel if it is in it.
+	 */
+	void cancel(Timeout timeout) {
+		if(!timeout.isScheduled())
+			return;
+
+		this.unlink(timeout);
+		this._size--;
+	}
+
+	/**
+	 * @return whether no timeout is scheduled
+	 */
+	boolean isEmpty() {
+		return this._size == 0;
+	}
+
+	/**
+	 * @return nanoTime the next tick ends, when advance next has something to do
+	 */
+	long nextTick() {
+		return this._start + (this._tick + 1) * this._tickNanos;
+	}
+
+	/**
+	 * fires every timeout whose tick has ended by now.
+	 *
+	 * @param now - the current nanoTime
+	 */
+	void advance(long now) {
+		long current = (now - this._start) / this._tickNanos;
+
+		while(this._tick < current) {
+			this._tick++;
+			this.expireBucket((int)(this._tick & this._mask), now);
+		}
+	}
+
+	/**
+	 * fires the bucket's timeouts that are on their last turn
+	 * and moves the others a turn on. The list is taken out of
+	 * the bucket first, so a timeout scheduled again by its
+	 * own expire waits for its next turn.
+	 */
+	private void expireBucket(int bucket, long now) {
+		Timeout timeout = this._buckets[bucket];
+		this._buckets[bucket] = null;
+
+		while(timeout != null) {
+			Timeout next = timeout._next;
+
+			timeout._next = null;
+			timeout._prev = null;
+			timeout._bucket = -1;
+
+			if(timeout._rounds > 0) {
+				timeout._rounds--;
+				this.link(timeout, bucket);
+			}
+			else {
+				this._size--;
+				timeout.expire(now);
+			}
+
+			timeout = next;
+		}
+	}
+
+	private void link(Timeout timeout, int bucket) {
+		Timeout head = this._buckets[bucket];
+
+		timeout._next = head;
+		timeout._bucket = bucket;
+
+		if(head != null)
+			head._prev = timeout;
+
+		this._buckets[bucket] = timeout;
+	}
+
+	private void unlink(Timeout timeout) {
+		if(timeout._prev != null)
+			timeout._prev._next = timeout._next;
+		else
+			this._buckets[timeout._bucket] = timeout._next;
+
+		if(timeout._next != null)
+			timeout._next._prev = timeout._prev;
+
+		timeout._next = null;
+		timeout._prev = null;
+		timeout._bucket = -1;
+	}
+}//end TimerWheel class
@@ -0,0 +1,324 @@
+/**
+ * TLS for a client of SelectorTransport. Wraps the client's
+ * non-blocking channel in an SSLEngine, so encrypted clients
+ * are served by the same I/O threads as the rest
+ * rather than a blocking SSLSocket thread each.
+ *
+ * Bytes read from the channel are unwrapped into the plain
+ * text the session decodes, and queued buffers are wrapped
+ * as they are written. Whatever the handshake needs to send
+ * is written as soon as it is made. The handshake's slower
+ * steps, checking certificates and signing, run on the
+ * client's loop too, so a full handshake holds that loop up briefly.
+ * Clients reconnecting to the same server resume their
+ * earlier session, which skips those steps, so a crowd
+ * coming back after a restart of their network costs far
+ * less than the same crowd arriving for the first time.
+ *
+ * Only the client's own loop reads and writes through the engine.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.TrustManagerFactory;
+
+class TlsConnection {
+	//seconds a session can be resumed for after its handshake
+	private static final int SESSION_TIMEOUT = 24 * 60 * 60;
+	//sessions the server keeps for clients that resume by id rather than ticket
+	private static final int SESSION_CACHE_SIZE = 20000;
+
+	private static final ByteBuffer[] NOTHING = new ByteBuffer[0];
+
+	private final SSLEngine _engine;
+	private final SocketChannel _channel;
+
+	//encrypted bytes read and not yet unwrapped, left ready for more reads
+	private ByteBuffer _netIn;
+	//encrypted bytes wrapped and not yet written, left ready to be written
+	private ByteBuffer _netOut;
+	//plain text unwrapped that didn't fit in the session's read buffer
+	private ByteBuffer _plainIn;
+
+	/**
+	 * @param context - context holding the server's key
+	 * @param channel - the client's non-blocking channel
+	 */
+	TlsConnection(SSLContext context, SocketChannel channel) {
+		this._engine = context.createSSLEngine();
+		this._engine.setUseClientMode(false);
+		this._channel = channel;
+
+		int packetSize = this._engine.getSession().getPacketBufferSize();
+
+		this._netIn = ByteBuffer.allocate(packetSize);
+		this._netOut = ByteBuffer.allocate(packetSize);
+		this._netOut.flip();
+		this._plainIn = ByteBuffer.allocate(this._engine.getSession().getApplicationBufferSize());
+	}
+
+	/**
+	 * loads a key store and makes a context that serves its key
+	 * and trusts its certificates, so nodes of a cluster sharing
+	 * one store can link to each other.
+	 *
+	 * @param keyStore - PKCS12 or JKS file holding the server's key and certificate
+	 * @param password - password of the store and its key, null for none
+	 * @return context for the server and its links
+	 * @throws IOException - the store can't be read or holds no usable key
+	 */
+	static SSLContext newContext(String keyStore, String password) throws IOException {
+		char[] secret = password != null ? password.toCharArray() : new char[0];
+
+		try {
+			KeyStore store = KeyStore.getInstance(new File(keyStore), secret);
+
+			KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			keys.init(store, secret);
+
+			TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+			trust.init(store);
+
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+
+			context.getServerSessionContext().setSessionTimeout(SESSION_TIMEOUT);
+			context.getServerSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+
+			return context;
+		}
+		catch(GeneralSecurityException e) {
+			throw new IOException("Can't use key store " + keyStore + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * reads what the channel has and unwraps it, taking part in
+	 * the handshake as needed. Plain text that doesn't fit is
+	 * kept for the next call.
+	 *
+	 * @param plain - session's read buffer to fill
+	 * @return plain bytes added, -1 once the client has closed its end
+	 */
+	int read(ByteBuffer plain) throws IOException {
+		int read = this._netIn.hasRemaining() ? this._channel.read(this._netIn) : 0;
+		int added = this.takePlain(plain);
+
+		this._netIn.flip();
+
+		try {
+			while(true) {
+				SSLEngineResult.HandshakeStatus status = this._engine.getHandshakeStatus();
+
+				if(status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+					this.runTasks();
+					continue;
+				}
+
+				if(status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+					//the socket is full, the rest is written once it drains
+					if(!this.flush())
+						break;
+
+					continue;
+				}
+
+				//the session's buffer is full, what is left waits for the next call
+				if(this._plainIn.position() > 0)
+					break;
+
+				SSLEngineResult result = this._engine.unwrap(this._netIn, this._plainIn);
+
+				if(result.getStatus() == SSLEngineResult.Status.CLOSED)
+					return added > 0 ? added : -1;
+
+				if(result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+					//a record larger than the buffer, make room for the rest of it
+					if(this._netIn.position() == 0 && this._netIn.limit() == this._netIn.capacity()) {
+						ByteBuffer larger = ByteBuffer.allocate(this._netIn.capacity() +
+								this._engine.getSession().getPacketBufferSize());
+						larger.put(this._netIn);
+						larger.flip();
+						this._netIn = larger;
+					}
+
+					break;
+				}
+
+				if(result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+					//empty here, so only too small for the session's record size
+					this._plainIn = ByteBuffer.allocate(this._plainIn.capacity() +
+							this._engine.getSession().getApplicationBufferSize());
+					continue;
+				}
+
+				added += this.takePlain(plain);
+
+				if(result.bytesConsumed() == 0 && result.bytesProduced() == 0 &&
+						this._engine.getHandshakeStatus() == status)
+					break;
+			}
+		}
+		finally {
+			this._netIn.compact();
+		}
+
+		if(read == -1 && added == 0 && this._plainIn.position() == 0)
+			return -1;
+
+		return added;
+	}
+
+	/**
+	 * @return whether plain text is kept that didn't fit in the session's buffer
+	 */
+	boolean hasBufferedInput() {
+		return this._plainIn.position() > 0;
+	}
+
+	/**
+	 * wraps and writes queued buffers until they are all written
+	 * or the socket is full. Nothing is consumed until the
+	 * handshake is done.
+	 *
+	 * @param buffers - plain bytes to send, positions are moved past what was wrapped
+	 * @param count - buffers to use from index 0
+	 * @return plain bytes wrapped
+	 */
+	long write(ByteBuffer[] buffers, int count) throws IOException {
+		long wrapped = 0;
+
+		while(this.flush()) {
+			if(count == 0 || !buffers[count - 1].hasRemaining())
+				break;
+
+			SSLEngineResult result = this.wrap(buffers, count);
+			wrapped += result.bytesConsumed();
+
+			//handshake still going, the buffers wait until it is done
+			if(result.bytesConsumed() == 0 && !this._netOut.hasRemaining())
+				break;
+		}
+
+		return wrapped;
+	}
+
+	/**
+	 * writes what has been wrapped, wrapping more first whenever
+	 * the handshake has something to send.
+	 *
+	 * @return false if the socket is full and something is left
+	 */
+	boolean flush() throws IOException {
+		while(true) {
+			while(this._netOut.hasRemaining()) {
+				if(this._channel.write(this._netOut) == 0)
+					return false;
+			}
+
+			if(this._engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP)
+				return true;
+
+			if(this.wrap(NOTHING, 0).bytesProduced() == 0)
+				return true;
+		}
+	}
+
+	/**
+	 * @return whether the handshake is still going, so nothing queued can be sent yet
+	 */
+	boolean isHandshaking() {
+		return this._engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+	}
+
+	/**
+	 * @return whether wrapped bytes are waiting for the socket
+	 */
+	boolean hasPendingOutput() {
+		return this._netOut.hasRemaining() ||
+				this._engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP;
+	}
+
+	/**
+	 * sends close_notify if the socket takes it straight away.
+	 * Nothing waits for it, the channel is closed right after.
+	 */
+	void close() {
+		this._engine.closeOutbound();
+
+		try {
+			this.flush();
+		}
+		catch(IOException e) {
+			//client already gone, closed anyway
+		}
+	}
+
+	/**
+	 * wraps from the buffers into the empty outbound buffer.
+	 */
+	private SSLEngineResult wrap(ByteBuffer[] buffers, int count) throws IOException {
+		this._netOut.clear();
+
+		SSLEngineResult result;
+		try {
+			result = this._engine.wrap(buffers, 0, count, this._netOut);
+		}
+		finally {
+			this._netOut.flip();
+		}
+
+		if(result.getStatus() == SSLEngineResult.Status.CLOSED && result.bytesProduced() == 0 && count > 0)
+			throw new SSLException("Connection closed");
+
+		if(result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK)
+			this.runTasks();
+
+		return result;
+	}
+
+	/**
+	 * runs the handshake's slow steps on this thread.
+	 */
+	private void runTasks() {
+		Runnable task;
+		while((task = this._engine.getDelegatedTask()) != null)
+			task.run();
+	}
+
+	/**
+	 * moves as much unwrapped plain text as fits into the session's buffer.
+	 *
+	 * @return bytes moved
+	 */
+	private int takePlain(ByteBuffer plain) {
+		if(this._plainIn.position() == 0)
+			return 0;
+
+		this._plainIn.flip();
+
+		int moved = Math.min(this._plainIn.remaining(), plain.remaining());
+		int limit = this._plainIn.limit();
+
+		this._plainIn.limit(this._plainIn.position() + moved);
+		plain.put(this._plainIn);
+		this._plainIn.limit(limit);
+
+		this._plainIn.compact();
+
+		return moved;
+	}
+}//end TlsConnection class
@@ -0,0 +1,259 @@
+/**
+ * Serves each client from a thread of its own using plain
+ * blocking reads. The acceptor and every client's read loop
+ * run on virtual threads when the JVM has them, so thousands
+ * of mostly idle clients cost little more than their sockets.
+ * On JVMs without virtual threads a cached pool of platform
+ * threads is used instead. A client held back for sending
+ * too fast has its thread sleep before reading any more.
+ *
+ * Clients are watched for silence on one TimerWheel, which
+ * a single thread of its own advances once a tick. Each
+ * client's thread hands it over through a lock-free queue
+ * when it connects, so the wheel is never locked.
+ *
+ * Once stopped, clients are given until the drain timeout to
+ * be written what is queued for them, then every thread still
+ * running is interrupted, which closes its channel.
+ *
+ * @author Johnathan McNutt
+ */
+package com.jmcnutt.chat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+class VirtualThreadTransport implements ChatTransport {
+	private final ChatServerCore _core;
+	private final int _port;
+
+	//left in blocking mode, as are the client channels
+	private ServerSocketChannel _serverChannel;
+	private ExecutorService _executor;
+	//kept out of the executor so it can wait for the clients to finish
+	private Thread _acceptor;
+	//milliseconds clients are given to drain once stopped
+	private volatile long _drainMillis;
+
+	//clients watched for silence, idle thread only, null if the config watches for none
+	private TimerWheel _idleWheel;
+	//clients to start watching, handed over by their threads
+	private final MpscQueue<BlockingSession> _newSessions = new MpscQueue<BlockingSession>();
+	private Thread _idleThread;
+
+	/**
+	 * @param core - chatroom lines are handed to
+	 * @param port - port to accept clients on
+	 */
+	VirtualThreadTransport(ChatServerCore core, int port) {
+		this._core = core;
+		this._port = port;
+	}
+
+	/**
+	 * creates an executor starting a virtual thread per task,
+	 * or a cached pool of daemon threads if the JVM has none.
+	 */
+	static ExecutorService newThreadPerTaskExecutor() {
+		try {
+			//looked up by name so the program still runs on JVMs before virtual threads
+			return (ExecutorService)Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch(ReflectiveOperationException ex) {
+			return Executors.newCachedThreadPool(new ThreadFactory(){
+				public Thread newThread(Runnable task){
+					Thread thread = new Thread(task, "ChatServer-Client");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return whether clients are being served on virtual threads
+	 */
+	static boolean hasVirtualThreads() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		}
+		catch(NoSuchMethodException ex) {
+			return false;
+		}
+	}
+
+	@Override
+	public void start() throws IOException {
+		//TLS is only done with SSLEngine on the selector's non-blocking channels
+		if(this._core.getSslContext() != null)
+			throw new IOException("TLS is only served in selector mode");
+
+		this._serverChannel = ServerSocketChannel.open();
+
+		try {
+			this._serverChannel.bind(new InetSocketAddress(this._port));
+		}
+		catch(IOException e) {
+			this._serverChannel.close();
+			throw e;
+		}
+
+		this._executor = newThreadPerTaskExecutor();
+
+		this._acceptor = new Thread(new Runnable(){
+			public void run(){
+				acceptClients();
+			}
+		}, "ChatServer-Acceptor");
+		this._acceptor.start();
+
+		ChatServerConfig config = this._core.getConfig();
+
+		if(config.getHeartbeatInterval() > 0 || config.getIdleTimeout() > 0) {
+			this._idleWheel = Session.newIdleWheel(config);
+
+			this._idleThread = new Thread(new Runnable(){
+				public void run(){
+					watchIdle();
+				}
+			}, "ChatServer-Idle");
+			this._idleThread.setDaemon(true);
+			this._idleThread.start();
+		}
+	}
+
+	@Override
+	public void stop(long millis) {
+		this._drainMillis = millis;
+
+		try {
+			//wakes the acceptor, which then shuts the executor down
+			this._serverChannel.close();
+		}
+		catch(IOException e){
+			//catch required to close socket
+		}
+	}
+
+	@Override
+	public boolean relay(Relay relay) {
+		//each client's thread only reads, the core queues for every client on the thread relaying
+		return false;
+	}
+
+	@Override
+	public void awaitStop(long millis) throws InterruptedException {
+		if(this._acceptor != null)
+			this._acceptor.join(millis);
+	}
+
+	/**
+	 * the acceptor. Starts a read loop for each client
+	 * until the server socket is closed.
+	 */
+	private void acceptClients() {
+		while(this._serverChannel.isOpen()) {
+			try {
+				final SocketChannel channel = this._serverChannel.accept();
+
+				this._executor.execute(new Runnable(){
+					public void run(){
+						serveClient(channel);
+					}
+				});
+			}
+			catch(IOException ex) {
+				//activates when the server socket is closed
+			}
+			catch(Exception ex){
+				this._core.transportError(ex);
+			}
+		}
+
+		this._executor.shutdown();
+
+		try {
+			//interrupting a thread blocked on a channel closes the channel
+			if(!this._executor.awaitTermination(this._drainMillis, TimeUnit.MILLISECONDS))
+				this._executor.shutdownNow();
+		}
+		catch(InterruptedException ex) {
+			this._executor.shutdownNow();
+		}
+
+		this._core.transportStopped();
+	}
+
+	/**
+	 * the idle thread. Once a tick starts watching the clients
+	 * handed over and advances the wheel, until the server
+	 * socket is closed.
+	 */
+	private void watchIdle() {
+		while(this._serverChannel.isOpen()) {
+			try {
+				long nanos = this._idleWheel.nextTick() - System.nanoTime();
+				Thread.sleep(Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos)));
+			}
+			catch(InterruptedException ex) {
+				break;
+			}
+
+			BlockingSession session;
+			while((session = this._newSessions.poll()) != null)
+				session.watchIdle(this._idleWheel, this._core);
+
+			this._idleWheel.advance(System.nanoTime());
+		}
+	}
+
+	/**
+	 * a client's read loop. Hands everything the client sends
+	 * to the core until the client hangs up or is closed. A client
+	 * turned away because the room is full is still read until it
+	 * says hello, so it can be told why in its own protocol.
+	 *
+	 * @param channel - the accepted client
+	 */
+	private void serveClient(SocketChannel channel) {
+		BlockingSession session = new BlockingSession(this._core.nextSessionId(), channel, this._executor);
+
+		this._core.sessionOpened(session);
+
+		if(this._idleThread != null)
+			this._newSessions.offer(session);
+
+		try {
+			this._core.getConfig().configureSocket(channel);
+
+			while(!session.isClosing()) {
+				if(!session.read())
+					break;
+
+				long wait;
+				while((wait = session.processInbound(this._core)) > 0)
+					TimeUnit.NANOSECONDS.sleep(wait);
+			}
+
+			//closed by the server, whatever is queued is still being written
+			if(session.isClosing())
+				return;
+		}
+		catch(IOException ex) {
+			//Called if client is unreachable, was removed or broke the protocol
+		}
+		catch(InterruptedException ex) {
+			//server stopped while the client was held back
+		}
+
+		this._core.sessionClosed(session);
+	}
+}//end VirtualThreadTransport class